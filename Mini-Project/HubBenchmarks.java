@@ -0,0 +1,1267 @@
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/*
+ HubBenchmarks.java
+ Stand-alone benchmarks for the SmartHub hot paths (no external dependencies).
+
+ Build and run next to SmartHomeSystem.java:
+   javac -Xlint:all -Xlint:-auxiliaryclass -d out SmartHomeSystem.java HubTests.java HubBenchmarks.java HubLoadGenerator.java
+   java -cp out HubBenchmarks [scenario ...]
+ This is the build command in README.md, shared by all the tools. The hub's classes are
+ package-private auxiliary classes of SmartHomeSystem.java: they must be compiled in the same
+ javac run, and -Xlint:-auxiliaryclass silences the lint that flags their use from other files.
+ The 10M-device footprint scenario wants a larger heap, e.g. java -Xmx3g -cp out HubBenchmarks footprint
+
+ With no arguments every scenario runs. Numbers are indicative only; run on an
+ otherwise idle machine and compare relative results within one run.
+
+ "suite" is the regression suite: every hot path under a grid of hub sizes, with
+ throughput, latency percentiles, allocation and GC per operation, e.g.
+   java -cp out HubBenchmarks suite devices=1000,100000 triggers=0,1000 observers=0,8 csv=suite.csv
+ Keys: devices, triggers, schedules, observers (comma-separated values), bench (subset of
+ the suite's benchmarks), warmups, iterations, millis (per iteration), csv (append rows).
+*/
+public class HubBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        Set<String> selected = new HashSet<>();
+        Map<String, String> params = new HashMap<>(); // key=value arguments configure the suite
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) selected.add(arg);
+            else params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        boolean all = selected.isEmpty();
+        if (all || selected.contains("registry")) registryScaling();
+        if (all || selected.contains("intmap")) intMapVsHashMap();
+        if (all || selected.contains("alloc")) allocationFreeCommands();
+        if (all || selected.contains("typedstate")) typedStateReads();
+        if (all || selected.contains("batch")) batchVsSingle();
+        if (all || selected.contains("observers")) observerDispatchLatency();
+        if (all || selected.contains("filtered")) filteredSubscriptions();
+        if (all || selected.contains("triggerindex")) indexedTriggers();
+        if (all || selected.contains("cascade")) triggerStorms();
+        if (all || selected.contains("actions")) compiledActions();
+        if (all || selected.contains("schedules")) scheduleIndex();
+        if (all || selected.contains("typeindex")) typeIndexedConditions();
+        if (all || selected.contains("footprint")) columnarFootprint();
+        if (all || selected.contains("restart")) mappedRestart();
+        if (all || selected.contains("wal")) commandLogDurability();
+        if (all || selected.contains("snapshot")) snapshotLoad();
+        if (all || selected.contains("repl")) replDispatch();
+        if (all || selected.contains("logging")) loggingCost();
+        if (all || selected.contains("suite")) hotPathSuite(params);
+    }
+
+    // -------------------- Helpers --------------------
+    static SmartHub hubWithLights(SmartHub hub, int count) {
+        for (int id = 1; id <= count; id++) {
+            DeviceProxy p = new DeviceProxy(new Light(id));
+            p.setLogging(false);
+            hub.registerDevice(p);
+        }
+        return hub;
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try { Thread.sleep(50); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+
+    // Bytes allocated by the calling thread so far (HotSpot's ThreadMXBean extension)
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void header(String title) {
+        System.out.println();
+        System.out.println("== " + title + " ==");
+    }
+
+    // -------------------- Registry scaling --------------------
+    /*
+     Each thread toggles its own slice of lights for a fixed time. The baseline wraps a
+     single-threaded hub in one global lock; the striped registry only serializes per stripe.
+    */
+    static void registryScaling() throws Exception {
+        header("Concurrent registry: commands/sec by thread count");
+        int devices = 4096;
+        long millis = 1000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int t = 1; t <= Math.max(cores, 2) * 2; t <<= 1) threadCounts.add(t);
+
+        System.out.printf("%-8s %18s %18s%n", "threads", "global-lock ops/s", "striped ops/s");
+        for (int threads : threadCounts) {
+            SmartHub simple = hubWithLights(new SmartHub(), devices);
+            SmartHub striped = hubWithLights(new SmartHub(new StripedDeviceRegistry()), devices);
+            runToggle(simple, threads, devices, 200, true);   // warmup
+            runToggle(striped, threads, devices, 200, false);
+            double base = runToggle(simple, threads, devices, millis, true);
+            double conc = runToggle(striped, threads, devices, millis, false);
+            System.out.printf("%-8d %18.0f %18.0f%n", threads, base, conc);
+        }
+    }
+
+    private static double runToggle(SmartHub hub, int threads, int devices, long millis, boolean globalLock)
+            throws Exception {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        stop = false;
+        Thread[] workers = new Thread[threads];
+        int slice = devices / threads;
+        for (int t = 0; t < threads; t++) {
+            final int first = 1 + t * slice;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    long n = 0;
+                    int i = 0;
+                    while (!stop) {
+                        int id = first + (i++ % slice);
+                        String cmd = (n & 1) == 0 ? "turnOn" : "turnOff";
+                        if (globalLock) {
+                            synchronized (hub) { hub.executeCommand(id, cmd); }
+                        } else {
+                            hub.executeCommand(id, cmd);
+                        }
+                        n++;
+                    }
+                    ops.add(n);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        Thread.sleep(millis);
+        stop = true;
+        for (Thread w : workers) w.join();
+        double secs = (System.nanoTime() - t0) / 1e9;
+        return ops.sum() / secs;
+    }
+
+    private static volatile boolean stop;
+
+    // -------------------- IntObjectMap vs HashMap --------------------
+    /*
+     Same proxies in both maps; reports retained heap of the map structure alone and
+     random-lookup throughput. HashMap pays for an Integer key and a Node per entry.
+    */
+    static void intMapVsHashMap() {
+        header("Device lookup: HashMap<Integer, DeviceProxy> vs IntObjectMap");
+        System.out.printf("%-10s %-12s %14s %16s%n", "devices", "map", "bytes/entry", "lookups/s");
+        for (int n : new int[]{100_000, 1_000_000}) {
+            DeviceProxy[] proxies = new DeviceProxy[n];
+            for (int i = 0; i < n; i++) proxies[i] = new DeviceProxy(new Light(i + 1));
+            int[] probes = new int[1 << 20];
+            Random rnd = new Random(42);
+            for (int i = 0; i < probes.length; i++) probes[i] = 1 + rnd.nextInt(n);
+
+            long before = usedHeap();
+            Map<Integer, DeviceProxy> hashMap = new HashMap<>();
+            for (DeviceProxy p : proxies) hashMap.put(p.getId(), p);
+            long hashBytes = usedHeap() - before;
+
+            before = usedHeap();
+            IntObjectMap<DeviceProxy> intMap = new IntObjectMap<>();
+            for (DeviceProxy p : proxies) intMap.put(p.getId(), p);
+            long intBytes = usedHeap() - before;
+
+            double hashRate = lookupRate(probes, id -> hashMap.get(id));
+            double intRate = lookupRate(probes, intMap::get);
+            System.out.printf("%-10d %-12s %14.1f %16.0f%n", n, "HashMap", (double) hashBytes / n, hashRate);
+            System.out.printf("%-10d %-12s %14.1f %16.0f%n", n, "IntObjectMap", (double) intBytes / n, intRate);
+            if (hashMap.size() != intMap.size()) throw new AssertionError("size mismatch");
+        }
+    }
+
+    interface IntLookup { DeviceProxy get(int id); }
+
+    private static double lookupRate(int[] probes, IntLookup lookup) {
+        long sink = 0;
+        for (int round = 0; round < 3; round++) {               // warmup
+            for (int id : probes) sink += lookup.get(id).getId();
+        }
+        long t0 = System.nanoTime();
+        int rounds = 10;
+        for (int round = 0; round < rounds; round++) {
+            for (int id : probes) sink += lookup.get(id).getId();
+        }
+        double secs = (System.nanoTime() - t0) / 1e9;
+        if (sink == 42) System.out.print("");                    // keep the JIT honest
+        return rounds * (double) probes.length / secs;
+    }
+
+    // -------------------- Allocation-free command path --------------------
+    /*
+     Steady-state check: with proxy logging off, one observer and one (non-firing) trigger,
+     turnOn/turnOff (by name and by CommandCode) and numeric setTemp should not allocate.
+     Reports the bytes per command; HubTests alloc is the check that fails the run.
+    */
+    static void allocationFreeCommands() throws Exception {
+        header("Allocation per executeCommand after warmup");
+        SmartHub hub = hubWithLights(new SmartHub(), 1000);
+        DeviceProxy thermostat = new DeviceProxy(new Thermostat(5000, 70));
+        thermostat.setLogging(false);
+        hub.registerDevice(thermostat);
+        long[] seen = new long[1];
+        hub.addObserver(e -> seen[0]++);
+        Thermostat watched = new Thermostat(5001, 70);
+        hub.addTrigger(new TriggerEntry("never", h -> watched.getTemperature() > 1000, List.of("turnOff(1)")));
+
+        reportAllocation("turnOn/turnOff", () -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                hub.executeCommand(1 + (i % 1000), (i & 1) == 0 ? "turnOn" : "turnOff");
+            }
+        }, 1_000_000);
+        reportAllocation("opcode TURN_ON/OFF", () -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                hub.executeCommand(1 + (i % 1000), (i & 1) == 0 ? CommandCode.TURN_ON : CommandCode.TURN_OFF);
+            }
+        }, 1_000_000);
+        reportAllocation("setTemp(double)", () -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                hub.executeCommand(5000, "setTemp", 60 + (i & 15));
+            }
+        }, 1_000_000);
+    }
+
+    interface Workload { void run() throws Exception; }
+
+    private static void reportAllocation(String name, Workload work, long ops) throws Exception {
+        for (int i = 0; i < 5; i++) work.run();                 // warmup until compiled
+        long before = allocatedBytes();
+        work.run();
+        long bytes = allocatedBytes() - before;
+        double perOp = (double) bytes / ops;
+        System.out.printf("%-18s %10.4f bytes/op%n", name, perOp);
+    }
+
+    // -------------------- Typed state reads vs reflection --------------------
+    /*
+     The REPL temperature trigger used to reach the thermostat through reflection on
+     DeviceProxy.realDevice. Both predicates below walk the same hub; only the read differs.
+    */
+    static void typedStateReads() throws Exception {
+        header("Trigger evaluation: reflective vs typed temperature read");
+        SmartHub hub = hubWithLights(new SmartHub(), 100);
+        for (int id = 101; id <= 110; id++) {
+            DeviceProxy t = new DeviceProxy(new Thermostat(id, 70));
+            t.setLogging(false);
+            hub.registerDevice(t);
+        }
+        // no thermostat is above 75, so every evaluation visits every device
+        Predicate<SmartHub> reflective = h -> {
+            for (DeviceProxy dp : h.listDevices()) {
+                if (dp.getType().equals("thermostat")
+                        && ((Thermostat) reflectRealDevice(dp)).getTemperature() > 75) return true;
+            }
+            return false;
+        };
+        Predicate<SmartHub> typed = h -> {
+            for (DeviceProxy dp : h.listDevices()) {
+                if (dp.getType().equals("thermostat") && dp.getTemperature() > 75) return true;
+            }
+            return false;
+        };
+        System.out.printf("%-12s %16s%n", "read", "evaluations/s");
+        System.out.printf("%-12s %16.0f%n", "reflective", evaluationRate(hub, reflective));
+        System.out.printf("%-12s %16.0f%n", "typed", evaluationRate(hub, typed));
+    }
+
+    // The removed SmartHomeSystem.dpReal helper, kept here as the baseline
+    private static Device reflectRealDevice(DeviceProxy dp) {
+        try {
+            java.lang.reflect.Field f = DeviceProxy.class.getDeclaredField("realDevice");
+            f.setAccessible(true);
+            return (Device) f.get(dp);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static double evaluationRate(SmartHub hub, Predicate<SmartHub> predicate) {
+        int hits = 0;
+        for (int i = 0; i < 20_000; i++) if (predicate.test(hub)) hits++;  // warmup
+        int n = 100_000;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) if (predicate.test(hub)) hits++;
+        double secs = (System.nanoTime() - t0) / 1e9;
+        if (hits != 0) throw new AssertionError("predicate unexpectedly matched");
+        return n / secs;
+    }
+
+    // -------------------- Batch commands --------------------
+    /*
+     1,000 commands against a hub with 200 (non-firing) triggers: one-by-one pays a trigger
+     sweep per command, executeBatch pays one sweep for the whole batch.
+    */
+    static void batchVsSingle() throws Exception {
+        header("1,000 commands: executeCommand loop vs executeBatch (200 triggers)");
+        SmartHub hub = hubWithLights(new SmartHub(), 1000);
+        List<DeviceProxy> thermostats = new ArrayList<>();
+        for (int id = 1001; id <= 1010; id++) {
+            DeviceProxy t = new DeviceProxy(new Thermostat(id, 70));
+            t.setLogging(false);
+            hub.registerDevice(t);
+            thermostats.add(t);
+        }
+        for (int i = 0; i < 200; i++) {
+            final double limit = 200 + i;
+            hub.addTrigger(new TriggerEntry("temperature > " + limit, h -> {
+                for (DeviceProxy t : thermostats) if (t.getTemperature() > limit) return true;
+                return false;
+            }, List.of("turnOff(1)")));
+        }
+        List<HubCommand> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) batch.add(HubCommand.of(1 + i, (i & 1) == 0 ? CommandCode.TURN_ON : CommandCode.TURN_OFF));
+
+        Workload single = () -> {
+            for (HubCommand c : batch) hub.executeCommand(c.deviceId, c.code, c.value);
+        };
+        Workload batched = () -> {
+            BatchResult r = hub.executeBatch(batch);
+            if (!r.isSuccess()) throw new AssertionError(r.getFailures().toString());
+        };
+        System.out.printf("%-10s %16s%n", "mode", "batches/s");
+        System.out.printf("%-10s %16.0f%n", "single", rate(single, 200));
+        System.out.printf("%-10s %16.0f%n", "batch", rate(batched, 200));
+    }
+
+    // Runs of work per second, after a warmup of the same number of runs
+    static double rate(Workload work, int runs) throws Exception {
+        for (int i = 0; i < runs; i++) work.run();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < runs; i++) work.run();
+        return runs / ((System.nanoTime() - t0) / 1e9);
+    }
+
+    // -------------------- Async observer dispatch --------------------
+    /*
+     Command latency as seen by the caller with 1, 10 and 100 observers that each format a
+     line like the REPL's logging observer (into a discarding stream). Commands are issued in
+     bursts that fit the ring, and the ring is drained between bursts, so the async numbers
+     are publish cost rather than back-pressure.
+    */
+    static void observerDispatchLatency() throws Exception {
+        header("Command latency by observer count: sync vs ring buffer");
+        java.io.PrintStream sink = new java.io.PrintStream(OutputStream.nullOutputStream());
+        System.out.printf("%-10s %-18s %12s %12s%n", "observers", "dispatcher", "mean ns", "p99 ns");
+        for (int count : new int[]{1, 10, 100}) {
+            for (String mode : new String[]{"sync", "ring/blocking", "ring/yielding"}) {
+                SmartHub hub = hubWithLights(new SmartHub(), 64);
+                for (int i = 0; i < count; i++) {
+                    hub.addObserver(e -> sink.printf("[Observer] Event: %s %s%n", e.type, e.payload));
+                }
+                RingBufferObserverDispatcher ring = null;
+                if (mode.startsWith("ring")) {
+                    WaitStrategy ws = mode.endsWith("blocking") ? WaitStrategy.blocking() : WaitStrategy.yielding();
+                    ring = new RingBufferObserverDispatcher(1024, 1, ws);
+                    hub.setObserverDispatcher(ring);
+                }
+                int burst = 256;
+                int bursts = count == 100 ? 20 : 200;
+                long[] samples = new long[burst * bursts];
+                for (int round = 0; round < 2; round++) {            // round 0 is warmup
+                    for (int b = 0; b < bursts; b++) {
+                        for (int i = 0; i < burst; i++) {
+                            long t0 = System.nanoTime();
+                            hub.executeCommand(1 + (i & 63), (i & 1) == 0 ? CommandCode.TURN_ON : CommandCode.TURN_OFF);
+                            samples[b * burst + i] = System.nanoTime() - t0;
+                        }
+                        if (ring != null && !ring.awaitDrained(10_000)) throw new AssertionError("ring did not drain");
+                    }
+                }
+                if (ring != null) ring.close();
+                long[] sorted = samples.clone();
+                Arrays.sort(sorted);
+                double mean = Arrays.stream(samples).average().orElse(0);
+                System.out.printf("%-10d %-18s %12.0f %12d%n", count, mode, mean, sorted[(int) (sorted.length * 0.99)]);
+            }
+        }
+    }
+
+    // -------------------- Event-type filtered subscriptions --------------------
+    /*
+     100 observers that only care about TRIGGER_FIRED. Unfiltered, each one receives every
+     STATE_CHANGE and string-compares the type; subscribed by type, none of them is touched.
+    */
+    static void filteredSubscriptions() throws Exception {
+        header("STATE_CHANGE dispatch with 100 TRIGGER_FIRED-only observers");
+        long[] fired = new long[1];
+        SmartHub compare = hubWithLights(new SmartHub(), 64);
+        SmartHub indexed = hubWithLights(new SmartHub(), 64);
+        for (int i = 0; i < 100; i++) {
+            compare.addObserver(e -> { if (e.type.equals("TRIGGER_FIRED")) fired[0]++; });
+            indexed.addObserver(e -> fired[0]++, HubEventType.TRIGGER_FIRED);
+        }
+        System.out.printf("%-16s %16s%n", "subscription", "commands/s");
+        for (SmartHub hub : new SmartHub[]{compare, indexed}) {
+            double r = rate(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    hub.executeCommand(1 + (i & 63), (i & 1) == 0 ? CommandCode.TURN_ON : CommandCode.TURN_OFF);
+                }
+            }, 50) * 10_000;
+            System.out.printf("%-16s %16.0f%n", hub == compare ? "all + compare" : "by type", r);
+        }
+        if (fired[0] != 0) throw new AssertionError("no trigger should have fired");
+    }
+
+    // -------------------- Dependency-indexed triggers --------------------
+    /*
+     1,000 thermostats; each trigger watches one of them ("device n above 1000", never true).
+     setTemp on one thermostat sweeps every trigger when none declares dependencies, but only
+     that device's triggers when they are declared.
+    */
+    static void indexedTriggers() throws Exception {
+        header("setTemp commands/s by trigger count: full sweep vs device index");
+        System.out.printf("%-10s %16s %16s%n", "triggers", "sweep", "indexed");
+        int devices = 1000;
+        for (int count : new int[]{10, 100, 1000, 10_000}) {
+            double[] rates = new double[2];
+            for (int mode = 0; mode < 2; mode++) {
+                SmartHub hub = new SmartHub();
+                DeviceProxy[] thermostats = new DeviceProxy[devices];
+                for (int i = 0; i < devices; i++) {
+                    thermostats[i] = new DeviceProxy(new Thermostat(i + 1, 70));
+                    thermostats[i].setLogging(false);
+                    hub.registerDevice(thermostats[i]);
+                }
+                for (int i = 0; i < count; i++) {
+                    DeviceProxy watched = thermostats[i % devices];
+                    Predicate<SmartHub> p = h -> watched.getTemperature() > 1000;
+                    hub.addTrigger(mode == 0
+                            ? new TriggerEntry("t" + i, p, List.of("turnOff(1)"))
+                            : new TriggerEntry("t" + i, p, List.of("turnOff(1)"), TriggerDependencies.onDevices(watched.getId())));
+                }
+                int ops = count >= 10_000 ? 2_000 : 20_000;
+                rates[mode] = rate(() -> {
+                    for (int i = 0; i < ops; i++) hub.executeCommand(1 + (i % devices), CommandCode.SET_TEMP, 60 + (i & 7));
+                }, 20) * ops;
+            }
+            System.out.printf("%-10d %16.0f %16.0f%n", count, rates[0], rates[1]);
+        }
+        registerTriggers();
+    }
+
+    // Registering device-scoped triggers: one index copy per addTrigger vs one per addTriggers batch
+    private static void registerTriggers() {
+        int devices = 20_000, count = 20_000;
+        System.out.printf("%nregistering %,d device triggers over %,d devices%n", count, devices);
+        System.out.printf("%-12s %12s%n", "mode", "ms");
+        for (String mode : new String[]{"addTrigger", "addTriggers"}) {
+            SmartHub hub = hubWithLights(new SmartHub(), devices);
+            List<TriggerEntry> rules = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int id = 1 + i % devices;
+                rules.add(new TriggerEntry("t" + i, h -> false, List.of("turnOff(" + id + ")"), TriggerDependencies.onDevices(id)));
+            }
+            long t0 = System.nanoTime();
+            if (mode.equals("addTriggers")) hub.addTriggers(rules);
+            else for (TriggerEntry t : rules) hub.addTrigger(t);
+            System.out.printf("%-12s %12.1f%n", mode, (System.nanoTime() - t0) / 1e6);
+        }
+    }
+
+    // -------------------- Iterative trigger cascades --------------------
+    /*
+     Two storms that used to recurse through executeCommand: a 500-trigger chain (light n on
+     turns on light n+1) and an oscillator (light 1 on -> off -> on ...) that never settles.
+     Both now run as waves on a flat stack, bounded by the max cascade depth.
+    */
+    static void triggerStorms() throws Exception {
+        header("Trigger storms: wave-based cascade engine");
+        int chain = 500;
+        SmartHub hub = hubWithLights(new SmartHub(), chain + 1);
+        for (int i = 1; i <= chain; i++) {
+            final int id = i;
+            hub.addTrigger(new TriggerEntry("light " + i + " on", h -> h.getDevice(id).get().isOn(),
+                    List.of("turnOn(" + (i + 1) + ")"), TriggerDependencies.onDevices(i)));
+        }
+        java.io.PrintStream err = System.err;
+        System.setErr(new java.io.PrintStream(OutputStream.nullOutputStream())); // truncation warnings
+        try {
+            System.out.printf("%-22s %10s %14s  %s%n", "storm", "maxDepth", "us/cascade", "last cascade");
+            for (int depth : new int[]{16, chain + 1}) {
+                hub.setMaxCascadeDepth(depth);
+                Workload run = () -> {
+                    for (int id = 1; id <= chain + 1; id++) hub.executeCommand(id, CommandCode.TURN_OFF);
+                    hub.executeCommand(1, CommandCode.TURN_ON);
+                };
+                double perSec = rate(run, 50);
+                System.out.printf("%-22s %10d %14.1f  %s%n", "chain of " + chain, depth, 1e6 / perSec, hub.lastCascade());
+            }
+
+            SmartHub osc = hubWithLights(new SmartHub(), 1);
+            osc.addTrigger(new TriggerEntry("light 1 on", h -> h.getDevice(1).get().isOn(),
+                    List.of("turnOff(1)"), TriggerDependencies.onDevices(1)));
+            osc.addTrigger(new TriggerEntry("light 1 off", h -> !h.getDevice(1).get().isOn(),
+                    List.of("turnOn(1)"), TriggerDependencies.onDevices(1)));
+            for (int depth : new int[]{16, 1024}) {
+                osc.setMaxCascadeDepth(depth);
+                double perSec = rate(() -> osc.executeCommand(1, CommandCode.TURN_ON), 200);
+                System.out.printf("%-22s %10d %14.1f  %s%n", "oscillator", depth, 1e6 / perSec, osc.lastCascade());
+            }
+            System.out.println("oscillator totals: " + osc.getCascadeStats());
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    // -------------------- Compiled actions --------------------
+    /*
+     Cost of firing "setTemp(2, 68)": the old per-firing parse (substring, regex split,
+     parseInt, copyOfRange), compiling the action text on every firing, and dispatching the
+     ActionPlan compiled at registration.
+    */
+    static void compiledActions() throws Exception {
+        header("Firing an action: parse per firing vs compiled plan");
+        SmartHub hub = new SmartHub();
+        DeviceProxy t = new DeviceProxy(new Thermostat(2, 70));
+        t.setLogging(false);
+        hub.registerDevice(t);
+        String action = "setTemp(2, 68)";
+        ActionPlan plan = ActionPlan.compile(action);
+        int ops = 100_000;
+        double parsed = rate(() -> {
+            for (int i = 0; i < ops; i++) legacyParseAndExecute(hub, action);
+        }, 20) * ops;
+        double perFiring = rate(() -> {
+            for (int i = 0; i < ops; i++) {
+                ActionPlan p = ActionPlan.compile(action);
+                hub.executeCommand(p.deviceId, p.code, p.value);
+            }
+        }, 20) * ops;
+        double compiled = rate(() -> {
+            for (int i = 0; i < ops; i++) hub.executeCommand(plan.deviceId, plan.code, plan.value);
+        }, 20) * ops;
+        System.out.printf("%-10s %16s%n", "action", "firings/s");
+        System.out.printf("%-10s %16.0f%n", "parsed", parsed);
+        System.out.printf("%-10s %16.0f%n", "per-firing", perFiring);
+        System.out.printf("%-10s %16.0f%n", "compiled", compiled);
+    }
+
+    // SmartHub.parseAndExecuteAction as it was before actions were compiled
+    private static void legacyParseAndExecute(SmartHub hub, String action) throws Exception {
+        action = action.trim();
+        String cmdName = action.substring(0, action.indexOf('(')).trim();
+        String argPart = action.substring(action.indexOf('(') + 1, action.length() - 1).trim();
+        String[] parts = argPart.isEmpty() ? new String[0] : argPart.split("\\s*,\\s*");
+        int deviceId = Integer.parseInt(parts[0]);
+        String[] extraArgs = Arrays.copyOfRange(parts, 1, parts.length);
+        hub.executeCommand(deviceId, cmdName.toLowerCase(), extraArgs);
+    }
+
+    // -------------------- Schedule index --------------------
+    /*
+     A simulated day: 1,440 ticks over 1M daily schedules spread across 10k lights. The scan
+     baseline is the old runSchedulesAt (compare every schedule's time string per tick); the
+     indexed hub only visits the bucket for the tick's minute. Then the indexed day again with
+     1,000 "every 5m" entries on top, which share the frequent list every tick checks. Both
+     run the same actions; schedule log lines are off for both.
+    */
+    static void scheduleIndex() throws Exception {
+        header("A day of ticks over 1M schedules: linear scan vs minute buckets");
+        int lights = 10_000, count = 1_000_000;
+        SmartHub hub = hubWithLights(new SmartHub(), lights);
+        List<ScheduleEntry> all = new ArrayList<>(count);
+        Random rnd = new Random(42);
+        for (int i = 0; i < count; i++) {
+            int id = 1 + rnd.nextInt(lights);
+            String time = ScheduleEntry.formatMinuteOfDay(rnd.nextInt(ScheduleBucket.MINUTES_PER_DAY));
+            all.add(new ScheduleEntry(id, time, (rnd.nextBoolean() ? "turnOn(" : "turnOff(") + id + ")"));
+        }
+        long t0 = System.nanoTime();
+        for (ScheduleEntry s : all) hub.addSchedule(s);
+        double addMs = (System.nanoTime() - t0) / 1e6;
+        String[] ticks = new String[ScheduleBucket.MINUTES_PER_DAY];
+        for (int m = 0; m < ticks.length; m++) ticks[m] = ScheduleEntry.formatMinuteOfDay(m);
+
+        LogLevel hubLevel = Log.get("Hub").level();
+        Log.setLevel("Hub", LogLevel.OFF);
+        long scanNs, dailyNs, mixedNs;
+        try {
+            t0 = System.nanoTime();
+            for (String tick : ticks) legacyRunSchedulesAt(hub, all, tick);
+            scanNs = System.nanoTime() - t0;
+            dailyNs = runDay(hub);
+            for (int i = 0; i < 1_000; i++) hub.addSchedule(new ScheduleEntry(1 + (i % lights), "every 5m", "turnOn(" + (1 + (i % lights)) + ")"));
+            mixedNs = runDay(hub);
+        } finally {
+            Log.setLevel("Hub", hubLevel);
+        }
+        System.out.printf("added %,d schedules in %.0f ms%n", count, addMs);
+        System.out.printf("%-22s %12s %14s%n", "mode", "day ms", "mean us/tick");
+        System.out.printf("%-22s %12.0f %14.1f%n", "scan", scanNs / 1e6, scanNs / 1e3 / ticks.length);
+        System.out.printf("%-22s %12.0f %14.1f%n", "buckets", dailyNs / 1e6, dailyNs / 1e3 / ticks.length);
+        System.out.printf("%-22s %12.0f %14.1f%n", "buckets +1k every 5m", mixedNs / 1e6, mixedNs / 1e3 / ticks.length);
+    }
+
+    // SmartHub.runSchedulesAt as it was before the minute index, minus its console lines
+    private static void legacyRunSchedulesAt(SmartHub hub, List<ScheduleEntry> schedules, String timeHHMM) {
+        List<ScheduleEntry> toRun = new ArrayList<>();
+        for (ScheduleEntry s : schedules) {
+            if (s.time.equals(timeHHMM)) toRun.add(s);
+        }
+        for (ScheduleEntry s : toRun) {
+            try {
+                hub.executeCommand(s.plan.deviceId, s.plan.code, s.plan.value);
+            } catch (Exception e) {
+                System.err.println("[Hub] Action execution failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static long runDay(SmartHub hub) {
+        long t0 = System.nanoTime();
+        for (int m = 0; m < ScheduleBucket.MINUTES_PER_DAY; m++) hub.runSchedulesAt(m);
+        return System.nanoTime() - t0;
+    }
+
+    // -------------------- Per-type / temperature index --------------------
+    /*
+     "any thermostat temperature > 90" (never true, so the walk visits every device) evaluated
+     by walking the registry as the old REPL predicate did, versus the compiled condition that
+     reads the hub's TemperatureIndex. Also the cost of setTemp now that it maintains the index.
+    */
+    static void typeIndexedConditions() throws Exception {
+        header("any/all thermostat conditions: registry walk vs type index");
+        System.out.printf("%-12s %16s %16s %16s%n", "thermostats", "walk evals/s", "indexed evals/s", "setTemp/s");
+        for (int count : new int[]{1_000, 10_000, 100_000}) {
+            SmartHub hub = new SmartHub();
+            for (int id = 1; id <= count; id++) {
+                DeviceProxy p = new DeviceProxy(new Thermostat(id, 60 + id % 20));
+                p.setLogging(false);
+                hub.registerDevice(p);
+            }
+            Predicate<SmartHub> walk = h -> {
+                for (DeviceProxy dp : h.listDevices()) {
+                    if (dp.getType().equals("thermostat") && dp.getTemperature() > 90) return true;
+                }
+                return false;
+            };
+            Predicate<SmartHub> indexed = TriggerCondition.compile("any thermostat temperature > 90", hub).predicate;
+            int evals = Math.max(10, 10_000_000 / count);
+            boolean[] sink = new boolean[1];
+            double walkRate = rate(() -> {
+                for (int i = 0; i < evals; i++) sink[0] |= walk.test(hub);
+            }, 5) * evals;
+            double indexedRate = rate(() -> {
+                for (int i = 0; i < 1_000_000; i++) sink[0] |= indexed.test(hub);
+            }, 5) * 1_000_000;
+            double setTempRate = rate(() -> {
+                for (int i = 0; i < 200_000; i++) hub.executeCommand(1 + i % count, CommandCode.SET_TEMP, 60 + (i & 15));
+            }, 5) * 200_000;
+            if (sink[0]) throw new AssertionError("condition unexpectedly matched");
+            System.out.printf("%-12d %16.0f %16.0f %16.0f%n", count, walkRate, indexedRate, setTempRate);
+        }
+    }
+
+    // -------------------- Columnar device state --------------------
+    /*
+     Retained heap per device for an even mix of lights, thermostats and doors, keyed by id in
+     an IntObjectMap as the registries do: a DeviceProxy around a Light/Thermostat/DoorLock,
+     a StoredDevice view over a ColumnarDeviceStateStore, and the store's columns alone.
+    */
+    static void columnarFootprint() throws Exception {
+        header("Heap per device: object per device vs columnar store");
+        System.out.printf("%-10s %-16s %14s %12s%n", "devices", "layout", "heap MB", "bytes/dev");
+        DeviceKind[] kinds = DeviceKind.values();
+        for (int n : new int[]{1_000_000, 10_000_000}) {
+            long base = usedHeap();
+            IntObjectMap<DeviceProxy> objects = new IntObjectMap<>(n);
+            for (int id = 0; id < n; id++) {
+                Device d;
+                switch (kinds[id % 3]) {
+                    case LIGHT: d = new Light(id); break;
+                    case THERMOSTAT: d = new Thermostat(id, 70); break;
+                    default: d = new DoorLock(id);
+                }
+                objects.put(id, new DeviceProxy(d));
+            }
+            reportFootprint(n, "objects", usedHeap() - base, objects.size());
+            objects = null;
+
+            base = usedHeap();
+            ColumnarDeviceStateStore store = new ColumnarDeviceStateStore();
+            IntObjectMap<DeviceProxy> views = new IntObjectMap<>(n);
+            for (int id = 0; id < n; id++) views.put(id, new StoredDevice(store, kinds[id % 3], id));
+            reportFootprint(n, "columnar+views", usedHeap() - base, views.size());
+            views = null;
+            store = null;
+
+            base = usedHeap();
+            store = new ColumnarDeviceStateStore();
+            for (int id = 0; id < n; id++) store.allocate(kinds[id % 3], id);
+            reportFootprint(n, "columns only", usedHeap() - base, store.size());
+            store = null;
+        }
+    }
+
+    private static void reportFootprint(int n, String layout, long bytes, int live) {
+        if (live != n) throw new AssertionError(layout + " lost devices");
+        System.out.printf("%-10d %-16s %14.1f %12.1f%n", n, layout, bytes / 1e6, (double) bytes / n);
+    }
+
+    // -------------------- Memory-mapped state --------------------
+    /*
+     Time to get 1M devices back after a restart: reopening a MappedDeviceStateStore (maps the
+     file and scans the live flags) and registering StoredDevice views, versus re-creating the
+     same devices on the heap as seedDefaults does. Also setTemp throughput on each backend.
+    */
+    static void mappedRestart() throws Exception {
+        header("Restart with 1M devices: mapped state file vs re-seeding");
+        int n = 1_000_000;
+        DeviceKind[] kinds = DeviceKind.values();
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("hub", ".state");
+        try {
+            try (MappedDeviceStateStore store = MappedDeviceStateStore.open(file)) {
+                for (int id = 0; id < n; id++) store.allocate(kinds[id % 3], id);
+            }
+            long t0 = System.nanoTime();
+            MappedDeviceStateStore store = MappedDeviceStateStore.open(file);
+            long opened = System.nanoTime();
+            SmartHub restored = new SmartHub();
+            store.forEachSlot(slot -> {
+                StoredDevice d = new StoredDevice(store, slot);
+                d.setLogging(false);
+                restored.registerDevice(d);
+            });
+            long registered = System.nanoTime();
+
+            long s0 = System.nanoTime();
+            SmartHub seeded = new SmartHub();
+            for (int id = 0; id < n; id++) {
+                Device d;
+                switch (kinds[id % 3]) {
+                    case LIGHT: d = new Light(id); break;
+                    case THERMOSTAT: d = new Thermostat(id, 70); break;
+                    default: d = new DoorLock(id);
+                }
+                DeviceProxy p = new DeviceProxy(d);
+                p.setLogging(false);
+                seeded.registerDevice(p);
+            }
+            long s1 = System.nanoTime();
+            System.out.printf("%-28s %10.1f ms%n", "open mapped file", (opened - t0) / 1e6);
+            System.out.printf("%-28s %10.1f ms%n", "open + register views", (registered - t0) / 1e6);
+            System.out.printf("%-28s %10.1f ms%n", "re-seed heap devices", (s1 - s0) / 1e6);
+
+            double mapped = rate(() -> {
+                for (int i = 0; i < 1_000_000; i++) restored.executeCommand(1 + 3 * (i % 100_000), CommandCode.SET_TEMP, 60 + (i & 15));
+            }, 5) * 1_000_000;
+            double heap = rate(() -> {
+                for (int i = 0; i < 1_000_000; i++) seeded.executeCommand(1 + 3 * (i % 100_000), CommandCode.SET_TEMP, 60 + (i & 15));
+            }, 5) * 1_000_000;
+            System.out.printf("%-28s %10.0f /s%n", "setTemp, mapped", mapped);
+            System.out.printf("%-28s %10.0f /s%n", "setTemp, heap", heap);
+            store.close();
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+
+    // -------------------- Write-ahead command log --------------------
+    /*
+     turnOn/turnOff throughput on a striped hub with no log and with each durability mode.
+     SYNC pays one fsync per command; GROUP_COMMIT shares each fsync among the threads
+     waiting on it, so it gains with concurrency; ASYNC waits for no fsync at all.
+    */
+    static void commandLogDurability() throws Exception {
+        header("Command log: commands/sec by durability mode");
+        int devices = 4096;
+        System.out.printf("%-14s %14s %14s%n", "durability", "1 thread", "8 threads");
+        List<CommandLog.Durability> modes = new ArrayList<>();
+        modes.add(null);
+        modes.addAll(Arrays.asList(CommandLog.Durability.values()));
+        for (CommandLog.Durability mode : modes) {
+            double[] rates = new double[2];
+            int[] threadCounts = {1, 8};
+            for (int i = 0; i < threadCounts.length; i++) {
+                SmartHub hub = hubWithLights(new SmartHub(new StripedDeviceRegistry()), devices);
+                java.nio.file.Path file = java.nio.file.Files.createTempFile("hub", ".wal");
+                java.nio.file.Files.delete(file);
+                CommandLog log = mode == null ? null : CommandLog.open(file, mode);
+                try {
+                    hub.setCommandLog(log);
+                    runToggle(hub, threadCounts[i], devices, 200, false); // warmup
+                    rates[i] = runToggle(hub, threadCounts[i], devices, 1000, false);
+                } finally {
+                    if (log != null) log.close();
+                    java.nio.file.Files.deleteIfExists(file);
+                }
+            }
+            System.out.printf("%-14s %14.0f %14.0f%n", mode == null ? "no log" : mode, rates[0], rates[1]);
+        }
+    }
+
+    // -------------------- Snapshots --------------------
+    /*
+     Writes a snapshot of a 1M-device hub (plus schedules and DSL triggers) and loads it into
+     a fresh striped hub, against rebuilding the same devices by replaying a command log of one
+     deviceAdded record per device. Only one 1M-device hub is live at a time, so collections
+     of the others do not land in the timings. Then a checkpoint of a hub whose log holds 1M
+     commands.
+    */
+    static void snapshotLoad() throws Exception {
+        header("Snapshot of a 1M-device hub: write, load, compact");
+        int n = 1_000_000;
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("hub");
+        java.nio.file.Path snap = dir.resolve("hub.snap"), wal = dir.resolve("hub.wal");
+        try {
+            SmartHub hub = snapshotHub(n);
+            HubSnapshot.write(hub, snap); // warmup
+            long t0 = System.nanoTime();
+            HubSnapshot.Summary written = HubSnapshot.write(hub, snap);
+            System.out.printf("%-28s %10.1f ms  (%s)%n", "write snapshot", (System.nanoTime() - t0) / 1e6, written);
+            try (CommandLog log = CommandLog.open(wal, CommandLog.Durability.ASYNC)) {
+                for (DeviceProxy d : hub.listDevices()) log.deviceAdded(d.getId(), DeviceKind.of(d.getType()), d.getTemperature());
+            }
+            hub = null;
+
+            double replay = Double.MAX_VALUE, load = Double.MAX_VALUE;
+            for (int run = 0; run < 3; run++) replay = Math.min(replay, timedReplay(wal));
+            SmartHub loaded = null;
+            for (int run = 0; run < 3; run++) {
+                loaded = null;
+                usedHeap();
+                long l0 = System.nanoTime();
+                loaded = new SmartHub(new StripedDeviceRegistry());
+                HubSnapshot.load(snap, loaded, QUIET);
+                load = Math.min(load, (System.nanoTime() - l0) / 1e6);
+            }
+            System.out.printf("%-28s %10.1f ms  (best of 3)%n", "replay deviceAdded log", replay);
+            System.out.printf("%-28s %10.1f ms  (best of 3, %d devices)%n", "load snapshot", load, loaded.listDevices().size());
+
+            java.nio.file.Files.delete(wal);
+            try (CommandLog log = CommandLog.open(wal, CommandLog.Durability.ASYNC)) {
+                loaded.setCommandLog(log);
+                for (int i = 0; i < n; i++) loaded.executeCommand(1 + 3 * (i % 300_000), CommandCode.SET_TEMP, 60 + (i & 15));
+                long c0 = System.nanoTime();
+                new SnapshotCompactor(loaded, snap, log, 0).checkpoint();
+                System.out.printf("%-28s %10.1f ms  (log of %d records -> %d bytes)%n", "checkpoint + compact",
+                        (System.nanoTime() - c0) / 1e6, log.mark(), java.nio.file.Files.size(wal));
+                loaded.setCommandLog(null);
+            }
+        } finally {
+            java.nio.file.Files.deleteIfExists(snap);
+            java.nio.file.Files.deleteIfExists(wal);
+            java.nio.file.Files.deleteIfExists(dir);
+        }
+    }
+
+    // Heap devices without the per-command console log
+    private static final HubSnapshot.DeviceMaker QUIET = (kind, id, temperature) -> {
+        DeviceProxy p = HubSnapshot.HEAP.make(kind, id, temperature);
+        p.setLogging(false);
+        return p;
+    };
+
+    // Milliseconds to rebuild a hub from a log; the hub is garbage again when this returns
+    private static double timedReplay(java.nio.file.Path wal) throws Exception {
+        usedHeap();
+        long r0 = System.nanoTime();
+        SmartHub replayed = new SmartHub(new StripedDeviceRegistry());
+        CommandLog.replay(wal, new CommandLog.Replayer() {
+            public void command(int deviceId, CommandCode code, double value) { replayed.replayCommand(deviceId, code, value); }
+            public void deviceAdded(int deviceId, DeviceKind kind, double temperature) {
+                replayed.registerDevice(QUIET.make(kind, deviceId, temperature));
+            }
+            public void deviceRemoved(int deviceId) { replayed.unregisterDevice(deviceId); }
+        });
+        return (System.nanoTime() - r0) / 1e6;
+    }
+
+    private static SmartHub snapshotHub(int n) {
+        DeviceKind[] kinds = DeviceKind.values();
+        SmartHub hub = new SmartHub(new StripedDeviceRegistry());
+        for (int id = 0; id < n; id++) hub.registerDevice(QUIET.make(kinds[id % 3], id, 60 + id % 20));
+        for (int i = 0; i < 1000; i++) hub.addSchedule(new ScheduleEntry(3 * i, "every " + (5 + i % 50) + "m", "turnOn(" + 3 * i + ")"));
+        for (int i = 0; i < 100; i++) {
+            hub.addTrigger(TriggerCondition.compile("device " + (3 * i + 1) + " temperature > 75 and device " + (3 * i + 2) + " unlocked", hub)
+                    .toTrigger(List.of("lock(" + (3 * i + 2) + ")")));
+        }
+        return hub;
+    }
+
+    // -------------------- REPL dispatch --------------------
+    /*
+     Tokenizing and finding the command for a mix of console lines, handlers reduced to reading
+     their arguments: the old startsWith chain with regex splits versus ReplLine plus the
+     command table. Commands early in the old chain (turnOn) are cheap either way; those near
+     its end paid for every test before them.
+    */
+    static long replSink;
+
+    static void replDispatch() throws Exception {
+        header("REPL dispatch: if-chain + split vs tokenizer + command table");
+        String[] names = {"listDevices", "statusReport", "turnOn", "turnOff", "lock", "unlock", "setTemp",
+                "setSchedule", "runSchedulesAt", "startScheduler", "stopScheduler", "schedulerStats", "addTrigger",
+                "addDevice", "removeDevice", "showSchedules", "showTriggers", "showCascadeStats", "snapshot", "help", "exit"};
+        ReplCommandTable table = new ReplCommandTable();
+        for (String name : names) {
+            String schema = name.equals("setTemp") ? "id:int temp:number"
+                    : name.equals("addDevice") ? "id:int type:word temperature:number?"
+                    : name.equals("setSchedule") ? "deviceId:int schedule:text"
+                    : name.startsWith("turn") || name.endsWith("ock") || name.equals("removeDevice") ? "id:int" : "";
+            table.register(new ReplCommand(name, schema, "", a -> replSink += a.has(0) ? a.intArg(0) : 1));
+        }
+        String[] lines = {"turnOn 1", "setTemp 2 71.5", "unlock 3", "removeDevice 7", "addDevice 9 light",
+                "setSchedule 1 every 15m turnOn(1)", "showCascadeStats", "turnOff 1"};
+        ReplLine tokens = new ReplLine();
+        ReplArgs args = new ReplArgs();
+        int n = 1_000_000;
+        Workload tabled = () -> {
+            for (int i = 0; i < n; i++) {
+                String line = lines[i & 7];
+                ReplLine l = tokens.parse(line);
+                ReplCommand c = table.lookup(line, l.start(0), l.start(0) + l.length(0));
+                c.handler.run(args.bind(c, l));
+            }
+        };
+        Workload chain = () -> {
+            for (int i = 0; i < n; i++) legacyDispatch(lines[i & 7]);
+        };
+        for (Object[] mode : new Object[][]{{"if-chain", chain}, {"table", tabled}}) {
+            Workload w = (Workload) mode[1];
+            double perSec = rate(w, 3) * n;
+            long a0 = allocatedBytes();
+            w.run();
+            double bytes = (allocatedBytes() - a0) / (double) n;
+            System.out.printf("%-10s %12.0f lines/s %8.1f bytes/line%n", mode[0], perSec, bytes);
+        }
+    }
+
+    // The shape of SmartHomeSystem.repl()'s dispatch before the command table
+    private static void legacyDispatch(String line) {
+        if (line.equalsIgnoreCase("exit")) { replSink++; return; }
+        if (line.equalsIgnoreCase("help")) { replSink++; return; }
+        if (line.equalsIgnoreCase("listDevices")) { replSink++; return; }
+        if (line.equalsIgnoreCase("statusReport")) { replSink++; return; }
+        if (line.startsWith("turnOn ")) { replSink += Integer.parseInt(line.split("\\s+")[1]); return; }
+        if (line.startsWith("turnOff ")) { replSink += Integer.parseInt(line.split("\\s+")[1]); return; }
+        if (line.startsWith("lock ")) { replSink += Integer.parseInt(line.split("\\s+")[1]); return; }
+        if (line.startsWith("unlock ")) { replSink += Integer.parseInt(line.split("\\s+")[1]); return; }
+        if (line.startsWith("setTemp ")) {
+            String[] tok = line.split("\\s+");
+            replSink += Integer.parseInt(tok[1]) + (long) Double.parseDouble(tok[2]);
+            return;
+        }
+        if (line.startsWith("setSchedule ")) {
+            String[] split = line.split("\\s+");
+            StringBuilder rest = new StringBuilder();
+            for (int j = 2; j < split.length; j++) rest.append(j > 2 ? " " : "").append(split[j]);
+            replSink += Integer.parseInt(split[1]) + rest.length();
+            return;
+        }
+        if (line.startsWith("runSchedulesAt ")) { replSink += line.split("\\s+")[1].length(); return; }
+        if (line.startsWith("addTrigger ")) { replSink += line.substring(11).split("(?i)\\s+action\\s+").length; return; }
+        if (line.startsWith("addDevice ")) { replSink += Integer.parseInt(line.split("\\s+")[1]); return; }
+        if (line.startsWith("removeDevice ")) { replSink += Integer.parseInt(line.split("\\s+")[1]); return; }
+        if (line.equals("showSchedules")) { replSink++; return; }
+        if (line.equals("showTriggers")) { replSink++; return; }
+        if (line.equals("startScheduler")) { replSink++; return; }
+        if (line.equals("stopScheduler")) { replSink++; return; }
+        if (line.equals("schedulerStats")) { replSink++; return; }
+        if (line.equals("snapshot")) { replSink++; return; }
+        if (line.equals("showCascadeStats")) { replSink++; return; }
+        replSink--;
+    }
+
+    // -------------------- Logging --------------------
+    /*
+     What a log line costs the thread that writes it. Disabled: the old unconditional printf
+     against a Logger call that fails its level check (with and without an isEnabled guard).
+     Enabled: one write per line (what an autoflushing System.out does) against handing lines
+     to an AsyncLogAppender that writes them in batches. Enabled output goes to a temp file.
+    */
+    static void loggingCost() throws Exception {
+        header("Logging: disabled-call cost and sync vs async appenders");
+        PrintStream nul = new PrintStream(OutputStream.nullOutputStream(), true);
+        Logger log = new Logger("Bench", LogLevel.WARN);
+        int n = 2_000_000;
+        String kind = "light";
+        Workload printf = () -> {
+            for (int i = 0; i < n; i++) nul.printf("[Proxy] Executing %s on Device %d (%s)%n", "turnOn", i, kind);
+        };
+        Workload disabled = () -> {
+            for (int i = 0; i < n; i++) log.info("Executing {} on Device {} ({})", "turnOn", i, kind);
+        };
+        Workload guarded = () -> {
+            for (int i = 0; i < n; i++) {
+                if (log.isEnabled(LogLevel.INFO)) log.info("Executing {} on Device {} ({})", "turnOn", i, kind);
+            }
+        };
+        for (Object[] mode : new Object[][]{{"printf", printf}, {"disabled", disabled}, {"guarded", guarded}}) {
+            Workload w = (Workload) mode[1];
+            double perSec = rate(w, 3) * n;
+            long a0 = allocatedBytes();
+            w.run();
+            double bytes = (allocatedBytes() - a0) / (double) n;
+            System.out.printf("%-10s %8.1f ns/call %8.1f bytes/call%n", mode[0], 1e9 / perSec, bytes);
+        }
+
+        // Enabled: the same records to a file, flushed per line (as System.out does) or per async batch.
+        // For async, "caller" is the logging thread's rate and "drained" includes waiting for the writer.
+        log.setLevel(LogLevel.INFO);
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("hub-log", ".txt");
+        LogAppender previous = Log.appender();
+        int lines = 500_000;
+        try (java.io.FileOutputStream sink = new java.io.FileOutputStream(file.toFile())) {
+            PrintStream console = new PrintStream(new BufferedOutputStream(sink, 8192), true);
+            Log.setAppender(console::println);
+            double sync = rate(() -> {
+                for (int i = 0; i < lines; i++) log.info("Executing {} on Device {} ({})", "turnOn", i, kind);
+            }, 3) * lines;
+            System.out.printf("%-10s %12.0f lines/s%n", "sync", sync);
+            for (int run = 0; run < 4; run++) {
+                AsyncLogAppender async = new AsyncLogAppender(new StreamLogAppender(sink, OutputStream.nullOutputStream()), 65536, 4096);
+                Log.setAppender(async);
+                long t0 = System.nanoTime();
+                for (int i = 0; i < lines; i++) log.info("Executing {} on Device {} ({})", "turnOn", i, kind);
+                long t1 = System.nanoTime();
+                async.close();
+                long t2 = System.nanoTime();
+                if (run == 0) continue; // warmup
+                System.out.printf("%-10s %12.0f lines/s caller %12.0f lines/s drained (%.0f lines/flush)%n", "async",
+                        lines / ((t1 - t0) / 1e9), lines / ((t2 - t0) / 1e9), async.records() / (double) async.batches());
+            }
+        } finally {
+            Log.setAppender(previous);
+            java.nio.file.Files.delete(file);
+        }
+    }
+
+    // -------------------- Hot-path regression suite --------------------
+    /*
+     A small fixed-iteration harness in the spirit of JMH, without the dependency: each
+     benchmark gets warmup iterations, then timed iterations for throughput (with allocated
+     bytes and GC counts from the MX beans), then a sampling pass that times every operation
+     for latency percentiles. Each hub shape in the parameter grid is built once; a benchmark
+     only runs for the parameters it depends on, so e.g. createDevice is measured once.
+    */
+    interface SuiteOp { void run(int i) throws Exception; }
+
+    static final class SuiteBench {
+        final String name;
+        final Set<String> params; // which grid parameters change what this benchmark measures
+        final java.util.function.Function<SuiteHub, SuiteOp> setup;
+
+        SuiteBench(String name, String params, java.util.function.Function<SuiteHub, SuiteOp> setup) {
+            this.name = name;
+            this.params = Set.of(params.split(","));
+            this.setup = setup;
+        }
+    }
+
+    // One point of the parameter grid: a hub with mixed devices, triggers, schedules and observers
+    static final class SuiteHub {
+        final int devices, triggers, schedules, observers;
+        final SmartHub hub = new SmartHub();
+        final int[] lights, thermostats;
+        final HubObserver[] observerArray;
+        long observed;
+
+        SuiteHub(int devices, int triggers, int schedules, int observers) {
+            this.devices = devices;
+            this.triggers = triggers;
+            this.schedules = schedules;
+            this.observers = observers;
+            // ids 1..devices: light, thermostat, door lock in turn, built through the factory
+            List<DeviceProxy> built = new ArrayList<>(devices);
+            int[] l = new int[devices], t = new int[devices];
+            int nl = 0, nt = 0;
+            for (int id = 1; id <= devices; id++) {
+                String type = SUITE_TYPES[id % 3];
+                DeviceProxy p = new DeviceProxy(DeviceFactory.createDevice(Map.of("id", Integer.toString(id), "type", type)));
+                p.setLogging(false);
+                built.add(p);
+                if (id % 3 == 0) l[nl++] = id;
+                else if (id % 3 == 1) t[nt++] = id;
+            }
+            hub.registerDevices(built);
+            lights = Arrays.copyOf(l, nl);
+            thermostats = Arrays.copyOf(t, nt);
+            // triggers watch the first WATCHED thermostats round-robin and never fire: their cost is the evaluation
+            List<TriggerEntry> rules = new ArrayList<>(triggers);
+            for (int i = 0; i < triggers && thermostats.length > 0; i++) {
+                int watched = thermostats[i % Math.min(WATCHED, thermostats.length)];
+                DeviceProxy d = hub.getDevice(watched).orElseThrow();
+                rules.add(new TriggerEntry("t" + i, h -> d.getTemperature() > 1000,
+                        List.of("turnOff(" + watched + ")"), TriggerDependencies.onDevices(watched)));
+            }
+            hub.addTriggers(rules);
+            Random rnd = new Random(42);
+            for (int i = 0; i < schedules && lights.length > 0; i++) {
+                int id = lights[rnd.nextInt(lights.length)];
+                hub.addSchedule(new ScheduleEntry(id, ScheduleEntry.formatMinuteOfDay(rnd.nextInt(ScheduleBucket.MINUTES_PER_DAY)),
+                        (rnd.nextBoolean() ? "turnOn(" : "turnOff(") + id + ")"));
+            }
+            observerArray = new HubObserver[observers];
+            for (int i = 0; i < observers; i++) {
+                observerArray[i] = e -> observed++;
+                hub.addObserver(observerArray[i], HubEventType.STATE_CHANGE);
+            }
+        }
+
+        String label() {
+            return devices + "/" + triggers + "/" + schedules + "/" + observers;
+        }
+    }
+
+    private static final String[] SUITE_TYPES = {"light", "thermostat", "door"};
+    private static final int WATCHED = 64;
+    static long suiteSink;
+
+    static final List<SuiteBench> SUITE = List.of(
+            // opcode dispatch plus whatever listens: observers and triggers watching the device
+            new SuiteBench("executeCommand", "devices,triggers,observers", h -> {
+                int[] ids = h.thermostats;
+                return i -> h.hub.executeCommand(ids[i % ids.length], CommandCode.SET_TEMP, 60 + (i & 7));
+            }),
+            // commands on watched thermostats only: each evaluates about triggers / WATCHED triggers
+            new SuiteBench("evaluateTriggers", "devices,triggers", h -> {
+                int[] ids = h.thermostats;
+                int watched = Math.min(WATCHED, ids.length);
+                return i -> h.hub.executeCommand(ids[i % watched], CommandCode.SET_TEMP, 60 + (i & 7));
+            }),
+            // what an ad-hoc action string costs: compile, then dispatch
+            new SuiteBench("parseAndExecuteAction", "devices", h -> {
+                String[] actions = new String[1024];
+                for (int k = 0; k < actions.length; k++) {
+                    int id = h.lights[k % h.lights.length];
+                    actions[k] = ((k & 1) == 0 ? "turnOn(" : "turnOff(") + id + ")";
+                }
+                return i -> {
+                    ActionPlan plan = ActionPlan.compile(actions[i & 1023]);
+                    h.hub.executeCommand(plan.deviceId, plan.code, plan.value);
+                };
+            }),
+            // one minute tick: that minute's bucket of schedules (about schedules / 1440 of them)
+            new SuiteBench("runSchedulesAt", "devices,schedules", h ->
+                    i -> suiteSink += h.hub.runSchedulesAt(i % ScheduleBucket.MINUTES_PER_DAY)),
+            // the dispatch notifyAllObservers performs for one event
+            new SuiteBench("notifyAllObservers", "observers", h -> {
+                SyncObserverDispatcher dispatcher = new SyncObserverDispatcher();
+                HubEvent event = new HubEvent(HubEventType.STATE_CHANGE, Map.of("deviceId", 1));
+                return i -> dispatcher.dispatch(event, h.observerArray);
+            }),
+            new SuiteBench("createDevice", "", h -> {
+                List<Map<String, String>> props = new ArrayList<>();
+                for (int k = 0; k < 3; k++) props.add(Map.of("id", Integer.toString(k + 1), "type", SUITE_TYPES[k]));
+                return i -> suiteSink += DeviceFactory.createDevice(props.get(i % 3)).getId();
+            }));
+
+    static void hotPathSuite(Map<String, String> params) throws Exception {
+        header("Hot-path suite: throughput, latency and allocation per operation");
+        int[] deviceCounts = intList(params.getOrDefault("devices", "1000,100000"));
+        int[] triggerCounts = intList(params.getOrDefault("triggers", "0,1000"));
+        int[] scheduleCounts = intList(params.getOrDefault("schedules", "1440,144000"));
+        int[] observerCounts = intList(params.getOrDefault("observers", "0,8"));
+        Set<String> benches = params.containsKey("bench")
+                ? new HashSet<>(Arrays.asList(params.get("bench").split(","))) : null;
+        int warmups = Integer.parseInt(params.getOrDefault("warmups", "5"));
+        int iterations = Integer.parseInt(params.getOrDefault("iterations", "5"));
+        long millis = Long.parseLong(params.getOrDefault("millis", "200"));
+        PrintStream csv = params.containsKey("csv")
+                ? new PrintStream(new java.io.FileOutputStream(params.get("csv"), true), true) : null;
+
+        // schedules log a line per run; the suite measures the hub, not the console
+        Logger hubLog = Log.get("Hub");
+        LogLevel hubLevel = hubLog.level();
+        Log.setLevel("Hub", LogLevel.OFF);
+        System.out.printf("%-22s %-26s %14s %9s %9s %9s %10s %6s%n", "benchmark", "dev/trig/sched/obs",
+                "ops/s (+-%)", "p50 ns", "p99 ns", "p999 ns", "B/op", "gcs");
+        try {
+            for (int devices : deviceCounts)
+                for (int triggers : triggerCounts)
+                    for (int schedules : scheduleCounts)
+                        for (int observers : observerCounts) {
+                            SuiteHub hub = null;
+                            for (SuiteBench b : SUITE) {
+                                if (benches != null && !benches.contains(b.name)) continue;
+                                // measure a benchmark once per distinct value of the parameters it uses
+                                if (!b.params.contains("devices") && devices != deviceCounts[0]) continue;
+                                if (!b.params.contains("triggers") && triggers != triggerCounts[0]) continue;
+                                if (!b.params.contains("schedules") && schedules != scheduleCounts[0]) continue;
+                                if (!b.params.contains("observers") && observers != observerCounts[0]) continue;
+                                if (hub == null) hub = new SuiteHub(devices, triggers, schedules, observers);
+                                Object[] row = measure(b, hub, warmups, iterations, millis);
+                                System.out.printf("%-22s %-26s %9.0f +-%2.0f%% %9d %9d %9d %10.1f %6d%n", row);
+                                if (csv != null) csv.printf(Locale.ROOT, "%s,%s,%.0f,%.1f,%d,%d,%d,%.2f,%d%n", row);
+                            }
+                        }
+        } finally {
+            Log.setLevel("Hub", hubLevel);
+            if (csv != null) csv.close();
+        }
+    }
+
+    // benchmark, hub label, ops/s, spread %, p50, p99, p999 ns, bytes/op, collections
+    private static Object[] measure(SuiteBench b, SuiteHub h, int warmups, int iterations, long millis) throws Exception {
+        SuiteOp op = b.setup.apply(h);
+        for (int w = 0; w < warmups; w++) timedIteration(op, millis);
+        List<java.lang.management.GarbageCollectorMXBean> gcs = java.lang.management.ManagementFactory.getGarbageCollectorMXBeans();
+        long gc0 = gcCount(gcs), alloc0 = allocatedBytes(), ops = 0;
+        double[] rates = new double[iterations];
+        for (int it = 0; it < iterations; it++) {
+            long t0 = System.nanoTime();
+            long n = timedIteration(op, millis);
+            rates[it] = n / ((System.nanoTime() - t0) / 1e9);
+            ops += n;
+        }
+        double bytesPerOp = (allocatedBytes() - alloc0) / (double) ops;
+        long gcCount = gcCount(gcs) - gc0;
+        double mean = Arrays.stream(rates).average().orElse(0);
+        double spread = mean == 0 ? 0 : 100 * (Arrays.stream(rates).max().orElse(0) - Arrays.stream(rates).min().orElse(0)) / 2 / mean;
+
+        // latency: time each call; the sample count follows throughput, bounded to 20k..1M
+        int samples = (int) Math.max(20_000, Math.min(1_000_000, mean * millis / 1000));
+        long[] lat = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            long t0 = System.nanoTime();
+            op.run(i);
+            lat[i] = System.nanoTime() - t0;
+        }
+        Arrays.sort(lat);
+        return new Object[]{b.name, h.label(), mean, spread,
+                lat[samples / 2], lat[(int) (samples * 0.99)], lat[(int) (samples * 0.999)], bytesPerOp, gcCount};
+    }
+
+    // Runs batches of operations until the time is up; returns how many ran
+    private static long timedIteration(SuiteOp op, long millis) throws Exception {
+        long end = System.nanoTime() + millis * 1_000_000;
+        long n = 0;
+        do {
+            for (int k = 0; k < 256; k++) op.run((int) (n + k));
+            n += 256;
+        } while (System.nanoTime() < end);
+        return n;
+    }
+
+    private static long gcCount(List<java.lang.management.GarbageCollectorMXBean> gcs) {
+        long n = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : gcs) n += Math.max(0, gc.getCollectionCount());
+        return n;
+    }
+
+    private static int[] intList(String csv) {
+        return Arrays.stream(csv.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+}
@@ -0,0 +1,435 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ HubLoadGenerator.java
+ Synthetic smart-home load for reproducing production traffic offline, and for soak runs.
+
+ Build and run next to SmartHomeSystem.java:
+   javac -Xlint:all -Xlint:-auxiliaryclass -d out SmartHomeSystem.java HubTests.java HubBenchmarks.java HubLoadGenerator.java
+   (the shared build command, see HubBenchmarks)
+   java -cp out HubLoadGenerator lights=3000 thermostats=1000 locks=1000 rate=20000 duration=600
+
+ The hub is built through DeviceFactory, with DSL triggers on thermostats and daily schedules
+ on lights. Workers then issue the command mix open-loop: command i is due at
+ start + i / rate no matter how long earlier commands took, and its latency is measured
+ from that due time. A stalled hub therefore shows up as the queueing delay every later
+ command would have seen, instead of silently lowering the offered rate (coordinated
+ omission). Service time (from the actual start) is reported next to it for comparison.
+ A ticker runs runSchedulesAt for one simulated minute per tick, on its own timeline.
+
+ Keys (key=value):
+   lights, thermostats, locks   devices of each kind (3000, 1000, 1000)
+   triggers, schedules          "device N temperature > 85" triggers, daily schedules (1000, 10000)
+   rate                         target commands/s over all workers (20000)
+   threads                      workers sharing the rate (1)
+   mix                          command weights (turnOn:30,turnOff:30,setTemp:30,lock:5,unlock:5)
+   tick                         wall-clock milliseconds per simulated minute (1000)
+   duration, warmup, report     seconds: whole run, excluded from totals, between reports (60, 5, 10)
+   log                          log levels while loaded, as for --log-level (warn)
+ Interval lines show latency, trigger evaluations and heap; a summary follows at the end.
+*/
+public class HubLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Usage: java HubLoadGenerator [key=value ...] (see the header of HubLoadGenerator.java)");
+                System.exit(2);
+            }
+            params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        HubLoadGenerator generator;
+        try {
+            generator = new HubLoadGenerator(params);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[Load] " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        generator.run();
+    }
+
+    private final int lights, thermostats, locks, triggers, schedules, threads;
+    private final double rate;
+    private final long tickMillis, durationNanos, warmupNanos, reportNanos;
+    private final CommandCode[] mixCodes;
+    private final int[] mixWeights; // cumulative
+    private final SmartHub hub = new SmartHub();
+    private int[] lightIds, thermostatIds, lockIds;
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final LatencyHistogram tickTotal = new LatencyHistogram(); // written by the ticker, read after it ends
+    private volatile boolean measuring;
+
+    HubLoadGenerator(Map<String, String> params) {
+        lights = intParam(params, "lights", 3000);
+        thermostats = intParam(params, "thermostats", 1000);
+        locks = intParam(params, "locks", 1000);
+        triggers = intParam(params, "triggers", 1000);
+        schedules = intParam(params, "schedules", 10_000);
+        threads = intParam(params, "threads", 1);
+        rate = Double.parseDouble(params.getOrDefault("rate", "20000"));
+        tickMillis = intParam(params, "tick", 1000);
+        durationNanos = TimeUnit.SECONDS.toNanos(intParam(params, "duration", 60));
+        warmupNanos = TimeUnit.SECONDS.toNanos(intParam(params, "warmup", 5));
+        reportNanos = TimeUnit.SECONDS.toNanos(intParam(params, "report", 10));
+        if (rate <= 0 || threads < 1 || tickMillis < 1 || reportNanos <= 0) {
+            throw new IllegalArgumentException("rate, threads, tick and report must be positive");
+        }
+        Log.configure(params.getOrDefault("log", "warn"));
+
+        String[] parts = params.getOrDefault("mix", "turnOn:30,turnOff:30,setTemp:30,lock:5,unlock:5").split(",");
+        mixCodes = new CommandCode[parts.length];
+        mixWeights = new int[parts.length];
+        int total = 0;
+        for (int i = 0; i < parts.length; i++) {
+            String[] kv = parts[i].trim().split(":");
+            if (kv.length != 2) throw new IllegalArgumentException("mix entries are command:weight, got " + parts[i]);
+            mixCodes[i] = CommandCode.resolve(kv[0].trim());
+            total += Integer.parseInt(kv[1].trim());
+            mixWeights[i] = total;
+        }
+        if (total <= 0) throw new IllegalArgumentException("mix weights must add up to more than 0");
+    }
+
+    private static int intParam(Map<String, String> params, String key, int def) {
+        return params.containsKey(key) ? Integer.parseInt(params.get(key)) : def;
+    }
+
+    // -------------------- Hub setup --------------------
+    private void buildHub() {
+        long t0 = System.nanoTime();
+        List<DeviceProxy> batch = new ArrayList<>(lights + thermostats + locks);
+        lightIds = addDevices(batch, "light", lights, 1);
+        thermostatIds = addDevices(batch, "thermostat", thermostats, 1 + lights);
+        lockIds = addDevices(batch, "doorlock", locks, 1 + lights + thermostats);
+        hub.registerDevices(batch);
+
+        // setTemp draws 60..90, so a trigger's thermostat is over 85 about a sixth of the time
+        Random rnd = new Random(42);
+        List<TriggerEntry> rules = new ArrayList<>(triggers);
+        for (int i = 0; i < triggers && thermostatIds.length > 0 && lightIds.length > 0; i++) {
+            int thermostat = thermostatIds[rnd.nextInt(thermostatIds.length)];
+            int light = lightIds[rnd.nextInt(lightIds.length)];
+            rules.add(TriggerCondition.compile("device " + thermostat + " temperature > 85", hub)
+                    .toTrigger(List.of("turnOff(" + light + ")")));
+        }
+        hub.addTriggers(rules); // one index copy for the whole set
+        for (int i = 0; i < schedules && lightIds.length > 0; i++) {
+            int light = lightIds[rnd.nextInt(lightIds.length)];
+            String time = ScheduleEntry.formatMinuteOfDay(rnd.nextInt(ScheduleBucket.MINUTES_PER_DAY));
+            hub.addSchedule(new ScheduleEntry(light, time, (rnd.nextBoolean() ? "turnOn(" : "turnOff(") + light + ")"));
+        }
+        System.out.printf("[Load] hub: %d lights, %d thermostats, %d locks, %d triggers, %d schedules in %.0f ms%n",
+                lights, thermostats, locks, triggers, schedules, (System.nanoTime() - t0) / 1e6);
+    }
+
+    private static int[] addDevices(List<DeviceProxy> batch, String type, int count, int firstId) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = firstId + i;
+            DeviceProxy p = new DeviceProxy(DeviceFactory.createDevice(Map.of("id", Integer.toString(ids[i]), "type", type)));
+            p.setLogging(false);
+            batch.add(p);
+        }
+        return ids;
+    }
+
+    // -------------------- Open-loop workers --------------------
+    /*
+     Worker w of n owns commands w, w + n, w + 2n, ... of the global timeline. Histograms are
+     recorded under the worker's lock, after the end timestamp, so the reporter can swap
+     interval counts out without stopping the worker.
+    */
+    private final class Worker extends Thread {
+        final int index;
+        final long start;
+        final double periodNanos;
+        final SplittableRandom rnd;
+        final LatencyHistogram response = new LatencyHistogram(), service = new LatencyHistogram();
+        final LatencyHistogram responseTotal = new LatencyHistogram(), serviceTotal = new LatencyHistogram();
+        final AtomicLong completed = new AtomicLong();
+        long errors;
+
+        Worker(int index, long start) {
+            super("load-" + index);
+            setDaemon(true);
+            this.index = index;
+            this.start = start;
+            this.periodNanos = 1e9 / rate;
+            this.rnd = new SplittableRandom(index * 7919L + 17);
+        }
+
+        @Override
+        public void run() {
+            long end = start + durationNanos;
+            for (long i = index; ; i += threads) {
+                long due = start + (long) (i * periodNanos);
+                if (due >= end) return;
+                waitUntil(due);
+                long began = System.nanoTime();
+                try {
+                    issue();
+                } catch (RuntimeException e) {
+                    errors++;
+                }
+                long done = System.nanoTime();
+                synchronized (this) {
+                    response.record(done - due);
+                    service.record(done - began);
+                }
+                completed.incrementAndGet();
+            }
+        }
+
+        private void issue() {
+            int pick = rnd.nextInt(mixWeights[mixWeights.length - 1]);
+            int k = 0;
+            while (pick >= mixWeights[k]) k++;
+            CommandCode code = mixCodes[k];
+            int[] ids = code.attribute == DeviceAttribute.POWER ? lightIds
+                    : code.attribute == DeviceAttribute.TEMPERATURE ? thermostatIds : lockIds;
+            if (ids.length == 0) return;
+            hub.executeCommand(ids[rnd.nextInt(ids.length)], code, code.takesValue() ? 60 + rnd.nextInt(31) : 0);
+        }
+
+        // Moves this interval's counts into the caller's histograms (and the totals after warmup)
+        synchronized void drainInto(LatencyHistogram responses, LatencyHistogram services, boolean total) {
+            responses.add(response);
+            services.add(service);
+            if (total) {
+                responseTotal.add(response);
+                serviceTotal.add(service);
+            }
+            response.reset();
+            service.reset();
+        }
+    }
+
+    // One simulated minute per tick, also open-loop: a late tick counts from when it was due
+    private Thread startTicker(long start) {
+        Thread t = new Thread(() -> {
+            long end = start + durationNanos;
+            long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+            for (long i = 1; ; i++) {
+                long due = start + i * tickNanos;
+                if (due >= end) return;
+                waitUntil(due);
+                hub.runSchedulesAt((int) (i % ScheduleBucket.MINUTES_PER_DAY));
+                if (measuring) tickTotal.record(System.nanoTime() - due);
+            }
+        }, "load-ticker");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // Parks for long waits, spins for the last stretch so short periods stay accurate
+    private static void waitUntil(long due) {
+        long left;
+        while ((left = due - System.nanoTime()) > 0) {
+            if (left > 100_000) LockSupport.parkNanos(left - 50_000);
+            else Thread.onSpinWait();
+        }
+    }
+
+    // -------------------- Run and report --------------------
+    void run() throws InterruptedException {
+        buildHub();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        CascadeStats cascades = hub.getCascadeStats();
+        System.out.printf("[Load] %.0f commands/s on %d thread(s) for %d s (warmup %d s), mix %s%n", rate, threads,
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+                describeMix());
+        System.out.printf("%8s %10s %9s %9s %9s %9s %11s %9s %9s %8s %6s%n", "t(s)", "cmds/s", "p50 us", "p99 us",
+                "p999 us", "max us", "evaluated", "fired", "heap MB", "gc ms", "gcs");
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+        for (int w = 0; w < threads; w++) workers.add(new Worker(w, start));
+        for (Worker w : workers) w.start();
+        Thread ticker = startTicker(start);
+
+        long lastCompleted = 0, lastEvaluated = cascades.triggersEvaluated(), lastFired = cascades.triggersFired();
+        long lastGcCount = gcCount(gcs), lastGcMillis = gcMillis(gcs);
+        long evaluatedAtWarmup = lastEvaluated, firedAtWarmup = lastFired;
+        long heapMin = Long.MAX_VALUE, heapMax = 0;
+        long lastReport = start, measuredFrom = 0;
+        LatencyHistogram interval = new LatencyHistogram(), intervalService = new LatencyHistogram();
+        for (long at = start + reportNanos; ; at += reportNanos) {
+            boolean last = at >= start + durationNanos;
+            if (last) {
+                for (Worker w : workers) w.join();
+                ticker.join();
+            } else {
+                waitUntil(at);
+            }
+            long now = System.nanoTime();
+            boolean warm = now - start > warmupNanos;
+            boolean counted = measuring;
+            interval.reset();
+            intervalService.reset();
+            for (Worker w : workers) w.drainInto(interval, intervalService, counted);
+            if (!counted && warm) { // totals start at the first report after the warmup
+                measuring = true;
+                measuredFrom = now; // the totals cover exactly what is drained after this report
+                evaluatedAtWarmup = cascades.triggersEvaluated();
+                firedAtWarmup = cascades.triggersFired();
+            }
+
+            long completed = completed(), evaluated = cascades.triggersEvaluated(), fired = cascades.triggersFired();
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            if (counted) {
+                heapMin = Math.min(heapMin, heap);
+                heapMax = Math.max(heapMax, heap);
+            }
+            long gcCount = gcCount(gcs), gcMillis = gcMillis(gcs);
+            System.out.printf("%8.1f %10.0f %9.1f %9.1f %9.1f %9.1f %11d %9d %9.1f %8d %6d%s%n",
+                    (now - start) / 1e9, (completed - lastCompleted) / ((now - lastReport) / 1e9),
+                    interval.percentile(50) / 1e3, interval.percentile(99) / 1e3, interval.percentile(99.9) / 1e3,
+                    interval.max() / 1e3, evaluated - lastEvaluated, fired - lastFired, heap / 1048576.0,
+                    gcMillis - lastGcMillis, gcCount - lastGcCount, counted ? "" : "  (warmup)");
+            lastCompleted = completed;
+            lastEvaluated = evaluated;
+            lastFired = fired;
+            lastGcCount = gcCount;
+            lastGcMillis = gcMillis;
+            lastReport = now;
+            if (last) {
+                summary(measuring ? now - measuredFrom : 0, evaluated - evaluatedAtWarmup,
+                        fired - firedAtWarmup, heapMin, heapMax, gcs);
+                return;
+            }
+        }
+    }
+
+    private void summary(long measuredNanos, long evaluated, long fired, long heapMin, long heapMax,
+                         List<GarbageCollectorMXBean> gcs) {
+        LatencyHistogram response = new LatencyHistogram(), service = new LatencyHistogram();
+        long errors = 0;
+        for (Worker w : workers) {
+            response.add(w.responseTotal);
+            service.add(w.serviceTotal);
+            errors += w.errors;
+        }
+        long commands = response.count();
+        double measuredSeconds = Math.max(1e-9, measuredNanos / 1e9);
+        CascadeStats stats = hub.getCascadeStats();
+        System.out.println();
+        System.out.printf("[Load] after warmup: %d commands in %.1f s = %.0f/s (target %.0f/s), %d failed%n",
+                commands, measuredSeconds, commands / measuredSeconds, rate, errors);
+        printLatency("response (from due time)", response);
+        printLatency("service (from start)", service);
+        printLatency("schedule tick lateness", tickTotal);
+        System.out.printf("[Load] triggers: %d evaluated (%.2f per command), %d fired; cascades %s%n",
+                evaluated, evaluated / (double) Math.max(1, commands), fired, stats);
+        System.out.printf("[Load] heap used at reports: %.1f..%.1f MB of %.1f MB max; GC %d collections, %d ms total%n",
+                heapMin == Long.MAX_VALUE ? 0 : heapMin / 1048576.0, heapMax / 1048576.0,
+                Runtime.getRuntime().maxMemory() / 1048576.0, gcCount(gcs), gcMillis(gcs));
+    }
+
+    private static void printLatency(String name, LatencyHistogram h) {
+        System.out.printf("[Load] %-25s n=%d p50=%.1f us p99=%.1f us p999=%.1f us max=%.1f us mean=%.1f us%n", name,
+                h.count(), h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3,
+                h.max() / 1e3, h.mean() / 1e3);
+    }
+
+    private long completed() {
+        long n = 0;
+        for (Worker w : workers) n += w.completed.get();
+        return n;
+    }
+
+    private String describeMix() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mixCodes.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(mixCodes[i].label).append(':').append(mixWeights[i] - (i == 0 ? 0 : mixWeights[i - 1]));
+        }
+        return sb.toString();
+    }
+
+    private static long gcCount(List<GarbageCollectorMXBean> gcs) {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : gcs) n += Math.max(0, gc.getCollectionCount());
+        return n;
+    }
+
+    private static long gcMillis(List<GarbageCollectorMXBean> gcs) {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : gcs) n += Math.max(0, gc.getCollectionTime());
+        return n;
+    }
+}
+
+/*
+ Log-bucketed latency histogram in nanoseconds: values below 2^SUB_BITS are exact, larger ones
+ fall into 2^(SUB_BITS-1) linear sub-buckets per power of two, so a reported percentile is at
+ most 1/64 (1.6%) above the recorded value. Fixed size (3.7k buckets), no allocation per record.
+ Not thread-safe; callers serialize access.
+*/
+final class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+
+    private final long[] counts = new long[(64 - SUB_BITS + 2) * HALF];
+    private long count, sum, max;
+
+    void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts[index(v)]++;
+        count++;
+        sum += v;
+        if (v > max) max = v;
+    }
+
+    static int index(long v) {
+        if (v < 2 * HALF) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1); // v >>> shift is in [HALF, 2 * HALF)
+        return shift * HALF + (int) (v >>> shift);
+    }
+
+    // Largest value that maps to this bucket
+    static long highestEquivalent(int index) {
+        if (index < 2 * HALF) return index;
+        int shift = index / HALF - 1;
+        long sub = index - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = sum = max = 0;
+    }
+
+    long count() { return count; }
+    long max() { return max; }
+    double mean() { return count == 0 ? 0 : sum / (double) count; }
+
+    // The value at or below which the given percentage of recorded values fall; 0 when empty
+    long percentile(double percent) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestEquivalent(i), max);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,739 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ HubTests.java
+ Self-checking tests for SmartHomeSystem.java (no external dependencies). Every check that
+ fails is reported and the run exits with status 1, so it can gate a build.
+
+ Build and run next to SmartHomeSystem.java:
+   javac -Xlint:all -Xlint:-auxiliaryclass -d out SmartHomeSystem.java HubTests.java HubBenchmarks.java HubLoadGenerator.java
+   java -cp out HubTests [group ...]
+ (the shared build command, see HubBenchmarks)
+ The alloc group reads HotSpot's per-thread allocation counter, so it needs a HotSpot-based JDK.
+
+ With no arguments every group runs. Groups: alloc, registry, batch, typeindex, intmap, statefile, wal, snapshot,
+ recurrence, schedules, triggers, treap, logging.
+*/
+public class HubTests {
+
+    public static void main(String[] args) throws Exception {
+        Log.setDefaultLevel(LogLevel.OFF); // the hub's INFO lines would bury the results
+        Set<String> selected = new HashSet<>(Arrays.asList(args));
+        boolean all = selected.isEmpty();
+        if (all || selected.contains("alloc")) run("alloc", HubTests::allocationFreeCommands);
+        if (all || selected.contains("registry")) run("registry", HubTests::registries);
+        if (all || selected.contains("batch")) run("batch", HubTests::batchEvent);
+        if (all || selected.contains("typeindex")) run("typeindex", HubTests::typeIndexUnderChurn);
+        if (all || selected.contains("intmap")) run("intmap", HubTests::intMapMatchesHashMap);
+        if (all || selected.contains("statefile")) run("statefile", HubTests::stateFileRoundTrip);
+        if (all || selected.contains("wal")) run("wal", HubTests::commandLogReplay);
+        if (all || selected.contains("snapshot")) run("snapshot", HubTests::snapshotRoundTrip);
+        if (all || selected.contains("recurrence")) run("recurrence", HubTests::recurrenceParsing);
+        if (all || selected.contains("schedules")) run("schedules", HubTests::scheduleOrder);
+        if (all || selected.contains("triggers")) run("triggers", HubTests::triggerLanguage);
+        if (all || selected.contains("triggers")) run("triggerbatch", HubTests::triggerBatches);
+        if (all || selected.contains("treap")) run("treap", HubTests::temperatureIndex);
+        if (all || selected.contains("logging")) run("logging", HubTests::asyncLogOrder);
+        System.out.printf("%n%d groups, %d checks, %d failed%n", groups, checks, failures);
+        if (failures != 0) System.exit(1);
+    }
+
+    // -------------------- Helpers --------------------
+    interface Test { void run() throws Exception; }
+
+    private static int groups, checks, failures;
+
+    // A group stops at its first exception; failed checks are counted and the group goes on
+    private static void run(String name, Test test) {
+        groups++;
+        int before = failures;
+        try {
+            test.run();
+        } catch (Throwable t) {
+            failures++;
+            System.out.println("  FAIL " + name + ": " + t);
+        }
+        System.out.printf("%-12s %s%n", name, failures == before ? "ok" : "FAILED");
+    }
+
+    static void check(boolean ok, String what) {
+        checks++;
+        if (ok) return;
+        failures++;
+        System.out.println("  FAIL " + what);
+    }
+
+    static void checkEquals(Object expected, Object actual, String what) {
+        check(Objects.equals(expected, actual), what + ": expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    static void checkThrows(Class<? extends Throwable> type, Test code, String what) {
+        try {
+            code.run();
+            check(false, what + ": expected " + type.getSimpleName());
+        } catch (Throwable t) {
+            check(type.isInstance(t), what + ": expected " + type.getSimpleName() + " but got " + t);
+        }
+    }
+
+    static DeviceProxy quiet(Device device) {
+        DeviceProxy p = new DeviceProxy(device);
+        p.setLogging(false);
+        return p;
+    }
+
+    static DeviceProxy device(SmartHub hub, int id) {
+        return hub.getDevice(id).orElseThrow(() -> new AssertionError("device " + id + " is not registered"));
+    }
+
+    // Bytes allocated by the calling thread so far (HotSpot's ThreadMXBean extension)
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // -------------------- Allocation-free command path --------------------
+    /*
+     With proxy logging off, one observer and one (non-firing) trigger, turnOn/turnOff (by name
+     and by CommandCode) and numeric setTemp must not allocate once compiled.
+    */
+    static void allocationFreeCommands() throws Exception {
+        SmartHub hub = new SmartHub();
+        for (int id = 1; id <= 1000; id++) hub.registerDevice(quiet(new Light(id)));
+        hub.registerDevice(quiet(new Thermostat(5000, 70)));
+        long[] seen = new long[1];
+        hub.addObserver(e -> seen[0]++);
+        Thermostat watched = new Thermostat(5001, 70);
+        hub.addTrigger(new TriggerEntry("never", h -> watched.getTemperature() > 1000, List.of("turnOff(1)")));
+
+        checkNoAllocation("turnOn/turnOff", () -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                hub.executeCommand(1 + (i % 1000), (i & 1) == 0 ? "turnOn" : "turnOff");
+            }
+        }, 1_000_000);
+        checkNoAllocation("opcode TURN_ON/OFF", () -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                hub.executeCommand(1 + (i % 1000), (i & 1) == 0 ? CommandCode.TURN_ON : CommandCode.TURN_OFF);
+            }
+        }, 1_000_000);
+        checkNoAllocation("setTemp(double)", () -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                hub.executeCommand(5000, "setTemp", 60 + (i & 15));
+            }
+        }, 1_000_000);
+        check(seen[0] > 0, "observer saw the commands");
+    }
+
+    private static void checkNoAllocation(String name, Test work, long ops) throws Exception {
+        for (int i = 0; i < 5; i++) work.run();                 // warmup until compiled
+        long before = allocatedBytes();
+        work.run();
+        double perOp = (double) (allocatedBytes() - before) / ops;
+        check(perOp < 0.01, String.format("%s allocates %.4f bytes/op", name, perOp)); // a few bytes of noise, not per-op garbage
+    }
+
+    // -------------------- Device registries --------------------
+    static void registries() throws Exception {
+        for (DeviceRegistry r : List.of(new SimpleDeviceRegistry(), new StripedDeviceRegistry(4))) {
+            String name = r.getClass().getSimpleName();
+            DeviceProxy a = quiet(new Light(7)), b = quiet(new Light(7));
+            checkEquals(null, r.put(a), name + " put into empty slot");
+            checkEquals(a, r.put(b), name + " put returns the replaced proxy");
+            checkEquals(b, r.get(7), name + " get after replace");
+            checkEquals(1, r.size(), name + " size after replace");
+            checkEquals(null, r.get(8), name + " get of a missing id");
+            checkEquals(b, r.remove(7), name + " remove returns the proxy");
+            checkEquals(null, r.remove(7), name + " second remove");
+            checkEquals(0, r.size(), name + " size after remove");
+        }
+
+        // Threads register and remove disjoint id ranges; nothing may be lost or left behind
+        StripedDeviceRegistry striped = new StripedDeviceRegistry();
+        int threads = 8, perThread = 20_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            Thread w = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int id = base; id < base + perThread; id++) striped.put(quiet(new Light(id)));
+                for (int id = base; id < base + perThread; id += 2) striped.remove(id);
+            });
+            w.start();
+            workers.add(w);
+        }
+        start.countDown();
+        for (Thread w : workers) w.join();
+        checkEquals(threads * perThread / 2, striped.size(), "striped size after concurrent put/remove");
+        int wrong = 0;
+        for (int id = 0; id < threads * perThread; id++) {
+            DeviceProxy p = striped.get(id);
+            if ((id & 1) == 0 ? p != null : p == null || p.getId() != id) wrong++;
+        }
+        checkEquals(0, wrong, "striped ids in the wrong state");
+        checkEquals(threads * perThread / 2, striped.values().size(), "striped values()");
+    }
+
+    // -------------------- Batch commands --------------------
+    // The batch event lists the applied commands only, and the caller may reuse its list
+    static void batchEvent() {
+        SmartHub hub = new SmartHub();
+        hub.registerDevice(quiet(new Light(1)));
+        hub.registerDevice(quiet(new Light(2)));
+        List<Object> seen = new ArrayList<>();
+        hub.addObserver(e -> seen.add(e.payload.get("commands")), HubEventType.STATE_CHANGE_BATCH);
+        List<HubCommand> batch = new ArrayList<>(List.of(HubCommand.of(1, CommandCode.TURN_ON),
+                HubCommand.of(99, CommandCode.TURN_ON), HubCommand.of(2, CommandCode.TURN_ON)));
+        HubCommand first = batch.get(0), last = batch.get(2);
+        BatchResult result = hub.executeBatch(batch);
+        batch.clear();
+        checkEquals(2, result.getApplied(), "applied commands");
+        checkEquals(1, result.getFailures().size(), "failed commands");
+        checkEquals(1, result.getFailures().get(0).index, "failed index");
+        check(result.failed(1) && !result.failed(0) && !result.failed(2), "failed(i)");
+        checkEquals(List.of(List.of(first, last)), seen, "event commands after the caller cleared its list");
+        check(device(hub, 1).isOn() && device(hub, 2).isOn(), "both lights on");
+    }
+
+    /*
+     Commands race re-registration, removal and batch registration of the same ids on a striped
+     hub; afterwards the type index counts must match the registered devices' actual state.
+    */
+    static void typeIndexUnderChurn() throws Exception {
+        SmartHub hub = new SmartHub(new StripedDeviceRegistry(4));
+        int ids = 64;
+        for (int id = 1; id <= ids; id++) {
+            hub.registerDevice(quiet(new Light(id)));
+            hub.registerDevice(quiet(new DoorLock(ids + id)));
+        }
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int w = 0; w < 4; w++) {
+            int seed = w;
+            workers.add(new Thread(() -> {
+                Random rnd = new Random(seed);
+                while (System.nanoTime() < deadline) {
+                    int id = 1 + rnd.nextInt(ids);
+                    try {
+                        switch (seed == 0 ? rnd.nextInt(3) : 3 + rnd.nextInt(2)) {
+                            case 0: {
+                                DeviceProxy p = quiet(new Light(id));
+                                if (rnd.nextBoolean()) p.execute(CommandCode.TURN_ON);
+                                hub.registerDevice(p);
+                                break;
+                            }
+                            case 1: {
+                                List<DeviceProxy> batch = new ArrayList<>();
+                                for (int i = 0; i < 8; i++) {
+                                    DeviceProxy door = quiet(new DoorLock(ids + 1 + rnd.nextInt(ids)));
+                                    if (rnd.nextBoolean()) door.execute(CommandCode.UNLOCK);
+                                    batch.add(door);
+                                }
+                                hub.registerDevices(batch);
+                                break;
+                            }
+                            case 2:
+                                hub.unregisterDevice(id);
+                                break;
+                            case 3:
+                                hub.executeCommand(id, rnd.nextBoolean() ? CommandCode.TURN_ON : CommandCode.TURN_OFF);
+                                break;
+                            default:
+                                hub.executeCommand(ids + id, rnd.nextBoolean() ? CommandCode.LOCK : CommandCode.UNLOCK);
+                        }
+                    } catch (NoSuchElementException e) {
+                        // unregistered by the churn thread: expected
+                    } catch (Throwable t) {
+                        errors.add(t);
+                        return;
+                    }
+                }
+            }));
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        checkEquals(List.of(), errors, "errors from the worker threads");
+        int lights = 0, on = 0, doors = 0, locked = 0;
+        for (DeviceProxy p : hub.listDevices()) {
+            if (p.getType().equals("light")) {
+                lights++;
+                if (p.isOn()) on++;
+            } else {
+                doors++;
+                if (p.isLocked()) locked++;
+            }
+        }
+        checkEquals(lights, hub.typeIndex("light").size(), "light index size");
+        checkEquals(on, hub.typeIndex("light").poweredOn(), "lights counted as on");
+        checkEquals(doors, hub.typeIndex("door").size(), "door index size");
+        checkEquals(locked, hub.typeIndex("door").locked(), "doors counted as locked");
+    }
+
+    // Random puts and removes (with collisions and resizes) against java.util.HashMap
+    static void intMapMatchesHashMap() {
+        Random rnd = new Random(42);
+        IntObjectMap<Integer> map = new IntObjectMap<>(4);
+        Map<Integer, Integer> expected = new HashMap<>();
+        int mismatches = 0;
+        for (int i = 0; i < 200_000; i++) {
+            int key = rnd.nextInt(4096) - 2048;      // negative keys and 0 included
+            if (rnd.nextInt(3) == 0) {
+                if (!Objects.equals(expected.remove(key), map.remove(key))) mismatches++;
+            } else {
+                if (!Objects.equals(expected.put(key, i), map.put(key, i))) mismatches++;
+            }
+            if (!Objects.equals(expected.get(key), map.get(key))) mismatches++;
+        }
+        checkEquals(0, mismatches, "IntObjectMap results differing from HashMap");
+        checkEquals(expected.size(), map.size(), "IntObjectMap size");
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            if (!e.getValue().equals(map.get(e.getKey()))) mismatches++;
+        }
+        checkEquals(0, mismatches, "IntObjectMap entries missing after the run");
+        List<Integer> values = new ArrayList<>(map.values());
+        List<Integer> wanted = new ArrayList<>(expected.values());
+        Collections.sort(values);
+        Collections.sort(wanted);
+        checkEquals(wanted, values, "IntObjectMap values()");
+        checkThrows(RuntimeException.class, () -> map.put(1, null), "IntObjectMap rejects null values");
+    }
+
+    // -------------------- Memory-mapped state file --------------------
+    // State written through StoredDevice views is there after the file is closed and reopened
+    static void stateFileRoundTrip() throws Exception {
+        Path file = Files.createTempFile("hubtest", ".state");
+        Files.delete(file); // open() creates it
+        try {
+            try (MappedDeviceStateStore store = MappedDeviceStateStore.open(file)) {
+                SmartHub hub = new SmartHub();
+                hub.registerDevice(new StoredDevice(store, DeviceKind.LIGHT, 1));
+                hub.registerDevice(new StoredDevice(store, DeviceKind.THERMOSTAT, 2));
+                hub.registerDevice(new StoredDevice(store, DeviceKind.DOOR, 3));
+                StoredDevice gone = new StoredDevice(store, DeviceKind.LIGHT, 4);
+                hub.registerDevice(gone);
+                hub.executeCommand(1, CommandCode.TURN_ON);
+                hub.executeCommand(2, CommandCode.SET_TEMP, 64.5);
+                hub.executeCommand(3, CommandCode.UNLOCK);
+                ((StoredDevice) hub.unregisterDevice(4)).release();
+                checkEquals(3, store.size(), "live records before close");
+            }
+            try (MappedDeviceStateStore store = MappedDeviceStateStore.open(file)) {
+                checkEquals(3, store.size(), "live records after reopen");
+                SmartHub hub = new SmartHub();
+                store.forEachSlot(slot -> hub.registerDevice(new StoredDevice(store, slot)));
+                checkEquals(3, hub.listDevices().size(), "restored devices");
+                check(hub.getDevice(4).isEmpty(), "released record stays released");
+                checkEquals("Light 1 is On", device(hub, 1).statusReport(), "light state");
+                checkEquals(64.5, device(hub, 2).getTemperature(), "thermostat temperature");
+                checkEquals("thermostat", device(hub, 2).getType(), "thermostat type");
+                check(!device(hub, 3).isLocked(), "door stays unlocked");
+                long bytes = Files.size(file);
+                new StoredDevice(store, DeviceKind.DOOR, 5);  // reuses the released record
+                checkEquals(4, store.size(), "live records after reuse");
+                checkEquals(bytes, Files.size(file), "file size after reusing a record");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // -------------------- Command log --------------------
+    // Records come back in order; a torn or corrupt tail ends replay and is cut off on reopen
+    static void commandLogReplay() throws Exception {
+        Path file = Files.createTempFile("hubtest", ".wal");
+        Files.delete(file);
+        try {
+            try (CommandLog log = CommandLog.open(file, CommandLog.Durability.SYNC)) {
+                log.deviceAdded(1, DeviceKind.LIGHT, Double.NaN);
+                log.append(1, CommandCode.TURN_ON, 0);
+                log.deviceAdded(2, DeviceKind.THERMOSTAT, 70);
+                log.append(2, CommandCode.SET_TEMP, 68.5);
+                log.deviceRemoved(1);
+            }
+            List<String> expected = List.of("add 1 LIGHT NaN", "1 TURN_ON 0.0", "add 2 THERMOSTAT 70.0",
+                    "2 SET_TEMP 68.5", "remove 1");
+            checkEquals(expected, replay(file), "replayed records");
+
+            Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7}, StandardOpenOption.APPEND); // torn record
+            checkEquals(expected, replay(file), "replay ignores a torn tail");
+
+            // Flip a payload byte of the last record: its CRC no longer matches
+            byte[] bytes = Files.readAllBytes(file);
+            int last = CommandLog.HEADER_BYTES + 4 * CommandLog.RECORD_BYTES;
+            bytes[last + 4] ^= 0x40;
+            Files.write(file, bytes);
+            checkEquals(expected.subList(0, 4), replay(file), "replay stops at a corrupt record");
+
+            try (CommandLog log = CommandLog.open(file, CommandLog.Durability.SYNC)) {
+                log.append(2, CommandCode.SET_TEMP, 72);
+            }
+            checkEquals((long) CommandLog.HEADER_BYTES + 5 * CommandLog.RECORD_BYTES, Files.size(file),
+                    "reopen cuts the bad tail before appending");
+            List<String> reopened = new ArrayList<>(expected.subList(0, 4));
+            reopened.add("2 SET_TEMP 72.0");
+            checkEquals(reopened, replay(file), "records after reopen");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        // A missing log replays nothing
+        checkEquals(List.of(), replay(file), "replay of a missing log");
+    }
+
+    private static List<String> replay(Path file) throws Exception {
+        List<String> out = new ArrayList<>();
+        long n = CommandLog.replay(file, new CommandLog.Replayer() {
+            @Override
+            public void command(int deviceId, CommandCode code, double value) {
+                out.add(deviceId + " " + code + " " + value);
+            }
+
+            @Override
+            public void deviceAdded(int deviceId, DeviceKind kind, double temperature) {
+                out.add("add " + deviceId + " " + kind + " " + temperature);
+            }
+
+            @Override
+            public void deviceRemoved(int deviceId) {
+                out.add("remove " + deviceId);
+            }
+        });
+        checkEquals((long) out.size(), n, "replay() count");
+        return out;
+    }
+
+    // -------------------- Snapshots --------------------
+    // Devices (state and allowed commands), schedules and DSL triggers survive write + load
+    static void snapshotRoundTrip() throws Exception {
+        SmartHub hub = new SmartHub();
+        hub.registerDevice(quiet(new Light(1)));
+        hub.registerDevice(quiet(new Thermostat(2, 70)));
+        hub.registerDevice(quiet(new DoorLock(3)));
+        device(hub, 3).setAllowedCommands(EnumSet.of(CommandCode.UNLOCK));
+        hub.executeCommand(1, CommandCode.TURN_ON);
+        hub.executeCommand(2, CommandCode.SET_TEMP, 72.5);
+        hub.executeCommand(3, CommandCode.UNLOCK);
+        hub.addSchedule(new ScheduleEntry(1, "weekdays 07:30", "turnOff(1)"));
+        hub.addSchedule(new ScheduleEntry(2, "every 15m", "setTemp(2, 68)"));
+        hub.addTrigger(TriggerCondition.compile("device 2 temperature > 75 and not any door locked", hub)
+                .toTrigger(List.of("turnOff(1)")));
+        hub.addTrigger(new TriggerEntry("code only", h -> false, List.of("turnOn(1)"))); // no source: skipped
+
+        Path file = Files.createTempFile("hubtest", ".snap");
+        try {
+            HubSnapshot.Summary written = HubSnapshot.write(hub, file);
+            checkEquals(3, written.devices, "devices written");
+            checkEquals(1, written.skippedTriggers, "code-only triggers skipped");
+
+            SmartHub loaded = new SmartHub();
+            HubSnapshot.Summary read = HubSnapshot.load(file, loaded, HubSnapshot.HEAP);
+            checkEquals(written.bytes, read.bytes, "bytes read");
+            List<String> before = new ArrayList<>(), after = new ArrayList<>();
+            for (int id = 1; id <= 3; id++) {
+                before.add(device(hub, id).statusReport());
+                after.add(device(loaded, id).statusReport());
+            }
+            checkEquals(before, after, "device states");
+            check(device(loaded, 3).isAllowed(CommandCode.UNLOCK), "door keeps UNLOCK");
+            check(!device(loaded, 3).isAllowed(CommandCode.LOCK), "door still refuses LOCK");
+            check(device(loaded, 1).isAllowed(CommandCode.TURN_OFF), "light allows every command");
+            checkEquals(hub.listSchedules().toString(), loaded.listSchedules().toString(), "schedules");
+            checkEquals(1, loaded.listTriggers().size(), "triggers loaded");
+            checkEquals("device 2 temperature > 75 and not any door locked", loaded.listTriggers().get(0).source.source,
+                    "trigger source");
+            checkEquals(List.of("turnOff(1)"), loaded.listTriggers().get(0).getActions(), "trigger actions");
+
+            // The loaded trigger watches the loaded hub's devices
+            loaded.executeCommand(2, CommandCode.SET_TEMP, 80);
+            check(!device(loaded, 1).isOn(), "loaded trigger fires on the loaded hub");
+            check(device(hub, 1).isOn(), "original hub untouched");
+
+            // A damaged file registers nothing
+            byte[] bytes = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+            SmartHub empty = new SmartHub();
+            checkThrows(java.io.IOException.class, () -> HubSnapshot.load(file, empty, HubSnapshot.HEAP),
+                    "truncated snapshot");
+            checkEquals(0, empty.listDevices().size(), "nothing registered from a truncated snapshot");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // -------------------- Recurrences --------------------
+    static void recurrenceParsing() {
+        Recurrence weekdays = Recurrence.parse("weekdays 07:30");
+        check(weekdays.firesAt(7 * 60 + 30) && weekdays.minutesPerDay() == 1, "weekdays 07:30 fires once, at 07:30");
+        Recurrence every15 = Recurrence.parse("every 15m");
+        checkEquals(96, every15.minutesPerDay(), "every 15m fires per day");
+        check(every15.firesAt(0) && every15.firesAt(15) && !every15.firesAt(20), "every 15m minutes");
+        checkEquals(12, Recurrence.parse("every 2h").minutesPerDay(), "every 2h fires per day");
+        checkEquals(1440, Recurrence.parse("every 1m").minutesPerDay(), "every 1m fires per day");
+        checkEquals(4, Recurrence.parse("cron */30 7-8 * * *").minutesPerDay(), "cron */30 7-8 fires per day");
+
+        // Day rules against a full year, compared with java.time's own calendar
+        Map<String, java.util.function.Predicate<LocalDate>> rules = new LinkedHashMap<>();
+        rules.put("weekdays 07:30", d -> d.getDayOfWeek().getValue() <= 5);
+        rules.put("weekends 09:00", d -> d.getDayOfWeek().getValue() >= 6);
+        rules.put("mon,wed,fri 18:00", d -> EnumSet.of(DayOfWeek.MONDAY, DayOfWeek.WEDNESDAY, DayOfWeek.FRIDAY)
+                .contains(d.getDayOfWeek()));
+        rules.put("fri-mon 18:00", d -> d.getDayOfWeek().getValue() >= 5 || d.getDayOfWeek() == DayOfWeek.MONDAY);
+        rules.put("cron 0 7 * * 1-5", d -> d.getDayOfWeek().getValue() <= 5);
+        rules.put("cron 0 7 * * 0", d -> d.getDayOfWeek() == DayOfWeek.SUNDAY);
+        rules.put("cron 0 7 * * 7", d -> d.getDayOfWeek() == DayOfWeek.SUNDAY);
+        rules.put("cron 0 7 */2 * 1", d -> d.getDayOfMonth() % 2 == 1 && d.getDayOfWeek() == DayOfWeek.MONDAY);
+        rules.put("cron 0 7 1 * */3", d -> d.getDayOfMonth() == 1 && d.getDayOfWeek().getValue() % 7 % 3 == 0);
+        rules.put("cron 0 7 1,15 * 5", d -> d.getDayOfMonth() == 1 || d.getDayOfMonth() == 15
+                || d.getDayOfWeek() == DayOfWeek.FRIDAY);
+        rules.put("cron 0 7 29 2 *", d -> d.getMonthValue() == 2 && d.getDayOfMonth() == 29);
+        rules.put("cron 0 7 * 6-8 *", d -> d.getMonthValue() >= 6 && d.getMonthValue() <= 8);
+        for (Map.Entry<String, java.util.function.Predicate<LocalDate>> rule : rules.entrySet()) {
+            Recurrence r = Recurrence.parse(rule.getKey());
+            int wrong = 0;
+            for (LocalDate d = LocalDate.of(2024, 1, 1); d.getYear() == 2024; d = d.plusDays(1)) {
+                if (r.firesOn(d) != rule.getValue().test(d)) wrong++;
+            }
+            checkEquals(0, wrong, "days " + rule.getKey() + " gets wrong in 2024");
+        }
+
+        // nextFireAfter is strictly after, and skips days the rule excludes
+        Recurrence daily = Recurrence.parse("daily 07:30");
+        long at = LocalDateTime.of(2026, 10, 16, 7, 30).toInstant(ZoneOffset.UTC).toEpochMilli(); // a Friday
+        checkEquals(at + 24 * 3_600_000L, daily.nextFireAfter(at, ZoneOffset.UTC), "daily: next day at 07:30");
+        checkEquals(at + 3 * 24 * 3_600_000L, weekdays.nextFireAfter(at, ZoneOffset.UTC), "weekdays: Friday to Monday");
+        checkEquals(at + 60_000L * 15, every15.nextFireAfter(at, ZoneOffset.UTC), "every 15m: next quarter hour");
+        checkEquals(LocalDateTime.of(2028, 2, 29, 7, 0).toInstant(ZoneOffset.UTC).toEpochMilli(),
+                Recurrence.parse("cron 0 7 29 2 *").nextFireAfter(at, ZoneOffset.UTC), "cron: next leap day");
+
+        for (String bad : List.of("", "25:00", "7:3", "every 0m", "every 25h", "every soon", "funday 07:00",
+                "mon-xyz 07:00", "cron 0 7 * *", "cron 60 * * * *", "cron 0 24 * * *", "cron 0 7 0 * *",
+                "cron 0 7 * 13 *", "cron 0 7 * * 8", "cron 0 7 5-1 * *", "cron 0 7 */0 * *", "cron 0 7 31 2 *",
+                "daily 07:30 extra")) {
+            checkThrows(IllegalArgumentException.class, () -> Recurrence.parse(bad), "invalid schedule '" + bad + "'");
+        }
+    }
+
+    // Minute buckets and the frequent list run in registration order at each minute
+    static void scheduleOrder() {
+        SmartHub hub = new SmartHub();
+        hub.registerDevice(quiet(new Light(1)));
+        hub.addSchedule(new ScheduleEntry(1, "07:30", "turnOn(1)"));
+        hub.addSchedule(new ScheduleEntry(1, "every 1m", "turnOff(1)"));
+        hub.addSchedule(new ScheduleEntry(1, "07:30", "turnOn(1)"));
+        hub.addSchedule(new ScheduleEntry(1, "every 1m", "turnOff(1)"));
+        checkEquals(4, hub.runSchedulesAt(7 * 60 + 30), "entries due at 07:30");
+        check(!device(hub, 1).isOn(), "last registered entry wins at 07:30");
+        hub.executeCommand(1, CommandCode.TURN_ON);
+        checkEquals(2, hub.runSchedulesAt(7 * 60 + 31), "entries due at 07:31");
+        check(!device(hub, 1).isOn(), "every 1m ran at 07:31");
+        checkEquals(4, hub.listSchedules().size(), "listSchedules");
+        checkThrows(IllegalArgumentException.class, () -> hub.runSchedulesAt(1440), "minute out of range");
+        checkThrows(IllegalArgumentException.class, () -> new ScheduleEntry(1, "07:30", "explode(1)"), "bad action");
+    }
+
+    // -------------------- Trigger language --------------------
+    static void triggerLanguage() {
+        SmartHub hub = new SmartHub();
+        hub.registerDevice(quiet(new Light(1)));
+        hub.registerDevice(quiet(new Thermostat(2, 70)));
+        hub.registerDevice(quiet(new DoorLock(3)));
+        hub.registerDevice(quiet(new Light(4)));
+
+        // light 1 off, thermostat at 70, door locked, light 4 off
+        checkCondition(hub, "device 2 temperature > 69", true);
+        checkCondition(hub, "device 2 temperature >= 70 AND device 2 temperature <= 70", true);
+        checkCondition(hub, "device 2 temperature == 70 && device 2 temperature != 70", false);
+        checkCondition(hub, "device 1 is on or device 3 is locked", true);
+        checkCondition(hub, "device 1 on or device 2 temperature < 0 and device 1 off", false); // AND binds tighter
+        checkCondition(hub, "(device 1 on or device 2 temperature < 100) and device 1 off", true);
+        checkCondition(hub, "not device 1 on and ! device 4 on", true);
+        checkCondition(hub, "not not device 3 locked", true);
+        checkCondition(hub, "device 3 unlocked", false);
+        checkCondition(hub, "any light on", false);
+        checkCondition(hub, "all light off", true);
+        checkCondition(hub, "all door locked", true);
+        checkCondition(hub, "temperature > 65", true);
+        checkCondition(hub, "any thermostat temperature < 65", false);
+
+        hub.executeCommand(4, CommandCode.TURN_ON);
+        hub.executeCommand(2, CommandCode.SET_TEMP, 60);
+        checkCondition(hub, "any light on", true);
+        checkCondition(hub, "all light on", false);
+        checkCondition(hub, "any thermostat temperature < 65", true);
+        checkCondition(hub, "all thermostat temperature <= 60", true);
+
+        for (String bad : List.of("", "device", "device x on", "device 1", "device 1 sparkles", "device 99 on",
+                "device 1 temperature > 5", "device 2 temperature", "device 2 temperature > hot",
+                "device 2 temperature => 5", "(device 1 on", "device 1 on)", "device 1 on and", "any on",
+                "all light", "device 1 on device 4 on")) {
+            checkThrows(IllegalArgumentException.class, () -> TriggerCondition.compile(bad, hub),
+                    "invalid condition '" + bad + "'");
+        }
+
+        // A device atom follows the id, not the proxy it saw at compile time
+        TriggerCondition light1 = TriggerCondition.compile("device 1 on", hub);
+        hub.unregisterDevice(1);
+        check(!light1.predicate.test(hub), "unregistered device atom is false");
+        DeviceProxy replacement = quiet(new Light(1));
+        replacement.execute(CommandCode.TURN_ON);
+        hub.registerDevice(replacement);
+        check(light1.predicate.test(hub), "device atom reads the re-registered device");
+        hub.unregisterDevice(1);
+        hub.registerDevice(quiet(new DoorLock(1)));
+        check(!light1.predicate.test(hub), "device atom is false while the id is another type");
+
+        // A compiled trigger fires through the hub and runs its actions
+        hub.unregisterDevice(1);
+        hub.registerDevice(quiet(new Light(1)));
+        hub.addTrigger(TriggerCondition.compile("device 2 temperature > 80", hub).toTrigger(List.of("turnOn(1)")));
+        hub.executeCommand(2, CommandCode.SET_TEMP, 75);
+        check(!device(hub, 1).isOn(), "trigger quiet below its threshold");
+        hub.executeCommand(2, CommandCode.SET_TEMP, 85);
+        check(device(hub, 1).isOn(), "trigger fires above its threshold");
+    }
+
+    // A batch builds the same index as adding the triggers one by one, and is all-or-nothing
+    static void triggerBatches() {
+        Random rnd = new Random(11);
+        List<TriggerEntry> rules = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int a = rnd.nextInt(50), b = rnd.nextInt(50);
+            TriggerDependencies deps;
+            switch (i % 4) {
+                case 0: deps = TriggerDependencies.onDevices(a); break;
+                case 1: deps = TriggerDependencies.onDevices(a, b, a); break; // repeated ids
+                case 2: deps = TriggerDependencies.ANY; break;
+                default: deps = TriggerCondition.compile("any light on", new SmartHub()).dependencies;
+            }
+            rules.add(new TriggerEntry("t" + i, h -> false, List.of("turnOn(1)"), deps));
+        }
+        TriggerIndex oneByOne = new TriggerIndex();
+        for (TriggerEntry t : rules) oneByOne = oneByOne.with(t);
+        TriggerIndex batched = new TriggerIndex().with(rules.get(0)).withAll(rules.subList(1, rules.size()));
+        int wrong = 0;
+        for (int id = 0; id < 50; id++) {
+            if (!Arrays.equals(oneByOne.forDevice(id), batched.forDevice(id))) wrong++;
+        }
+        for (DeviceAttribute a : DeviceAttribute.values()) {
+            if (!Arrays.equals(oneByOne.forAttribute(a), batched.forAttribute(a))) wrong++;
+        }
+        if (!Arrays.equals(oneByOne.unconstrained, batched.unconstrained)) wrong++;
+        checkEquals(0, wrong, "index lists differing between with and withAll");
+
+        SmartHub hub = new SmartHub();
+        hub.registerDevice(quiet(new Light(1)));
+        TriggerEntry registered = new TriggerEntry("r", h -> false, List.of("turnOn(1)"));
+        hub.addTrigger(registered);
+        TriggerEntry fresh = new TriggerEntry("f", h -> false, List.of("turnOn(1)"));
+        checkThrows(IllegalStateException.class, () -> hub.addTriggers(List.of(fresh, registered)),
+                "batch with a registered trigger");
+        checkThrows(IllegalStateException.class, () -> hub.addTriggers(List.of(fresh, fresh)), "batch with a repeat");
+        checkEquals(1, hub.listTriggers().size(), "nothing registered from a rejected batch");
+        hub.addTriggers(List.of(fresh));
+        checkEquals(List.of(registered, fresh), hub.listTriggers(), "triggers after a batch");
+    }
+
+    private static void checkCondition(SmartHub hub, String source, boolean expected) {
+        checkEquals(expected, TriggerCondition.compile(source, hub).predicate.test(hub), "'" + source + "'");
+    }
+
+    // -------------------- Temperature index --------------------
+    // Random adds, updates and removes against a sorted reference; bulk load of an empty index
+    static void temperatureIndex() {
+        Random rnd = new Random(7);
+        TemperatureIndex index = new TemperatureIndex();
+        Map<Integer, Double> temps = new HashMap<>();
+        TreeMap<Double, Integer> counts = new TreeMap<>();
+        int wrong = 0;
+        for (int i = 0; i < 100_000; i++) {
+            int id = rnd.nextInt(2000);
+            double t = 50 + rnd.nextInt(400) / 8.0;   // plenty of equal temperatures
+            Double old = temps.get(id);
+            if (old != null) counts.merge(old, -1, (a, b) -> a + b == 0 ? null : a + b);
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    index.remove(id);
+                    temps.remove(id);
+                    break;
+                case 1:
+                    index.update(id, t);           // no-op for an id that is not indexed
+                    if (old != null) {
+                        temps.put(id, t);
+                        counts.merge(t, 1, Integer::sum);
+                    }
+                    break;
+                default:
+                    index.add(id, t);
+                    temps.put(id, t);
+                    counts.merge(t, 1, Integer::sum);
+            }
+            if (index.size() != temps.size()) wrong++;
+            if (counts.isEmpty() ? !Double.isNaN(index.min()) : index.min() != counts.firstKey()) wrong++;
+            if (counts.isEmpty() ? !Double.isNaN(index.max()) : index.max() != counts.lastKey()) wrong++;
+            if (index.contains(t) != counts.containsKey(t)) wrong++;
+        }
+        checkEquals(0, wrong, "treap answers differing from the reference");
+
+        int n = 50_000;
+        int[] ids = new int[n];
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i % 40_000;                    // the last 10k ids repeat: last temperature wins
+            values[i] = rnd.nextGaussian() * 20;
+        }
+        TemperatureIndex bulk = new TemperatureIndex();
+        bulk.addAll(ids, values, n);
+        TemperatureIndex oneByOne = new TemperatureIndex();
+        for (int i = 0; i < n; i++) oneByOne.add(ids[i], values[i]);
+        checkEquals(40_000, bulk.size(), "bulk-loaded size");
+        checkEquals(oneByOne.min(), bulk.min(), "bulk-loaded min");
+        checkEquals(oneByOne.max(), bulk.max(), "bulk-loaded max");
+        for (int i = 0; i < 10_000; i++) bulk.remove(ids[i]);
+        for (int i = 0; i < 10_000; i++) oneByOne.remove(ids[i]);
+        checkEquals(oneByOne.size(), bulk.size(), "size after removing bulk-loaded ids");
+        checkEquals(oneByOne.min(), bulk.min(), "min after removing bulk-loaded ids");
+        checkEquals(oneByOne.max(), bulk.max(), "max after removing bulk-loaded ids");
+    }
+
+    // -------------------- logging --------------------
+    // Console lines and log lines share the async appender: flush() returns with everything
+    // appended so far written, in append order
+    static void asyncLogOrder() {
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        AsyncLogAppender async = new AsyncLogAppender(r -> written.add(r.toString()), 64, 16);
+        try {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                if (i % 3 == 0) {
+                    async.append(LogRecord.console(LogLevel.INFO, "line " + i));
+                    expected.add("line " + i);
+                } else {
+                    async.append(new LogRecord(i, LogLevel.INFO, "Hub", "record " + i));
+                    expected.add("[Hub] record " + i);
+                }
+                if (i % 250 == 249) {
+                    async.flush();
+                    checkEquals(i + 1, written.size(), "records written after flush " + i);
+                }
+            }
+            checkEquals(expected, new ArrayList<>(written), "append order");
+        } finally {
+            async.close();
+        }
+        checkEquals(1000L, async.records(), "records counted");
+    }
+}
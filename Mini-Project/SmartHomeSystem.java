@@ -1,24 +1,118 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
 import java.util.function.Predicate;
+import java.util.zip.CRC32C;
 
 /*
  SmartHomeSystem.java
  Console-based Smart Home System simulation.
- Java 8+ compatible.
+ Requires Java 11+ (VarHandle, CRC32C, List.of/Map.of, Path.of).
 
  Design highlights:
  - Observer pattern: Hub manages observers (devices) and notifies on system events.
  - Factory Method: DeviceFactory creates concrete devices.
  - Proxy pattern: DeviceProxy wraps devices to control access/logging.
- - Scheduler: stores schedules, executed by explicit command runSchedulesAt HH:MM.
+ - Scheduler: recurring schedules in per-minute buckets, run by a wall-clock thread or by
+   the explicit command runSchedulesAt HH:MM.
  - Triggers: evaluated when device state changes (e.g., thermostat temperature).
+ - Registry: SmartHub stores devices in a DeviceRegistry; StripedDeviceRegistry lets
+   many threads drive one hub, serializing commands per device stripe only.
 */
 
+// -------------------- Command opcodes --------------------
+// Device state a command can change; triggers declare which ones they read
+enum DeviceAttribute { POWER, TEMPERATURE, LOCK }
+
+/*
+ Built-in device commands, resolved once from their names (REPL input, action strings)
+ and then dispatched on the ordinal. bit is the command's slot in DeviceProxy's allow mask.
+*/
+enum CommandCode {
+    TURN_ON("turnOn", DeviceAttribute.POWER),
+    TURN_OFF("turnOff", DeviceAttribute.POWER),
+    SET_TEMP("setTemp", DeviceAttribute.TEMPERATURE),
+    LOCK("lock", DeviceAttribute.LOCK),
+    UNLOCK("unlock", DeviceAttribute.LOCK);
+
+    private static final CommandCode[] VALUES = values();
+
+    public final String label;
+    public final DeviceAttribute attribute; // what this command changes
+    final int bit = 1 << ordinal();
+
+    CommandCode(String label, DeviceAttribute attribute) {
+        this.label = label;
+        this.attribute = attribute;
+    }
+
+    // Only setTemp carries a numeric argument
+    public boolean takesValue() { return this == SET_TEMP; }
+
+    // Case-insensitive name lookup without allocation; null when the name is unknown
+    public static CommandCode lookup(String name) {
+        for (CommandCode c : VALUES) {
+            if (c.label.equalsIgnoreCase(name)) return c;
+        }
+        return null;
+    }
+
+    public static CommandCode resolve(String name) {
+        CommandCode c = lookup(name);
+        if (c == null) throw new IllegalArgumentException("Unknown command: " + name);
+        return c;
+    }
+
+    static int allBits() { return (1 << VALUES.length) - 1; }
+
+    static int count() { return VALUES.length; }
+
+    static CommandCode byOrdinal(int ordinal) { return VALUES[ordinal]; }
+}
+
 // -------------------- Device abstraction --------------------
 interface Device {
     int getId();
     String getType();
     String statusReport();
+
+    // Typed state reads for trigger predicates; devices without the attribute keep the defaults.
+    default double getTemperature() { return Double.NaN; }
+    default boolean isOn() { return false; }
+    default boolean isLocked() { return false; }
 }
 
 abstract class AbstractDevice implements Device {
@@ -33,542 +127,4979 @@ abstract class AbstractDevice implements Device {
     public int getId() { return id; }
     public String getType() { return type; }
 
-    // Hook for device-specific commands:
-    public abstract void handleCommand(String command, String... args) throws Exception;
+    // Hook for device-specific commands; value is ignored by commands that take none.
+    public abstract void handle(CommandCode code, double value);
+
+    // String adapter over handle(): resolves the name and parses the argument.
+    public void handleCommand(String command, String... args) throws Exception {
+        CommandCode code = CommandCode.resolve(command);
+        double value = 0;
+        if (code.takesValue()) {
+            if (args.length < 1) throw new IllegalArgumentException(code.label + " requires a temperature argument");
+            value = Double.parseDouble(args[0]);
+        }
+        handle(code, value);
+    }
+
+    protected IllegalArgumentException unsupported(CommandCode code) {
+        return new IllegalArgumentException("Unsupported command for " + getClass().getSimpleName() + ": " + code.label);
+    }
 }
 
 // -------------------- Concrete devices --------------------
 class Light extends AbstractDevice {
-    private boolean isOn = false;
+    private volatile boolean isOn = false;
 
     public Light(int id) { super(id, "light"); }
 
+    @Override
     public boolean isOn() { return isOn; }
 
     @Override
-    public void handleCommand(String command, String... args) {
-        switch (command.toLowerCase()) {
-            case "turnon": isOn = true; break;
-            case "turnoff": isOn = false; break;
-            default: throw new IllegalArgumentException("Unsupported command for Light: " + command);
+    public void handle(CommandCode code, double value) {
+        switch (code) {
+            case TURN_ON: isOn = true; break;
+            case TURN_OFF: isOn = false; break;
+            default: throw unsupported(code);
         }
     }
 
     @Override
-    public String statusReport() {
-        return String.format("Light %d is %s", id, isOn ? "On" : "Off");
+    public String statusReport() { return report(id, isOn); }
+
+    static String report(int id, boolean on) {
+        return String.format("Light %d is %s", id, on ? "On" : "Off");
     }
 }
 
 class Thermostat extends AbstractDevice {
-    private double temperature;
+    private volatile double temperature;
 
     public Thermostat(int id, double initialTemp) {
         super(id, "thermostat");
         this.temperature = initialTemp;
     }
 
+    @Override
     public double getTemperature() { return temperature; }
 
     @Override
-    public void handleCommand(String command, String... args) {
-        switch (command.toLowerCase()) {
-            case "settemp":
-                if (args.length < 1) throw new IllegalArgumentException("setTemp requires a temperature argument");
-                temperature = Double.parseDouble(args[0]);
-                break;
-            default: throw new IllegalArgumentException("Unsupported command for Thermostat: " + command);
+    public void handle(CommandCode code, double value) {
+        switch (code) {
+            case SET_TEMP: temperature = value; break;
+            default: throw unsupported(code);
         }
     }
 
     @Override
-    public String statusReport() {
+    public String statusReport() { return report(id, temperature); }
+
+    static String report(int id, double temperature) {
         return String.format("Thermostat %d is set to %.1f degrees", id, temperature);
     }
 }
 
 class DoorLock extends AbstractDevice {
-    private boolean locked = true;
+    private volatile boolean locked = true;
 
     public DoorLock(int id) { super(id, "door"); }
 
+    @Override
     public boolean isLocked() { return locked; }
 
     @Override
-    public void handleCommand(String command, String... args) {
-        switch (command.toLowerCase()) {
-            case "lock": locked = true; break;
-            case "unlock": locked = false; break;
-            default: throw new IllegalArgumentException("Unsupported command for DoorLock: " + command);
+    public void handle(CommandCode code, double value) {
+        switch (code) {
+            case LOCK: locked = true; break;
+            case UNLOCK: locked = false; break;
+            default: throw unsupported(code);
         }
     }
 
     @Override
-    public String statusReport() {
+    public String statusReport() { return report(id, locked); }
+
+    static String report(int id, boolean locked) {
         return String.format("Door %d is %s", id, locked ? "Locked" : "Unlocked");
     }
 }
 
-// -------------------- Factory Method --------------------
-class DeviceFactory {
-    public static Device createDevice(Map<String, String> props) {
-        int id = Integer.parseInt(props.get("id"));
-        String type = props.get("type").toLowerCase();
-        switch (type) {
-            case "light":
-                return new Light(id);
-            case "thermostat": {
-                double temp = props.containsKey("temperature") ? Double.parseDouble(props.get("temperature")) : 70.0;
-                return new Thermostat(id, temp);
-            }
+// -------------------- Columnar device state --------------------
+// The built-in device kinds, by their type names
+enum DeviceKind {
+    LIGHT("light"), THERMOSTAT("thermostat"), DOOR("door");
+
+    private static final DeviceKind[] VALUES = values();
+
+    public final String type;
+
+    DeviceKind(String type) { this.type = type; }
+
+    public static DeviceKind of(String type) {
+        switch (type.toLowerCase(Locale.ROOT)) {
+            case "light": return LIGHT;
+            case "thermostat": return THERMOSTAT;
             case "door":
-            case "doorlock":
-                return new DoorLock(id);
-            default:
-                throw new IllegalArgumentException("Unknown device type: " + props.get("type"));
+            case "doorlock": return DOOR;
+            default: throw new IllegalArgumentException("Unknown device type: " + type);
         }
     }
+
+    static DeviceKind byOrdinal(int ordinal) { return VALUES[ordinal]; }
 }
 
-// -------------------- Proxy Pattern --------------------
-class DeviceProxy implements Device {
-    private final Device realDevice;
-    private final Set<String> allowedActions; // simple access control
+/*
+ Device state held outside the device objects, addressed by slot. A slot is a handle that
+ packs the kind (top 3 bits) with an index into that kind's columns, so lights cost only a
+ bit, doors a bit and thermostats a double. Writes are atomic per device; slots are
+ released and reused when devices go away.
+*/
+interface DeviceStateStore {
+    int KIND_SHIFT = 29;
+    int INDEX_MASK = (1 << KIND_SHIFT) - 1;
 
-    public DeviceProxy(Device realDevice) {
-        this.realDevice = realDevice;
-        // default allow all for simplicity; could be customized
-        this.allowedActions = new HashSet<>(Arrays.asList("turnon","turnoff","settemp","lock","unlock"));
+    static int slot(DeviceKind kind, int index) { return (kind.ordinal() << KIND_SHIFT) | index; }
+    static DeviceKind kindOf(int slot) { return DeviceKind.byOrdinal(slot >>> KIND_SHIFT); }
+    static int indexOf(int slot) { return slot & INDEX_MASK; }
+
+    // New slot for device `id` in its initial state (off / unlocked / 0 degrees)
+    int allocate(DeviceKind kind, int id);
+    void release(int slot);
+    int id(int slot);
+    int size();
+    // Every live slot, in no particular order
+    void forEachSlot(IntConsumer action);
+
+    boolean isOn(int slot);
+    void setOn(int slot, boolean on);
+    boolean isLocked(int slot);
+    void setLocked(int slot, boolean locked);
+    double temperature(int slot);
+    void setTemperature(int slot, double temperature);
+}
+
+/*
+ On-heap struct-of-arrays DeviceStateStore. Each kind has paged columns: device ids, a live
+ bitset, and either a state bitset (light on / door locked) or a double column (thermostat
+ temperature). Pages are appended, never copied, so growth does not stall writers and the
+ arrays stay small enough for the allocator. Bits are set with VarHandle atomic or/and, so
+ devices sharing a 64-bit word can be written by different threads.
+*/
+class ColumnarDeviceStateStore implements DeviceStateStore {
+    private static final int PAGE_SHIFT = 14;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    private static final class Column {
+        volatile int[][] ids = new int[0][];
+        volatile long[][] live = new long[0][];
+        volatile long[][] bits = new long[0][];        // lights and doors
+        volatile double[][] temps = new double[0][];   // thermostats
+        int next;                                      // guarded by the store
+        int[] free = new int[16];
+        int freeCount;
     }
 
-    public void setAllowedActions(Set<String> actions) {
-        allowedActions.clear();
-        allowedActions.addAll(actions);
+    private final Column[] columns = new Column[DeviceKind.values().length];
+    private volatile int size;
+
+    public ColumnarDeviceStateStore() {
+        for (int k = 0; k < columns.length; k++) columns[k] = new Column();
     }
 
-    public void execute(String command, String... args) throws Exception {
-        // Basic permission check:
-        String cmd = command.toLowerCase();
-        if (!allowedActions.contains(cmd)) {
-            throw new SecurityException("Action not allowed: " + cmd);
-        }
-        // Logging (simple)
-        System.out.printf("[Proxy] Executing %s on Device %d (%s)%n", command, realDevice.getId(), realDevice.getType());
-        if (realDevice instanceof AbstractDevice) {
-            ((AbstractDevice) realDevice).handleCommand(command, args);
+    public synchronized int allocate(DeviceKind kind, int id) {
+        Column c = columns[kind.ordinal()];
+        int index;
+        if (c.freeCount > 0) {
+            index = c.free[--c.freeCount];
         } else {
-            throw new UnsupportedOperationException("Cannot handle command on this device");
+            index = c.next++;
+            if (index > INDEX_MASK) throw new IllegalStateException("Too many " + kind.type + " devices");
+            if ((index & PAGE_MASK) == 0) addPage(c, kind);
         }
+        int page = index >>> PAGE_SHIFT, off = index & PAGE_MASK;
+        c.ids[page][off] = id;
+        if (kind == DeviceKind.THERMOSTAT) DOUBLES.setVolatile(c.temps[page], off, 0.0);
+        else clearBit(c.bits[page], off);
+        setBit(c.live[page], off);
+        size++;
+        return DeviceStateStore.slot(kind, index);
     }
 
-    @Override
-    public int getId() { return realDevice.getId(); }
-    @Override
-    public String getType() { return realDevice.getType(); }
-    @Override
-    public String statusReport() { return realDevice.statusReport(); }
-}
-
-// -------------------- Observer Pattern: Hub & Event --------------------
-interface HubObserver {
-    void onHubEvent(HubEvent event);
-}
-
-class HubEvent {
-    public final String type; // e.g., "TRIGGER_FIRED", "SCHEDULE_EXECUTED", "STATE_CHANGE"
-    public final Map<String, Object> payload;
+    private static void addPage(Column c, DeviceKind kind) {
+        int pages = c.ids.length;
+        int[][] ids = Arrays.copyOf(c.ids, pages + 1);
+        ids[pages] = new int[PAGE_SIZE];
+        long[][] live = Arrays.copyOf(c.live, pages + 1);
+        live[pages] = new long[PAGE_SIZE / 64];
+        if (kind == DeviceKind.THERMOSTAT) {
+            double[][] temps = Arrays.copyOf(c.temps, pages + 1);
+            temps[pages] = new double[PAGE_SIZE];
+            c.temps = temps;
+        } else {
+            long[][] bits = Arrays.copyOf(c.bits, pages + 1);
+            bits[pages] = new long[PAGE_SIZE / 64];
+            c.bits = bits;
+        }
+        c.live = live;
+        c.ids = ids;
+    }
 
-    public HubEvent(String type) {
-        this(type, new HashMap<>());
+    public synchronized void release(int slot) {
+        Column c = columns[slot >>> KIND_SHIFT];
+        int index = DeviceStateStore.indexOf(slot);
+        long[] live = c.live[index >>> PAGE_SHIFT];
+        if (!testBit(live, index & PAGE_MASK)) return;
+        clearBit(live, index & PAGE_MASK);
+        if (c.freeCount == c.free.length) c.free = Arrays.copyOf(c.free, c.freeCount * 2);
+        c.free[c.freeCount++] = index;
+        size--;
     }
-    public HubEvent(String type, Map<String, Object> payload) {
-        this.type = type;
-        this.payload = payload;
+
+    public int id(int slot) {
+        int index = DeviceStateStore.indexOf(slot);
+        return columns[slot >>> KIND_SHIFT].ids[index >>> PAGE_SHIFT][index & PAGE_MASK];
     }
-}
 
-class SmartHub {
-    private final Map<Integer, DeviceProxy> devices = new HashMap<>();
-    private final List<HubObserver> observers = new ArrayList<>();
+    public int size() { return size; }
 
-    // Scheduling and triggers:
-    private final List<ScheduleEntry> schedules = new ArrayList<>();
-    private final List<TriggerEntry> triggers = new ArrayList<>();
+    public void forEachSlot(IntConsumer action) {
+        for (DeviceKind kind : DeviceKind.values()) {
+            long[][] live = columns[kind.ordinal()].live;
+            for (int page = 0; page < live.length; page++) {
+                for (int w = 0; w < live[page].length; w++) {
+                    long word = (long) LONGS.getVolatile(live[page], w);
+                    while (word != 0) {
+                        int bit = Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                        action.accept(DeviceStateStore.slot(kind, (page << PAGE_SHIFT) | (w << 6) | bit));
+                    }
+                }
+            }
+        }
+    }
 
-    // Register/unregister observers (devices can observe hub or other observers)
-    public void addObserver(HubObserver o) { observers.add(o); }
-    public void removeObserver(HubObserver o) { observers.remove(o); }
+    public boolean isOn(int slot) { return stateBit(slot); }
+    public void setOn(int slot, boolean on) { setStateBit(slot, on); }
+    public boolean isLocked(int slot) { return stateBit(slot); }
+    public void setLocked(int slot, boolean locked) { setStateBit(slot, locked); }
 
-    // Device management
-    public void registerDevice(DeviceProxy proxy) {
-        devices.put(proxy.getId(), proxy);
-        notifyAllObservers(new HubEvent("DEVICE_REGISTERED", Map.of("deviceId", proxy.getId())));
+    public double temperature(int slot) {
+        int index = DeviceStateStore.indexOf(slot);
+        return (double) DOUBLES.getVolatile(columns[slot >>> KIND_SHIFT].temps[index >>> PAGE_SHIFT], index & PAGE_MASK);
     }
 
-    public DeviceProxy unregisterDevice(int id) {
-        DeviceProxy p = devices.remove(id);
-        if (p != null) notifyAllObservers(new HubEvent("DEVICE_UNREGISTERED", Map.of("deviceId", id)));
-        return p;
+    public void setTemperature(int slot, double temperature) {
+        int index = DeviceStateStore.indexOf(slot);
+        DOUBLES.setVolatile(columns[slot >>> KIND_SHIFT].temps[index >>> PAGE_SHIFT], index & PAGE_MASK, temperature);
     }
 
-    public Optional<DeviceProxy> getDevice(int id) { return Optional.ofNullable(devices.get(id)); }
-
-    public Collection<DeviceProxy> listDevices() { return devices.values(); }
+    private boolean stateBit(int slot) {
+        int index = DeviceStateStore.indexOf(slot);
+        return testBit(columns[slot >>> KIND_SHIFT].bits[index >>> PAGE_SHIFT], index & PAGE_MASK);
+    }
 
-    /* Scheduling API */
-    public void addSchedule(ScheduleEntry s) {
-        schedules.add(s);
-        notifyAllObservers(new HubEvent("SCHEDULE_ADDED", Map.of("schedule", s)));
+    private void setStateBit(int slot, boolean value) {
+        int index = DeviceStateStore.indexOf(slot);
+        long[] bits = columns[slot >>> KIND_SHIFT].bits[index >>> PAGE_SHIFT];
+        if (value) setBit(bits, index & PAGE_MASK);
+        else clearBit(bits, index & PAGE_MASK);
     }
 
-    public List<ScheduleEntry> listSchedules() { return Collections.unmodifiableList(schedules); }
+    private static boolean testBit(long[] words, int bit) {
+        return ((long) LONGS.getVolatile(words, bit >>> 6) & (1L << bit)) != 0;
+    }
 
-    /* Triggers API */
-    public void addTrigger(TriggerEntry t) {
-        triggers.add(t);
-        notifyAllObservers(new HubEvent("TRIGGER_ADDED", Map.of("trigger", t)));
+    private static void setBit(long[] words, int bit) {
+        long unused = (long) LONGS.getAndBitwiseOr(words, bit >>> 6, 1L << bit);
     }
 
-    public List<TriggerEntry> listTriggers() { return Collections.unmodifiableList(triggers); }
+    private static void clearBit(long[] words, int bit) {
+        long unused = (long) LONGS.getAndBitwiseAnd(words, bit >>> 6, ~(1L << bit));
+    }
+}
 
-    /* Execute a command via proxy with safety & trigger evaluation */
-    public void executeCommand(int deviceId, String command, String... args) throws Exception {
-        DeviceProxy p = devices.get(deviceId);
-        if (p == null) throw new NoSuchElementException("Device not found: " + deviceId);
-        p.execute(command, args);
+/*
+ DeviceStateStore kept in a memory-mapped file, so device state outlives the process and a
+ restart reads it in place: opening maps the file and scans one flag word per record to find
+ the live slots; nothing is parsed or copied onto the heap. Little-endian layout:
+   header (32 bytes): magic "SHDS", version, record size, high-water record count
+   record (16 bytes): id int | meta int (bits 0-7 flags: live, on, locked; bits 8-15 kind) | temperature double
+ The file grows in fixed segments that are mapped once and never remapped, so existing
+ records never move. Writes reach the OS page cache immediately (they survive a crash of
+ this process); force() or close() flushes them to the device.
+*/
+class MappedDeviceStateStore implements DeviceStateStore, AutoCloseable {
+    private static final int MAGIC = 0x53444853; // "SHDS" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int RECORD_BYTES = 16;
+    private static final int SEGMENT_SHIFT = 18; // 256K records = 4 MB per mapping
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_RECORDS - 1;
+    private static final int LIVE = 1, ON = 2, LOCKED = 4;
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle DOUBLES = MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
 
-        // After executing, notify observers of state change
-        notifyAllObservers(new HubEvent("STATE_CHANGE", Map.of("deviceId", deviceId, "command", command)));
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private int next;                          // high-water record count, guarded by this
+    private int[] free = new int[16];
+    private int freeCount;
+    private volatile int size;
 
-        // Evaluate triggers (simple immediate evaluation)
-        evaluateTriggers();
+    private MappedDeviceStateStore(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
     }
 
-    private void evaluateTriggers() {
-        for (TriggerEntry t : triggers) {
-            try {
-                if (t.evaluate(this)) {
-                    // trigger action(s):
-                    for (String action : t.getActions()) {
-                        // Action format: like turnOff(1) or setTemp(2, 68)
-                        parseAndExecuteAction(action);
-                    }
-                    notifyAllObservers(new HubEvent("TRIGGER_FIRED", Map.of("trigger", t)));
-                }
-            } catch (Exception ex) {
-                System.err.println("[Hub] Trigger evaluation error: " + ex.getMessage());
+    // Opens the file, creating it if missing; existing records are live immediately
+    public static MappedDeviceStateStore open(Path file) throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedDeviceStateStore store = new MappedDeviceStateStore(ch);
+            if (ch.size() == HEADER_BYTES && store.header.getInt(0) == 0) {
+                store.header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, RECORD_BYTES).putInt(12, 0);
             }
+            store.load(file);
+            return store;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
         }
     }
 
-    private void parseAndExecuteAction(String action) {
-        // Very lightweight parser: name(args)
-        action = action.trim();
-        if (!action.contains("(") || !action.endsWith(")")) {
-            System.err.println("[Hub] Invalid action format: " + action);
-            return;
+    private void load(Path file) throws IOException {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_BYTES) {
+            throw new IOException("Not a device state file (or unsupported version): " + file);
         }
-        String cmdName = action.substring(0, action.indexOf('(')).trim();
-        String argPart = action.substring(action.indexOf('(') + 1, action.length() - 1).trim();
-        String[] parts = argPart.isEmpty() ? new String[0] : argPart.split("\\s*,\\s*");
-        try {
-            if (parts.length >= 1) {
-                int deviceId = Integer.parseInt(parts[0]);
-                String[] extraArgs = Arrays.copyOfRange(parts, 1, parts.length);
-                executeCommand(deviceId, cmdName.toLowerCase(), extraArgs);
+        next = header.getInt(12);
+        int live = 0;
+        for (int index = 0; index < next; index++) {
+            if ((index & SEGMENT_MASK) == 0) addSegment();
+            if ((meta(index) & LIVE) != 0) {
+                live++;
             } else {
-                System.err.println("[Hub] Action missing device id: " + action);
+                pushFree(index);
             }
-        } catch (Exception e) {
-            System.err.println("[Hub] Action execution failed: " + e.getMessage());
         }
+        size = live;
     }
 
-    /* Scheduler execution at a given HH:MM (simulate) */
-    public void runSchedulesAt(String timeHHMM) {
-        List<ScheduleEntry> toRun = new ArrayList<>();
-        for (ScheduleEntry s : schedules) {
-            if (s.time.equals(timeHHMM)) toRun.add(s);
-        }
-        if (toRun.isEmpty()) {
-            System.out.println("[Hub] No scheduled tasks at " + timeHHMM);
-            return;
-        }
-        for (ScheduleEntry s : toRun) {
-            System.out.printf("[Hub] Running schedule: device=%d time=%s action=%s%n", s.deviceId, s.time, s.action);
-            parseAndExecuteAction(s.action);
-        }
-        notifyAllObservers(new HubEvent("SCHEDULES_EXECUTED", Map.of("time", timeHHMM, "count", toRun.size())));
+    private void addSegment() throws IOException {
+        MappedByteBuffer[] cur = segments;
+        long offset = HEADER_BYTES + (long) cur.length * SEGMENT_RECORDS * RECORD_BYTES;
+        MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) SEGMENT_RECORDS * RECORD_BYTES);
+        MappedByteBuffer[] grown = Arrays.copyOf(cur, cur.length + 1);
+        grown[cur.length] = seg;
+        segments = grown;
     }
 
-    private void notifyAllObservers(HubEvent event) {
-        for (HubObserver o : observers) {
-            try { o.onHubEvent(event); }
-            catch (Exception e) { System.err.println("[Hub] observer error: " + e.getMessage()); }
+    private void pushFree(int index) {
+        if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = index;
+    }
+
+    public synchronized int allocate(DeviceKind kind, int id) {
+        int index;
+        if (freeCount > 0) {
+            index = free[--freeCount];
+        } else {
+            index = next;
+            if (index > INDEX_MASK) throw new IllegalStateException("Device state file is full");
+            if ((index & SEGMENT_MASK) == 0 && (index >>> SEGMENT_SHIFT) == segments.length) {
+                try {
+                    addSegment();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            next = index + 1;
         }
+        ByteBuffer seg = segment(index);
+        int at = offset(index);
+        seg.putInt(at, id);
+        DOUBLES.setVolatile(seg, at + 8, 0.0);
+        INTS.setVolatile(seg, at + 4, (kind.ordinal() << 8) | LIVE); // publish last
+        if (index == next - 1) header.putInt(12, next);
+        size++;
+        return DeviceStateStore.slot(kind, index);
     }
-}
 
-// -------------------- Schedule and Trigger data structures --------------------
-class ScheduleEntry {
-    public final int deviceId;
-    public final String time; // "HH:MM"
-    public final String action; // e.g., "turnOn(1)"
+    public synchronized void release(int slot) {
+        int index = DeviceStateStore.indexOf(slot);
+        if ((meta(index) & LIVE) == 0) return;
+        int unused = (int) INTS.getAndBitwiseAnd(segment(index), offset(index) + 4, ~LIVE);
+        pushFree(index);
+        size--;
+    }
 
-    public ScheduleEntry(int deviceId, String time, String action) {
-        this.deviceId = deviceId;
-        this.time = time;
-        this.action = action;
+    public int id(int slot) {
+        int index = DeviceStateStore.indexOf(slot);
+        return segment(index).getInt(offset(index));
     }
 
-    @Override
-    public String toString() {
-        return String.format("{device:%d, time:%s, action:%s}", deviceId, time, action);
+    public int size() { return size; }
+
+    public void forEachSlot(IntConsumer action) {
+        int high;
+        synchronized (this) {
+            high = next;
+        }
+        for (int index = 0; index < high; index++) {
+            int meta = meta(index);
+            if ((meta & LIVE) != 0) action.accept(DeviceStateStore.slot(DeviceKind.byOrdinal((meta >>> 8) & 0xff), index));
+        }
     }
-}
 
-class TriggerEntry {
-    // For simplicity, support triggers of thermostat temperature condition or general predicate
-    private final String conditionDesc;
-    private final Predicate<SmartHub> predicate;
-    private final List<String> actions;
+    public boolean isOn(int slot) { return (meta(DeviceStateStore.indexOf(slot)) & ON) != 0; }
+    public void setOn(int slot, boolean on) { setFlag(slot, ON, on); }
+    public boolean isLocked(int slot) { return (meta(DeviceStateStore.indexOf(slot)) & LOCKED) != 0; }
+    public void setLocked(int slot, boolean locked) { setFlag(slot, LOCKED, locked); }
 
-    public TriggerEntry(String conditionDesc, Predicate<SmartHub> predicate, List<String> actions) {
-        this.conditionDesc = conditionDesc;
-        this.predicate = predicate;
-        this.actions = actions;
+    public double temperature(int slot) {
+        int index = DeviceStateStore.indexOf(slot);
+        return (double) DOUBLES.getVolatile(segment(index), offset(index) + 8);
     }
 
-    public boolean evaluate(SmartHub hub) {
-        return predicate.test(hub);
+    public void setTemperature(int slot, double temperature) {
+        int index = DeviceStateStore.indexOf(slot);
+        DOUBLES.setVolatile(segment(index), offset(index) + 8, temperature);
     }
 
-    public List<String> getActions() { return actions; }
+    // Flushes dirty pages to the storage device
+    public void force() {
+        header.force();
+        for (MappedByteBuffer seg : segments) seg.force();
+    }
 
+    // The mappings themselves are released when the buffers are collected
     @Override
-    public String toString() {
-        return String.format("{condition:%s, actions:%s}", conditionDesc, actions);
+    public void close() throws IOException {
+        force();
+        channel.close();
     }
-}
 
-// -------------------- Simple console UI & main --------------------
-public class SmartHomeSystem {
-    private static final Scanner scanner = new Scanner(System.in);
-    private final SmartHub hub = new SmartHub();
-
-    public SmartHomeSystem() {
-        // hub observes itself? not necessary. but devices can act as observers if needed.
-        // For logging, add a simple observer:
-        hub.addObserver(event -> {
-            // Basic logging; keep short:
-            System.out.printf("[Observer] Event: %s %s%n", event.type, event.payload.isEmpty() ? "" : event.payload);
-        });
+    private int meta(int index) { return (int) INTS.getVolatile(segment(index), offset(index) + 4); }
+
+    private void setFlag(int slot, int flag, boolean value) {
+        int index = DeviceStateStore.indexOf(slot);
+        ByteBuffer seg = segment(index);
+        int at = offset(index) + 4;
+        int unused = value ? (int) INTS.getAndBitwiseOr(seg, at, flag) : (int) INTS.getAndBitwiseAnd(seg, at, ~flag);
     }
 
-    private void seedDefaults() {
-        // create devices with factory and register proxies
-        Map<String,String> d1 = Map.of("id","1","type","light");
-        Map<String,String> d2 = Map.of("id","2","type","thermostat","temperature","70");
-        Map<String,String> d3 = Map.of("id","3","type","door");
-        Device dev1 = DeviceFactory.createDevice(d1);
-        Device dev2 = DeviceFactory.createDevice(Map.of("id","2","type","thermostat","temperature","70"));
-        Device dev3 = DeviceFactory.createDevice(d3);
+    private ByteBuffer segment(int index) { return segments[index >>> SEGMENT_SHIFT]; }
 
-        DeviceProxy p1 = new DeviceProxy(dev1);
-        DeviceProxy p2 = new DeviceProxy(dev2);
-        DeviceProxy p3 = new DeviceProxy(dev3);
+    private static int offset(int index) { return (index & SEGMENT_MASK) * RECORD_BYTES; }
+}
+
+/*
+ A registered device whose state lives in a DeviceStateStore: one small object that is both
+ the proxy and the device view (permissions and logging are inherited from DeviceProxy), in
+ place of a DeviceProxy wrapping a Light/Thermostat/DoorLock. Call release() after
+ unregistering it to recycle the slot.
+*/
+class StoredDevice extends DeviceProxy {
+    private final DeviceStateStore store;
+    private final int slot;
 
-        hub.registerDevice(p1);
-        hub.registerDevice(p2);
-        hub.registerDevice(p3);
+    public StoredDevice(DeviceStateStore store, DeviceKind kind, int id) {
+        this(store, store.allocate(kind, id));
     }
 
-    private void printHelp() {
-        System.out.println("Commands (examples):");
-        System.out.println("  listDevices");
-        System.out.println("  statusReport");
-        System.out.println("  turnOn <id>");
-        System.out.println("  turnOff <id>");
-        System.out.println("  lock <id>");
-        System.out.println("  unlock <id>");
-        System.out.println("  setTemp <id> <temp>");
-        System.out.println("  setSchedule <deviceId> <HH:MM> <action>   (action e.g. turnOn(1))");
-        System.out.println("  runSchedulesAt <HH:MM>");
-        System.out.println("  addTrigger temperature > 75 action turnOff(1)   (supported simple format)");
-        System.out.println("  addDevice id type [temperature]");
-        System.out.println("  removeDevice <id>");
-        System.out.println("  showSchedules");
-        System.out.println("  showTriggers");
-        System.out.println("  help");
-        System.out.println("  exit");
-    }
-
-    private void repl() {
-        seedDefaults();
-        System.out.println("Smart Home System started. Type 'help' for commands.");
-        while (true) {
-            System.out.print("> ");
-            String line = scanner.nextLine().trim();
-            if (line.isEmpty()) continue;
-            try {
-                if (line.equalsIgnoreCase("exit")) { System.out.println("Bye."); break; }
-                if (line.equalsIgnoreCase("help")) { printHelp(); continue; }
-                if (line.equalsIgnoreCase("listDevices")) {
-                    hub.listDevices().forEach(d -> System.out.println(d.statusReport()));
-                    continue;
-                }
-                if (line.equalsIgnoreCase("statusReport")) {
-                    hub.listDevices().forEach(d -> System.out.println(d.statusReport()));
-                    continue;
-                }
-                if (line.startsWith("turnOn ")) {
-                    int id = Integer.parseInt(line.split("\\s+")[1]);
-                    hub.executeCommand(id, "turnOn");
-                    continue;
-                }
-                if (line.startsWith("turnOff ")) {
-                    int id = Integer.parseInt(line.split("\\s+")[1]);
-                    hub.executeCommand(id, "turnOff");
-                    continue;
-                }
-                if (line.startsWith("lock ")) {
-                    int id = Integer.parseInt(line.split("\\s+")[1]);
-                    hub.executeCommand(id, "lock");
-                    continue;
-                }
-                if (line.startsWith("unlock ")) {
-                    int id = Integer.parseInt(line.split("\\s+")[1]);
-                    hub.executeCommand(id, "unlock");
-                    continue;
-                }
-                if (line.startsWith("setTemp ")) {
-                    String[] tok = line.split("\\s+");
-                    int id = Integer.parseInt(tok[1]);
-                    double t = Double.parseDouble(tok[2]);
-                    hub.executeCommand(id, "setTemp", String.valueOf(t));
-                    continue;
-                }
-                if (line.startsWith("setSchedule ")) {
-                    // setSchedule <deviceId> <HH:MM> <action>
-                    String[] parts = splitPreserveQuoted(line, 4);
-                    int deviceId = Integer.parseInt(parts[1]);
-                    String time = parts[2];
-                    String action = parts[3];
-                    hub.addSchedule(new ScheduleEntry(deviceId, time, action));
-                    System.out.println("[UI] Schedule added: " + action + " at " + time);
-                    continue;
-                }
-                if (line.startsWith("runSchedulesAt ")) {
-                    String t = line.split("\\s+")[1];
-                    hub.runSchedulesAt(t);
-                    continue;
-                }
-                if (line.startsWith("addTrigger ")) {
-                    // very simple parser for: addTrigger temperature > 75 action turnOff(1)
-                    // supports only 'temperature' condition for now
-                    String[] tok = line.split("\\s+");
-                    if (tok.length < 6) { System.err.println("Invalid addTrigger format"); continue; }
-                    if (!tok[1].equalsIgnoreCase("temperature")) { System.err.println("Only 'temperature' trigger supported in this simple parser."); continue; }
-                    String op = tok[2];
-                    double value = Double.parseDouble(tok[3]);
-                    if (!tok[4].equalsIgnoreCase("action")) { System.err.println("Expected keyword 'action'"); continue; }
-                    String action = line.substring(line.indexOf("action") + 7).trim();
-                    Predicate<SmartHub> pred = (SmartHub h) -> {
-                        // find thermostats and evaluate if any match condition
-                        for (DeviceProxy dp : h.listDevices()) {
-                            if (dp.getType().equals("thermostat") && dp instanceof DeviceProxy) {
-                                Device dev = dpReal(dp);
-                                if (dev instanceof Thermostat) {
-                                    double tempNow = ((Thermostat) dev).getTemperature();
-                                    switch (op) {
-                                        case ">": return tempNow > value;
-                                        case "<": return tempNow < value;
-                                        case ">=": return tempNow >= value;
-                                        case "<=": return tempNow <= value;
-                                        case "==": return tempNow == value;
-                                    }
-                                }
-                            }
-                        }
-                        return false;
-                    };
-                    TriggerEntry t = new TriggerEntry(String.format("temperature %s %s", op, value), pred, List.of(action));
-                    hub.addTrigger(t);
-                    System.out.println("[UI] Trigger added: " + t);
-                    continue;
-                }
-                if (line.startsWith("addDevice ")) {
-                    // addDevice id type [temperature]
-                    String[] tok = line.split("\\s+");
-                    int id = Integer.parseInt(tok[1]);
-                    String type = tok[2];
-                    Map<String,String> props = new HashMap<>();
-                    props.put("id", String.valueOf(id));
-                    props.put("type", type);
-                    if (tok.length >= 4) props.put("temperature", tok[3]);
-                    Device d = DeviceFactory.createDevice(props);
-                    DeviceProxy dp = new DeviceProxy(d);
-                    hub.registerDevice(dp);
-                    System.out.println("[UI] Device added: " + d.statusReport());
-                    continue;
-                }
-                if (line.startsWith("removeDevice ")) {
-                    int id = Integer.parseInt(line.split("\\s+")[1]);
-                    DeviceProxy removed = hub.unregisterDevice(id);
-                    System.out.println(removed == null ? "[UI] No such device." : "[UI] Removed device " + id);
-                    continue;
-                }
-                if (line.equals("showSchedules")) {
-                    hub.listSchedules().forEach(s -> System.out.println(s));
-                    continue;
-                }
-                if (line.equals("showTriggers")) {
-                    hub.listTriggers().forEach(t -> System.out.println(t));
-                    continue;
-                }
-                System.err.println("Unknown command. Type 'help' for list.");
-            } catch (Exception ex) {
-                System.err.println("[Error] " + ex.getMessage());
-            }
-        }
+    // View over an existing slot, e.g. one restored from a persistent store
+    StoredDevice(DeviceStateStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
     }
 
-    // helper to access underlying Device from DeviceProxy (trusted internal)
-    private static Device dpReal(DeviceProxy dp) {
-        try {
-            java.lang.reflect.Field f = DeviceProxy.class.getDeclaredField("realDevice");
-            f.setAccessible(true);
-            return (Device) f.get(dp);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    public DeviceKind kind() { return DeviceStateStore.kindOf(slot); }
+
+    public void release() { store.release(slot); }
+
+    @Override
+    protected void apply(CommandCode code, double value) {
+        DeviceKind kind = kind();
+        switch (code) {
+            case TURN_ON:
+            case TURN_OFF:
+                if (kind != DeviceKind.LIGHT) break;
+                store.setOn(slot, code == CommandCode.TURN_ON);
+                return;
+            case LOCK:
+            case UNLOCK:
+                if (kind != DeviceKind.DOOR) break;
+                store.setLocked(slot, code == CommandCode.LOCK);
+                return;
+            case SET_TEMP:
+                if (kind != DeviceKind.THERMOSTAT) break;
+                store.setTemperature(slot, value);
+                return;
+            default:
         }
+        throw new IllegalArgumentException("Unsupported command for " + kind.type + ": " + code.label);
     }
 
-    // splits into N parts preserving the remainder for the last part (for actions possibly with parentheses)
-    private static String[] splitPreserveQuoted(String line, int maxParts) {
-        String[] tok = new String[maxParts];
-        String[] split = line.split("\\s+");
-        tok[0] = split[0];
-        int i = 1;
-        int idx = 1;
-        for (; i < split.length && idx < maxParts - 1; i++, idx++) {
-            tok[idx] = split[i];
+    @Override
+    public int getId() { return store.id(slot); }
+    @Override
+    public String getType() { return kind().type; }
+
+    @Override
+    public String statusReport() {
+        switch (kind()) {
+            case LIGHT: return Light.report(getId(), store.isOn(slot));
+            case THERMOSTAT: return Thermostat.report(getId(), store.temperature(slot));
+            default: return DoorLock.report(getId(), store.isLocked(slot));
         }
-        // remainder into last
-        if (i <= split.length) {
-            StringBuilder sb = new StringBuilder();
-            for (int j = i; j < split.length; j++) {
-                if (sb.length() > 0) sb.append(" ");
-                sb.append(split[j]);
-            }
-            tok[maxParts - 1] = sb.toString();
-        } else {
-            tok[maxParts - 1] = "";
+    }
+
+    @Override
+    public double getTemperature() { return kind() == DeviceKind.THERMOSTAT ? store.temperature(slot) : Double.NaN; }
+    @Override
+    public boolean isOn() { return kind() == DeviceKind.LIGHT && store.isOn(slot); }
+    @Override
+    public boolean isLocked() { return kind() == DeviceKind.DOOR && store.isLocked(slot); }
+}
+
+// -------------------- Factory Method --------------------
+class DeviceFactory {
+    // Same properties as createDevice, state kept in the given store (lights off, doors locked)
+    public static StoredDevice createStoredDevice(Map<String, String> props, DeviceStateStore store) {
+        int id = Integer.parseInt(props.get("id"));
+        DeviceKind kind = DeviceKind.of(props.get("type"));
+        StoredDevice d = new StoredDevice(store, kind, id);
+        if (kind == DeviceKind.THERMOSTAT) {
+            d.apply(CommandCode.SET_TEMP, props.containsKey("temperature") ? Double.parseDouble(props.get("temperature")) : 70.0);
+        } else if (kind == DeviceKind.DOOR) {
+            d.apply(CommandCode.LOCK, 0);
         }
-        return tok;
+        return d;
     }
 
-    public static void main(String[] args) {
-        new SmartHomeSystem().repl();
+    public static Device createDevice(Map<String, String> props) {
+        int id = Integer.parseInt(props.get("id"));
+        String type = props.get("type").toLowerCase();
+        switch (type) {
+            case "light":
+                return new Light(id);
+            case "thermostat": {
+                double temp = props.containsKey("temperature") ? Double.parseDouble(props.get("temperature")) : 70.0;
+                return new Thermostat(id, temp);
+            }
+            case "door":
+            case "doorlock":
+                return new DoorLock(id);
+            default:
+                throw new IllegalArgumentException("Unknown device type: " + props.get("type"));
+        }
+    }
+}
+
+// -------------------- Logging --------------------
+enum LogLevel { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+/*
+ A named component's logger ("Hub", "Proxy", ...). The level check is one volatile read;
+ the fixed-arity methods take up to three arguments without a varargs array, and a message
+ is only formatted ({} placeholders) once it passed the check. Primitive arguments are still
+ boxed at the call site, so hot paths guard with isEnabled() first.
+*/
+final class Logger {
+    final String component;
+    private volatile int threshold;
+
+    Logger(String component, LogLevel level) {
+        this.component = component;
+        this.threshold = level.ordinal();
+    }
+
+    void setLevel(LogLevel level) { threshold = level.ordinal(); }
+    public LogLevel level() { return LogLevel.values()[threshold]; }
+    public boolean isEnabled(LogLevel level) { return level.ordinal() >= threshold; }
+
+    public void debug(String msg) { log(LogLevel.DEBUG, msg, null, null, null, 0); }
+    public void debug(String fmt, Object a) { log(LogLevel.DEBUG, fmt, a, null, null, 1); }
+    public void debug(String fmt, Object a, Object b) { log(LogLevel.DEBUG, fmt, a, b, null, 2); }
+    public void debug(String fmt, Object a, Object b, Object c) { log(LogLevel.DEBUG, fmt, a, b, c, 3); }
+    public void info(String msg) { log(LogLevel.INFO, msg, null, null, null, 0); }
+    public void info(String fmt, Object a) { log(LogLevel.INFO, fmt, a, null, null, 1); }
+    public void info(String fmt, Object a, Object b) { log(LogLevel.INFO, fmt, a, b, null, 2); }
+    public void info(String fmt, Object a, Object b, Object c) { log(LogLevel.INFO, fmt, a, b, c, 3); }
+    public void warn(String msg) { log(LogLevel.WARN, msg, null, null, null, 0); }
+    public void warn(String fmt, Object a) { log(LogLevel.WARN, fmt, a, null, null, 1); }
+    public void warn(String fmt, Object a, Object b) { log(LogLevel.WARN, fmt, a, b, null, 2); }
+    public void error(String msg) { log(LogLevel.ERROR, msg, null, null, null, 0); }
+    public void error(String fmt, Object a) { log(LogLevel.ERROR, fmt, a, null, null, 1); }
+    public void error(String fmt, Object a, Object b) { log(LogLevel.ERROR, fmt, a, b, null, 2); }
+
+    private void log(LogLevel level, String fmt, Object a, Object b, Object c, int argc) {
+        if (level.ordinal() < threshold) return;
+        Log.appender().append(new LogRecord(System.currentTimeMillis(), level, component, format(fmt, a, b, c, argc)));
+    }
+
+    // Replaces each {} with the next argument; extra placeholders stay as they are
+    static String format(String fmt, Object a, Object b, Object c, int argc) {
+        if (argc == 0) return fmt;
+        StringBuilder sb = new StringBuilder(fmt.length() + 32);
+        int from = 0, used = 0;
+        for (int at; used < argc && (at = fmt.indexOf("{}", from)) >= 0; from = at + 2) {
+            sb.append(fmt, from, at).append(used == 0 ? a : used == 1 ? b : c);
+            used++;
+        }
+        return sb.append(fmt, from, fmt.length()).toString();
+    }
+}
+
+final class LogRecord {
+    final long timeMillis;
+    final LogLevel level;
+    final String component;
+    final String message;
+
+    LogRecord(long timeMillis, LogLevel level, String component, String message) {
+        this.timeMillis = timeMillis;
+        this.level = level;
+        this.component = component;
+        this.message = message;
+    }
+
+    // A console (UI) line: no component, printed as it is
+    static LogRecord console(LogLevel level, String line) {
+        return new LogRecord(System.currentTimeMillis(), level, null, line);
+    }
+
+    // The console format the hub has always printed: "[Hub] message"
+    @Override
+    public String toString() { return component == null ? message : "[" + component + "] " + message; }
+}
+
+interface LogAppender {
+    void append(LogRecord record);
+    // Returns once every record appended before the call has been written out
+    default void flush() {}
+}
+
+// Synchronous: INFO and below to System.out, WARN and above to System.err, in call order
+class ConsoleLogAppender implements LogAppender {
+    @Override
+    public void append(LogRecord record) {
+        (record.level.ordinal() >= LogLevel.WARN.ordinal() ? System.err : System.out).println(record);
+    }
+
+    @Override
+    public void flush() {
+        System.out.flush();
+        System.err.flush();
+    }
+}
+
+// Buffered writer for the async appender's thread: nothing reaches the streams until flush()
+class StreamLogAppender implements LogAppender {
+    private final PrintStream out, err;
+
+    StreamLogAppender(java.io.OutputStream out, java.io.OutputStream err) {
+        this.out = new PrintStream(new BufferedOutputStream(out, 1 << 16), false);
+        this.err = new PrintStream(new BufferedOutputStream(err, 1 << 16), false);
+    }
+
+    @Override
+    public void append(LogRecord record) {
+        (record.level.ordinal() >= LogLevel.WARN.ordinal() ? err : out).println(record);
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+        err.flush();
+    }
+}
+
+/*
+ Hands records to a writer thread through a bounded queue. The writer takes whatever has
+ accumulated (up to batchSize), appends it to the target and flushes once per batch, so a
+ burst of lines costs one write instead of one per line. When the queue is full the logging
+ thread waits rather than drop records. flush() waits until the records appended before it
+ are written; close() drains the queue.
+*/
+class AsyncLogAppender implements LogAppender, AutoCloseable {
+    private static final LogRecord STOP = new LogRecord(0, LogLevel.OFF, "", "");
+
+    private final java.util.concurrent.ArrayBlockingQueue<LogRecord> queue;
+    private final LogAppender target;
+    private final int batchSize;
+    private final Thread writer;
+    private final LongAdder batches = new LongAdder(), records = new LongAdder();
+    private final AtomicLong appended = new AtomicLong();
+    private long written; // records (STOP included) the writer has flushed, guarded by this
+
+    AsyncLogAppender(LogAppender target, int capacity, int batchSize) {
+        this.queue = new java.util.concurrent.ArrayBlockingQueue<>(capacity);
+        this.target = target;
+        this.batchSize = batchSize;
+        this.writer = new Thread(this::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void append(LogRecord record) {
+        try {
+            queue.put(record);
+            appended.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void flush() {
+        long upTo = appended.get();
+        synchronized (this) {
+            while (written < upTo && writer.isAlive()) {
+                try {
+                    wait(100); // bounded, in case the writer dies with records queued
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void drainLoop() {
+        List<LogRecord> batch = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                boolean stop = false;
+                for (LogRecord r : batch) {
+                    if (r == STOP) stop = true;
+                    else target.append(r);
+                }
+                target.flush();
+                records.add(batch.size() - (stop ? 1 : 0));
+                batches.increment();
+                synchronized (this) {
+                    written += batch.size();
+                    notifyAll();
+                }
+                batch.clear();
+                if (stop) return;
+            }
+        } catch (InterruptedException e) {
+            target.flush();
+        }
+    }
+
+    // Records written and the flushes that wrote them
+    public long records() { return records.sum(); }
+    public long batches() { return batches.sum(); }
+
+    @Override
+    public void close() {
+        append(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/*
+ Logger registry and configuration. Components default to the default level (INFO);
+ configure("warn,Proxy=off,Hub=debug") sets the default and per-component levels.
+ The appender is global and synchronous console output until setAppender() replaces it
+ (SmartHomeSystem --log-async installs an AsyncLogAppender).
+*/
+final class Log {
+    private static final ConcurrentHashMap<String, Logger> loggers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LogLevel> overrides = new ConcurrentHashMap<>();
+    private static volatile LogLevel defaultLevel = LogLevel.INFO;
+    private static volatile LogAppender appender = new ConsoleLogAppender();
+
+    private Log() {}
+
+    public static Logger get(String component) {
+        return loggers.computeIfAbsent(component, c -> new Logger(c, overrides.getOrDefault(c, defaultLevel)));
+    }
+
+    static LogAppender appender() { return appender; }
+
+    // A console line through the same appender as log lines, so the two stay in call order.
+    // Not subject to any level: ERROR goes to stderr, anything else to stdout.
+    public static void console(LogLevel level, String line) {
+        appender.append(LogRecord.console(level, line));
+    }
+
+    // Returns the previous appender; the caller closes it if needed
+    public static LogAppender setAppender(LogAppender next) {
+        LogAppender previous = appender;
+        appender = Objects.requireNonNull(next, "appender");
+        return previous;
+    }
+
+    // Every component without its own level follows this one
+    public static synchronized void setDefaultLevel(LogLevel level) {
+        defaultLevel = level;
+        loggers.forEach((name, logger) -> {
+            if (!overrides.containsKey(name)) logger.setLevel(level);
+        });
+    }
+
+    public static synchronized void setLevel(String component, LogLevel level) {
+        overrides.put(component, level);
+        get(component).setLevel(level);
+    }
+
+    public static void configure(String spec) {
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            int eq = part.indexOf('=');
+            if (eq < 0) setDefaultLevel(parseLevel(part));
+            else setLevel(part.substring(0, eq).trim(), parseLevel(part.substring(eq + 1)));
+        }
+    }
+
+    static LogLevel parseLevel(String name) {
+        try {
+            return LogLevel.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + name + " (trace, debug, info, warn, error, off)");
+        }
+    }
+
+    // Components created so far with their levels, sorted by name
+    public static SortedMap<String, LogLevel> levels() {
+        SortedMap<String, LogLevel> out = new TreeMap<>();
+        loggers.forEach((name, logger) -> out.put(name, logger.level()));
+        return out;
+    }
+}
+
+// -------------------- Proxy Pattern --------------------
+class DeviceProxy implements Device {
+    private static final Logger LOG = Log.get("Proxy");
+
+    private final Device realDevice;
+    private volatile int allowedMask; // simple access control: one CommandCode.bit per allowed command
+    private volatile boolean logging = true;
+
+    public DeviceProxy(Device realDevice) {
+        this.realDevice = realDevice;
+        // default allow all for simplicity; could be customized
+        this.allowedMask = CommandCode.allBits();
+    }
+
+    // For proxies that are their own device (StoredDevice): subclasses override the reads and apply()
+    protected DeviceProxy() {
+        this.realDevice = this;
+        this.allowedMask = CommandCode.allBits();
+    }
+
+    // String adapter: names are resolved case-insensitively, unknown names are rejected
+    public void setAllowedActions(Set<String> actions) {
+        int mask = 0;
+        for (String action : actions) mask |= CommandCode.resolve(action).bit;
+        allowedMask = mask;
+    }
+
+    public void setAllowedCommands(Set<CommandCode> commands) {
+        int mask = 0;
+        for (CommandCode c : commands) mask |= c.bit;
+        allowedMask = mask;
+    }
+
+    public boolean isAllowed(CommandCode code) { return (allowedMask & code.bit) != 0; }
+
+    // Raw CommandCode.bit mask, for snapshots
+    int allowedMask() { return allowedMask; }
+    void setAllowedMask(int mask) { allowedMask = mask & CommandCode.allBits(); }
+
+    // Per-device switch for the "Proxy" INFO line logged on every command
+    public void setLogging(boolean logging) { this.logging = logging; }
+
+    public void execute(CommandCode code, double value) {
+        // Basic permission check:
+        if (!isAllowed(code)) {
+            throw new SecurityException("Action not allowed: " + code.label);
+        }
+        if (logging && LOG.isEnabled(LogLevel.INFO)) { // checked first: getId() would be boxed
+            LOG.info("Executing {} on Device {} ({})", code.label, realDevice.getId(), realDevice.getType());
+        }
+        apply(code, value);
+    }
+
+    // Changes the device's state once the command has been allowed
+    protected void apply(CommandCode code, double value) {
+        if (realDevice instanceof AbstractDevice) {
+            ((AbstractDevice) realDevice).handle(code, value);
+        } else {
+            throw new UnsupportedOperationException("Cannot handle command on this device");
+        }
+    }
+
+    public void execute(CommandCode code) { execute(code, 0); }
+
+    // String adapter over execute(CommandCode, double)
+    public void execute(String command, String... args) throws Exception {
+        CommandCode code = CommandCode.resolve(command);
+        execute(code, code.takesValue() ? parseValue(code, args) : 0);
+    }
+
+    static double parseValue(CommandCode code, String... args) {
+        if (args.length < 1) throw new IllegalArgumentException(code.label + " requires a temperature argument");
+        return Double.parseDouble(args[0]);
+    }
+
+    @Override
+    public int getId() { return realDevice.getId(); }
+    @Override
+    public String getType() { return realDevice.getType(); }
+    @Override
+    public String statusReport() { return realDevice.statusReport(); }
+
+    // State reads pass straight through; no access check, reads never change the device
+    @Override
+    public double getTemperature() { return realDevice.getTemperature(); }
+    @Override
+    public boolean isOn() { return realDevice.isOn(); }
+    @Override
+    public boolean isLocked() { return realDevice.isLocked(); }
+}
+
+// -------------------- Primitive int-keyed map --------------------
+/*
+ Open-addressing int -> V map with linear probing and backward-shift deletion.
+ Keys are never boxed; a slot is empty when its value is null, so null values are rejected.
+ Keys and values live in one Table that is swapped as a unit on resize, which lets
+ optimistic readers (see StripedDeviceRegistry) race a writer without index errors.
+*/
+class IntObjectMap<V> {
+    private static final class Table {
+        final int[] keys;
+        final Object[] vals;
+        Table(int capacity) { keys = new int[capacity]; vals = new Object[capacity]; }
+    }
+
+    private volatile Table table;
+    private int size;
+
+    public IntObjectMap() { this(16); }
+
+    public IntObjectMap(int expected) {
+        int cap = 16;
+        while (cap * 2 < expected * 3) cap <<= 1; // keep load factor under 2/3
+        table = new Table(cap);
+    }
+
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Table t = table;
+        int[] keys = t.keys;
+        Object[] vals = t.vals;
+        int mask = keys.length - 1;
+        // bounded probe: a racing writer can never send a reader round the table forever
+        for (int i = hash(key) & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            Object v = vals[i];
+            if (v == null) return null;
+            if (keys[i] == key) return (V) v;
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) { return get(key) != null; }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) throw new IllegalArgumentException("IntObjectMap does not store null values");
+        if ((size + 1) * 3 > table.keys.length * 2) resize(table.keys.length << 1);
+        Table t = table;
+        int mask = t.keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object v = t.vals[i];
+            if (v == null) {
+                t.keys[i] = key;
+                t.vals[i] = value;
+                size++;
+                return null;
+            }
+            if (t.keys[i] == key) {
+                t.vals[i] = value;
+                return (V) v;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object v = t.vals[i];
+            if (v == null) return null;
+            if (t.keys[i] == key) {
+                shiftBack(t, i);
+                size--;
+                return (V) v;
+            }
+        }
+    }
+
+    // Close the gap at 'gap' by pulling later entries of the same probe run backwards.
+    private static void shiftBack(Table t, int gap) {
+        int mask = t.keys.length - 1;
+        for (int i = (gap + 1) & mask; t.vals[i] != null; i = (i + 1) & mask) {
+            int home = hash(t.keys[i]) & mask;
+            // entry may move to 'gap' only if gap lies cyclically within [home, i)
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                t.keys[gap] = t.keys[i];
+                t.vals[gap] = t.vals[i];
+                gap = i;
+            }
+        }
+        t.vals[gap] = null;
+        t.keys[gap] = 0;
+    }
+
+    private void resize(int capacity) {
+        Table old = table;
+        Table t = new Table(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.keys.length; j++) {
+            Object v = old.vals[j];
+            if (v == null) continue;
+            int i = hash(old.keys[j]) & mask;
+            while (t.vals[i] != null) i = (i + 1) & mask;
+            t.keys[i] = old.keys[j];
+            t.vals[i] = v;
+        }
+        table = t;
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    // Grows the table once so that expected entries fit without further resizes
+    public void ensureCapacity(int expected) {
+        int cap = table.keys.length;
+        while (cap * 2 < expected * 3) cap <<= 1;
+        if (cap > table.keys.length) resize(cap);
+    }
+
+    // Independent copy with the same entries (values are shared, not cloned)
+    public IntObjectMap<V> copy() {
+        IntObjectMap<V> m = new IntObjectMap<>();
+        Table t = table;
+        Table c = new Table(t.keys.length);
+        System.arraycopy(t.keys, 0, c.keys, 0, t.keys.length);
+        System.arraycopy(t.vals, 0, c.vals, 0, t.vals.length);
+        m.table = c;
+        m.size = size;
+        return m;
+    }
+
+    public void clear() {
+        table = new Table(16);
+        size = 0;
+    }
+
+    // Live view; iteration is weakly consistent if another thread writes concurrently.
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            public Iterator<V> iterator() { return valueIterator(); }
+            public int size() { return size; }
+        };
+    }
+
+    Iterator<V> valueIterator() {
+        final Object[] vals = table.vals;
+        return new Iterator<V>() {
+            int idx;
+            Object pending;
+
+            public boolean hasNext() {
+                while (pending == null && idx < vals.length) pending = vals[idx++];
+                return pending != null;
+            }
+
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Object v = pending;
+                pending = null;
+                return (V) v;
+            }
+        };
+    }
+}
+
+// -------------------- Device registry --------------------
+interface DeviceRegistry {
+    DeviceProxy put(DeviceProxy proxy);
+    DeviceProxy get(int id);
+    DeviceProxy remove(int id);
+    Collection<DeviceProxy> values();
+    int size();
+    // Monitor that serializes commands for this device, or null if the registry is single-threaded
+    Object lockFor(int id);
+    // Sizing hint before registering many devices at once
+    default void reserve(int additional) {}
+    // Runs action holding every lockFor monitor, so no command runs meanwhile
+    default void lockingAll(Runnable action) { action.run(); }
+}
+
+// Single-threaded registry backed by an unboxed IntObjectMap, no locking.
+class SimpleDeviceRegistry implements DeviceRegistry {
+    private final IntObjectMap<DeviceProxy> devices;
+
+    public SimpleDeviceRegistry() { this(16); }
+    public SimpleDeviceRegistry(int expectedDevices) { devices = new IntObjectMap<>(expectedDevices); }
+
+    public DeviceProxy put(DeviceProxy proxy) { return devices.put(proxy.getId(), proxy); }
+    public DeviceProxy get(int id) { return devices.get(id); }
+    public DeviceProxy remove(int id) { return devices.remove(id); }
+    public Collection<DeviceProxy> values() { return devices.values(); }
+    public int size() { return devices.size(); }
+    public Object lockFor(int id) { return null; }
+    public void reserve(int additional) { devices.ensureCapacity(devices.size() + additional); }
+}
+
+/*
+ Concurrent registry split into N segments, each an IntObjectMap guarded by a StampedLock.
+ Lookups are optimistic (no lock write unless a registration races them), and commands
+ are serialized on the segment's monitor, so commands for devices in different segments
+ run in parallel. values() is weakly consistent.
+*/
+class StripedDeviceRegistry implements DeviceRegistry {
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        final IntObjectMap<DeviceProxy> map = new IntObjectMap<>();
+    }
+
+    private final Segment[] segments;
+    private final int shift;
+
+    public StripedDeviceRegistry() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedDeviceRegistry(int stripeCount) {
+        if (stripeCount < 1) throw new IllegalArgumentException("stripeCount must be positive: " + stripeCount);
+        int n = 1;
+        while (n < stripeCount) n <<= 1; // power of two so we can take the top hash bits
+        this.segments = new Segment[n];
+        for (int i = 0; i < n; i++) segments[i] = new Segment();
+        this.shift = 32 - Integer.numberOfTrailingZeros(n);
+    }
+
+    // Top hash bits pick the segment; IntObjectMap probes with the low bits.
+    private Segment segmentFor(int id) {
+        return shift == 32 ? segments[0] : segments[IntObjectMap.hash(id) >>> shift];
+    }
+
+    public DeviceProxy put(DeviceProxy proxy) {
+        Segment s = segmentFor(proxy.getId());
+        long stamp = s.lock.writeLock();
+        try { return s.map.put(proxy.getId(), proxy); }
+        finally { s.lock.unlockWrite(stamp); }
+    }
+
+    public DeviceProxy get(int id) {
+        Segment s = segmentFor(id);
+        long stamp = s.lock.tryOptimisticRead();
+        DeviceProxy p = s.map.get(id);
+        if (s.lock.validate(stamp)) return p;
+        stamp = s.lock.readLock();
+        try { return s.map.get(id); }
+        finally { s.lock.unlockRead(stamp); }
+    }
+
+    public DeviceProxy remove(int id) {
+        Segment s = segmentFor(id);
+        long stamp = s.lock.writeLock();
+        try { return s.map.remove(id); }
+        finally { s.lock.unlockWrite(stamp); }
+    }
+
+    public Collection<DeviceProxy> values() {
+        return new AbstractCollection<DeviceProxy>() {
+            public Iterator<DeviceProxy> iterator() {
+                return new Iterator<DeviceProxy>() {
+                    int seg = 0;
+                    Iterator<DeviceProxy> cur = segments[0].map.valueIterator();
+
+                    public boolean hasNext() {
+                        while (!cur.hasNext()) {
+                            if (++seg >= segments.length) return false;
+                            cur = segments[seg].map.valueIterator();
+                        }
+                        return true;
+                    }
+
+                    public DeviceProxy next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return cur.next();
+                    }
+                };
+            }
+            public int size() { return StripedDeviceRegistry.this.size(); }
+        };
+    }
+
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) n += s.map.size();
+        return n;
+    }
+
+    public Object lockFor(int id) { return segmentFor(id); }
+
+    // Monitors are taken in segment order, and a command only ever holds one
+    public void lockingAll(Runnable action) { lockFrom(0, action); }
+
+    private void lockFrom(int segment, Runnable action) {
+        if (segment == segments.length) {
+            action.run();
+            return;
+        }
+        synchronized (segments[segment]) { lockFrom(segment + 1, action); }
+    }
+
+    // Ids hash evenly over the segments; a little slack covers the unevenness
+    public void reserve(int additional) {
+        int perSegment = additional / segments.length + (additional / segments.length >> 4) + 16;
+        for (Segment s : segments) {
+            long stamp = s.lock.writeLock();
+            try { s.map.ensureCapacity(s.map.size() + perSegment); }
+            finally { s.lock.unlockWrite(stamp); }
+        }
+    }
+
+    public int stripeCount() { return segments.length; }
+}
+
+// -------------------- Observer Pattern: Hub & Event --------------------
+interface HubObserver {
+    void onHubEvent(HubEvent event);
+}
+
+// Event kinds the hub publishes; the ordinal indexes per-type subscriber lists
+enum HubEventType {
+    DEVICE_REGISTERED,
+    DEVICE_UNREGISTERED,
+    SCHEDULE_ADDED,
+    TRIGGER_ADDED,
+    STATE_CHANGE,
+    STATE_CHANGE_BATCH,
+    TRIGGER_FIRED,
+    SCHEDULES_EXECUTED;
+
+    private static final HubEventType[] VALUES = values();
+
+    static int count() { return VALUES.length; }
+
+    // null for event types the hub does not know
+    static HubEventType lookup(String name) {
+        for (HubEventType t : VALUES) {
+            if (t.name().equals(name)) return t;
+        }
+        return null;
+    }
+}
+
+class HubEvent {
+    public final String type; // e.g., "TRIGGER_FIRED", "SCHEDULE_EXECUTED", "STATE_CHANGE"
+    public final HubEventType kind; // null for custom types, which only unfiltered observers receive
+    public final Map<String, Object> payload;
+
+    public HubEvent(String type) {
+        this(type, new HashMap<>());
+    }
+    public HubEvent(String type, Map<String, Object> payload) {
+        this(type, HubEventType.lookup(type), payload);
+    }
+    public HubEvent(HubEventType kind, Map<String, Object> payload) {
+        this(kind.name(), kind, payload);
+    }
+    private HubEvent(String type, HubEventType kind, Map<String, Object> payload) {
+        this.type = type;
+        this.kind = kind;
+        this.payload = payload;
+    }
+}
+
+/*
+ Flyweight STATE_CHANGE payload: the hub keeps one per thread and rewrites it for every
+ command, so a steady stream of commands allocates no events. The map (and its event)
+ is only valid for the duration of onHubEvent; observers that keep it must copy it.
+*/
+class StateChangePayload extends AbstractMap<String, Object> {
+    final HubEvent event = new HubEvent(HubEventType.STATE_CHANGE, this);
+    int deviceId;
+    CommandCode code;
+    boolean inUse; // set while observers run, so a re-entrant command gets a fresh payload
+
+    @Override
+    public Object get(Object key) {
+        if ("deviceId".equals(key)) return deviceId;
+        if ("command".equals(key)) return code.label;
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) { return "deviceId".equals(key) || "command".equals(key); }
+
+    @Override
+    public int size() { return 2; }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        copy.put("deviceId", deviceId);
+        copy.put("command", code.label);
+        return Collections.unmodifiableMap(copy).entrySet();
+    }
+}
+
+// -------------------- Observer dispatch --------------------
+// How SmartHub hands an event to its observers
+interface ObserverDispatcher {
+    void dispatch(HubEvent event, HubObserver[] observers);
+
+    // Stop accepting events, deliver what is queued and release any threads
+    default void close() {}
+}
+
+// Default: observers run on the calling thread, in registration order
+class SyncObserverDispatcher implements ObserverDispatcher {
+    private static final Logger LOG = Log.get("Hub");
+
+    @Override
+    public void dispatch(HubEvent event, HubObserver[] observers) {
+        for (HubObserver o : observers) { // array snapshot: no iterator allocation
+            deliver(o, event);
+        }
+    }
+
+    static void deliver(HubObserver o, HubEvent event) {
+        try { o.onHubEvent(event); }
+        catch (Exception e) { LOG.error("observer error: {}", e.getMessage()); }
+    }
+}
+
+// How ring-buffer consumers (and a producer facing a full ring) wait for progress
+interface WaitStrategy {
+    // Returns the highest published sequence >= sequence, or a smaller value if stopped
+    long waitFor(long sequence, AtomicLong cursor, RingBufferObserverDispatcher ring) throws InterruptedException;
+
+    // Called by the producer after each publish
+    default void signalAll() {}
+
+    // Lowest latency, burns a core per consumer
+    static WaitStrategy busySpin() {
+        return (seq, cursor, ring) -> {
+            long available;
+            while ((available = cursor.get()) < seq && ring.isRunning()) Thread.onSpinWait();
+            return available;
+        };
+    }
+
+    // Spins briefly, then yields the core between checks
+    static WaitStrategy yielding() {
+        return (seq, cursor, ring) -> {
+            long available;
+            int spins = 100;
+            while ((available = cursor.get()) < seq && ring.isRunning()) {
+                if (spins > 0) { spins--; Thread.onSpinWait(); }
+                else Thread.yield();
+            }
+            return available;
+        };
+    }
+
+    // Spins, yields, then parks for sleepNanos; low CPU at the cost of wake-up latency
+    static WaitStrategy sleeping(long sleepNanos) {
+        return (seq, cursor, ring) -> {
+            long available;
+            int tries = 200;
+            while ((available = cursor.get()) < seq && ring.isRunning()) {
+                if (tries > 100) Thread.onSpinWait();
+                else if (tries > 0) Thread.yield();
+                else LockSupport.parkNanos(sleepNanos);
+                if (tries > 0) tries--;
+            }
+            return available;
+        };
+    }
+
+    // Consumers block on a condition; the producer only takes the lock when someone waits
+    static WaitStrategy blocking() {
+        return new WaitStrategy() {
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition published = lock.newCondition();
+            private final AtomicInteger waiters = new AtomicInteger();
+
+            @Override
+            public long waitFor(long seq, AtomicLong cursor, RingBufferObserverDispatcher ring) throws InterruptedException {
+                long available = cursor.get();
+                if (available >= seq) return available;
+                lock.lock();
+                try {
+                    waiters.incrementAndGet();
+                    while ((available = cursor.get()) < seq && ring.isRunning()) published.await();
+                } finally {
+                    waiters.decrementAndGet();
+                    lock.unlock();
+                }
+                return available;
+            }
+
+            @Override
+            public void signalAll() {
+                if (waiters.get() == 0) return;
+                lock.lock();
+                try { published.signalAll(); }
+                finally { lock.unlock(); }
+            }
+        };
+    }
+}
+
+/*
+ Asynchronous dispatch through a preallocated ring of event slots. The command thread only
+ copies the event into the next slot and bumps the cursor; consumer threads deliver it.
+ Every consumer reads every slot but owns a fixed share of the observers (chosen by identity
+ hash, so the same observer maps to the same consumer whatever per-type list it arrives in),
+ and each observer still sees events in publish order on one thread.
+ Publishing is serialized, so a hub driven by several threads can share one ring.
+ When the ring is full the producer waits for the slowest consumer (back-pressure).
+*/
+class RingBufferObserverDispatcher implements ObserverDispatcher {
+    private static final class Slot {
+        HubEvent event;
+        HubObserver[] observers;
+        final StateChangePayload stateChange = new StateChangePayload(); // owned copy of the flyweight
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong(-1);  // last published sequence
+    private final AtomicLong[] consumed;                   // last sequence each consumer finished
+    private final Thread[] consumers;
+    private final WaitStrategy waitStrategy;
+    private volatile boolean running = true;
+    private long next = 0; // guarded by this
+
+    public RingBufferObserverDispatcher() { this(1024, 1, WaitStrategy.blocking()); }
+
+    public RingBufferObserverDispatcher(int capacity, int consumerCount, WaitStrategy waitStrategy) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        if (consumerCount < 1) throw new IllegalArgumentException("consumerCount must be positive: " + consumerCount);
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) slots[i] = new Slot();
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+        this.consumed = new AtomicLong[consumerCount];
+        this.consumers = new Thread[consumerCount];
+        for (int k = 0; k < consumerCount; k++) {
+            consumed[k] = new AtomicLong(-1);
+            final int index = k;
+            consumers[k] = new Thread(() -> consume(index), "hub-observer-" + k);
+            consumers[k].setDaemon(true);
+            consumers[k].start();
+        }
+    }
+
+    boolean isRunning() { return running; }
+
+    @Override
+    public synchronized void dispatch(HubEvent event, HubObserver[] observers) {
+        if (!running) throw new IllegalStateException("dispatcher is closed");
+        long seq = next;
+        long wrap = seq - slots.length;
+        while (minConsumed() < wrap) {
+            Thread.onSpinWait();
+            Thread.yield();
+        }
+        Slot slot = slots[(int) seq & mask];
+        if (event.payload instanceof StateChangePayload) {
+            // the hub reuses its flyweight per command, so keep a private copy in the slot
+            StateChangePayload src = (StateChangePayload) event.payload;
+            slot.stateChange.deviceId = src.deviceId;
+            slot.stateChange.code = src.code;
+            slot.event = slot.stateChange.event;
+        } else {
+            slot.event = event;
+        }
+        slot.observers = observers;
+        next = seq + 1;
+        cursor.set(seq);
+        waitStrategy.signalAll();
+    }
+
+    private long minConsumed() {
+        long min = Long.MAX_VALUE;
+        for (AtomicLong c : consumed) min = Math.min(min, c.get());
+        return min;
+    }
+
+    private void consume(int index) {
+        AtomicLong mine = consumed[index];
+        int stride = consumers.length;
+        try {
+            while (true) {
+                long seq = mine.get() + 1;
+                long available = waitStrategy.waitFor(seq, cursor, this);
+                if (available < seq) {
+                    if (!running && cursor.get() < seq) return; // closed and fully drained
+                    continue;
+                }
+                for (; seq <= available; seq++) {
+                    Slot slot = slots[(int) seq & mask];
+                    for (HubObserver o : slot.observers) {
+                        if (stride == 1 || (System.identityHashCode(o) & Integer.MAX_VALUE) % stride == index) {
+                            SyncObserverDispatcher.deliver(o, slot.event);
+                        }
+                    }
+                    mine.set(seq);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Wait until every published event has been delivered; false on timeout
+    public boolean awaitDrained(long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (minConsumed() < cursor.get()) {
+            if (System.nanoTime() > deadline) return false;
+            LockSupport.parkNanos(50_000);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) { running = false; }
+        waitStrategy.signalAll();
+        for (Thread t : consumers) {
+            LockSupport.unpark(t);
+            try { t.join(1000); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+}
+
+class SmartHub {
+    private static final Logger LOG = Log.get("Hub");
+
+    private final DeviceRegistry devices;
+    // Copy-on-write arrays: the command path iterates them without locks or iterators
+    // Subscriptions in registration order; byType[kind.ordinal()] is the derived per-type list
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private volatile HubObserver[][] byType = buildIndex(List.of());
+    private volatile HubObserver[] unfiltered = new HubObserver[0];
+    private volatile ObserverDispatcher dispatcher = new SyncObserverDispatcher();
+    private volatile CommandLog commandLog; // null: state changes are not logged
+    // Devices grouped by type with on/locked counts and a temperature order, for any/all conditions
+    private final ConcurrentHashMap<String, DeviceTypeIndex> typeIndex = new ConcurrentHashMap<>();
+    private final ThreadLocal<StateChangePayload> stateChange = ThreadLocal.withInitial(StateChangePayload::new);
+
+    // Schedules: registration-order list for listing (guarded by itself) plus one bucket per
+    // minute of the day, so a tick only touches the entries due at that minute. A recurring
+    // entry sits in the bucket of every minute it can fire at, unless it fires more often than
+    // hourly: those share one list that every tick checks, instead of up to 1440 bucket slots.
+    private final List<ScheduleEntry> schedules = new ArrayList<>();
+    private final ScheduleBucket[] scheduleBuckets = ScheduleBucket.newDay();
+    private final ScheduleBucket frequentSchedules = new ScheduleBucket();
+    private final HubScheduler scheduler = new HubScheduler(this);
+    private Queue<ScheduleEntry> scheduleFeed; // new entries for the running scheduler, guarded by schedules
+    // Triggers are copy-on-write so ingest threads can iterate while the UI adds
+    private volatile TriggerEntry[] triggers = new TriggerEntry[0];   // registration order, t.seq == index
+    private volatile TriggerIndex triggerIndex = new TriggerIndex();
+    private final ThreadLocal<CascadeContext> cascade = ThreadLocal.withInitial(CascadeContext::new);
+    private final CascadeStats cascadeStats = new CascadeStats();
+    private volatile int maxCascadeDepth = 16;
+
+    public SmartHub() { this(new SimpleDeviceRegistry()); }
+
+    // Pass a StripedDeviceRegistry to drive the hub from many threads
+    public SmartHub(DeviceRegistry registry) { this.devices = registry; }
+
+    private static final class Subscription {
+        final HubObserver observer;
+        final EnumSet<HubEventType> types; // null = every event
+
+        Subscription(HubObserver observer, EnumSet<HubEventType> types) {
+            this.observer = observer;
+            this.types = types;
+        }
+    }
+
+    // Register/unregister observers (devices can observe hub or other observers)
+    public void addObserver(HubObserver o) { subscribe(new Subscription(o, null)); }
+
+    // Only events of the given types reach this observer; none given means all types
+    public void addObserver(HubObserver o, HubEventType... eventTypes) {
+        EnumSet<HubEventType> types = null;
+        if (eventTypes.length > 0) {
+            types = EnumSet.noneOf(HubEventType.class);
+            types.addAll(Arrays.asList(eventTypes));
+        }
+        subscribe(new Subscription(o, types));
+    }
+
+    private synchronized void subscribe(Subscription sub) {
+        subscriptions.add(sub);
+        reindexObservers();
+    }
+
+    // Swap how events reach observers (e.g. a RingBufferObserverDispatcher); returns the previous one
+    public ObserverDispatcher setObserverDispatcher(ObserverDispatcher d) {
+        ObserverDispatcher previous = dispatcher;
+        dispatcher = Objects.requireNonNull(d, "dispatcher");
+        return previous;
+    }
+
+    public synchronized void removeObserver(HubObserver o) {
+        if (subscriptions.removeIf(sub -> sub.observer == o)) reindexObservers();
+    }
+
+    private void reindexObservers() {
+        List<HubObserver> all = new ArrayList<>();
+        for (Subscription sub : subscriptions) {
+            if (sub.types == null) all.add(sub.observer);
+        }
+        unfiltered = all.toArray(new HubObserver[0]);
+        byType = buildIndex(subscriptions);
+    }
+
+    private static HubObserver[][] buildIndex(List<Subscription> subs) {
+        HubObserver[][] index = new HubObserver[HubEventType.count()][];
+        for (HubEventType t : HubEventType.values()) {
+            List<HubObserver> list = new ArrayList<>();
+            for (Subscription sub : subs) {
+                if (sub.types == null || sub.types.contains(t)) list.add(sub.observer);
+            }
+            index[t.ordinal()] = list.toArray(new HubObserver[0]);
+        }
+        return index;
+    }
+
+    // Lets hot paths skip building an event nobody subscribed to
+    private boolean hasSubscribers(HubEventType type) { return byType[type.ordinal()].length > 0; }
+
+    // Observers interested in this event: one array load for hub event types
+    private HubObserver[] subscribersOf(HubEvent event) {
+        return event.kind == null ? unfiltered : byType[event.kind.ordinal()];
+    }
+
+    /*
+     Device management. The registry and the type indexes change together under the device's
+     command lock, so a concurrent command sees either the old device (still counted by its
+     index) or the new one (already counted), never one its index has not caught up with.
+     With a command log attached, a device type the log cannot record is rejected before anything changes.
+    */
+    public void registerDevice(DeviceProxy proxy) {
+        CommandLog log = commandLog;
+        DeviceKind kind = log == null ? null : DeviceKind.of(proxy.getType());
+        Object lock = devices.lockFor(proxy.getId());
+        if (lock == null) {
+            putIndexed(proxy);
+        } else {
+            synchronized (lock) { putIndexed(proxy); }
+        }
+        if (log != null) log.awaitDurable(log.deviceAdded(proxy.getId(), kind, proxy.getTemperature()));
+        if (hasSubscribers(HubEventType.DEVICE_REGISTERED)) {
+            notifyAllObservers(new HubEvent(HubEventType.DEVICE_REGISTERED, Map.of("deviceId", proxy.getId())));
+        }
+    }
+
+    private void putIndexed(DeviceProxy proxy) {
+        DeviceProxy previous = devices.put(proxy);
+        if (previous != null) typeIndex(previous.getType()).remove(previous);
+        typeIndex(proxy.getType()).add(proxy);
+    }
+
+    /*
+     registerDevice for many devices at once, as when loading a snapshot: the registry is sized
+     once and each type index takes its devices in one batch. Commands on any device wait
+     while the batch goes in.
+    */
+    public void registerDevices(List<DeviceProxy> batch) {
+        CommandLog log = commandLog;
+        DeviceKind[] kinds = null;
+        if (log != null) {
+            kinds = new DeviceKind[batch.size()];
+            for (int i = 0; i < kinds.length; i++) kinds[i] = DeviceKind.of(batch.get(i).getType());
+        }
+        devices.reserve(batch.size());
+        Map<String, List<DeviceProxy>> byType = new HashMap<>();
+        for (DeviceProxy proxy : batch) byType.computeIfAbsent(proxy.getType(), t -> new ArrayList<>()).add(proxy);
+        devices.lockingAll(() -> {
+            for (DeviceProxy proxy : batch) {
+                DeviceProxy previous = devices.put(proxy);
+                if (previous != null) typeIndex(previous.getType()).remove(previous);
+            }
+            byType.forEach((type, members) -> typeIndex(type).addAll(members));
+        });
+        if (log != null) {
+            long seq = 0;
+            for (int i = 0; i < kinds.length; i++) {
+                DeviceProxy proxy = batch.get(i);
+                seq = log.deviceAdded(proxy.getId(), kinds[i], proxy.getTemperature());
+            }
+            log.awaitDurable(seq);
+        }
+        if (hasSubscribers(HubEventType.DEVICE_REGISTERED)) {
+            for (DeviceProxy proxy : batch) {
+                notifyAllObservers(new HubEvent(HubEventType.DEVICE_REGISTERED, Map.of("deviceId", proxy.getId())));
+            }
+        }
+    }
+
+    public DeviceProxy unregisterDevice(int id) {
+        Object lock = devices.lockFor(id);
+        DeviceProxy p;
+        if (lock == null) {
+            p = removeIndexed(id);
+        } else {
+            synchronized (lock) { p = removeIndexed(id); }
+        }
+        if (p != null) {
+            CommandLog log = commandLog;
+            if (log != null) log.awaitDurable(log.deviceRemoved(id));
+            if (hasSubscribers(HubEventType.DEVICE_UNREGISTERED)) {
+                notifyAllObservers(new HubEvent(HubEventType.DEVICE_UNREGISTERED, Map.of("deviceId", id)));
+            }
+        }
+        return p;
+    }
+
+    private DeviceProxy removeIndexed(int id) {
+        DeviceProxy p = devices.remove(id);
+        if (p != null) typeIndex(p.getType()).remove(p);
+        return p;
+    }
+
+    // Every later state change is appended to the log; null stops logging. Returns the previous log.
+    public CommandLog setCommandLog(CommandLog log) {
+        CommandLog previous = commandLog;
+        commandLog = log;
+        return previous;
+    }
+
+    // Re-applies a logged command to device state only: no permission check, logging, events
+    // or triggers (actions that triggers fired were logged as commands of their own)
+    public void replayCommand(int deviceId, CommandCode code, double value) {
+        Object lock = devices.lockFor(deviceId);
+        if (lock == null) {
+            applyIndexed(lookup(deviceId), code, value, true);
+        } else {
+            synchronized (lock) { applyIndexed(lookup(deviceId), code, value, true); }
+        }
+    }
+
+    // The live index for one device type (created empty if no such device is registered yet)
+    public DeviceTypeIndex typeIndex(String type) {
+        return typeIndex.computeIfAbsent(type, DeviceTypeIndex::new);
+    }
+
+    public Optional<DeviceProxy> getDevice(int id) { return Optional.ofNullable(devices.get(id)); }
+
+    // getDevice without the Optional, for per-evaluation lookups; null when absent
+    DeviceProxy deviceOrNull(int id) { return devices.get(id); }
+
+    public Collection<DeviceProxy> listDevices() { return devices.values(); }
+
+    /* Scheduling API */
+    public void addSchedule(ScheduleEntry s) {
+        synchronized (schedules) {
+            s.seq = schedules.size();
+            schedules.add(s);
+            Recurrence r = s.recurrence;
+            if (r.minutesPerDay() > ScheduleBucket.MAX_BUCKETED_MINUTES) {
+                frequentSchedules.add(s);
+            } else {
+                for (int m = r.nextMinuteOfDay(0); m >= 0; m = r.nextMinuteOfDay(m + 1)) scheduleBuckets[m].add(s);
+            }
+            if (scheduleFeed != null) {
+                scheduleFeed.add(s);
+                scheduler.wake();
+            }
+        }
+        if (hasSubscribers(HubEventType.SCHEDULE_ADDED)) {
+            notifyAllObservers(new HubEvent(HubEventType.SCHEDULE_ADDED, Map.of("schedule", s)));
+        }
+    }
+
+    // Snapshot in registration order
+    public List<ScheduleEntry> listSchedules() {
+        synchronized (schedules) {
+            return List.copyOf(schedules);
+        }
+    }
+
+    // Wall-clock runner for the schedules; not started until scheduler().start()
+    public HubScheduler scheduler() { return scheduler; }
+
+    // The scheduler's starting set, taken under the same lock that hands it later additions,
+    // so no entry is missed or queued twice
+    List<ScheduleEntry> openScheduleFeed(Queue<ScheduleEntry> feed) {
+        synchronized (schedules) {
+            scheduleFeed = feed;
+            return List.copyOf(schedules);
+        }
+    }
+
+    void closeScheduleFeed(Queue<ScheduleEntry> feed) {
+        synchronized (schedules) {
+            if (scheduleFeed == feed) scheduleFeed = null;
+        }
+    }
+
+    /* Triggers API */
+    public void addTrigger(TriggerEntry t) {
+        synchronized (this) {
+            if (t.seq >= 0) throw new IllegalStateException("Trigger already registered: " + t);
+            t.seq = triggers.length;
+            TriggerEntry[] next = Arrays.copyOf(triggers, triggers.length + 1);
+            next[next.length - 1] = t;
+            triggerIndex = triggerIndex.with(t);
+            triggers = next;
+        }
+        if (hasSubscribers(HubEventType.TRIGGER_ADDED)) {
+            notifyAllObservers(new HubEvent(HubEventType.TRIGGER_ADDED, Map.of("trigger", t)));
+        }
+    }
+
+    /*
+     Registers many triggers with one copy of the trigger array and of the index, instead of one
+     per trigger (snapshot load, generated hubs). Nothing is registered if any entry already is.
+    */
+    public void addTriggers(List<TriggerEntry> batch) {
+        if (batch.isEmpty()) return;
+        synchronized (this) {
+            int base = triggers.length;
+            for (int i = 0; i < batch.size(); i++) {
+                TriggerEntry t = batch.get(i);
+                if (t.seq >= 0) { // registered before, or earlier in this batch
+                    for (int j = 0; j < i; j++) batch.get(j).seq = -1;
+                    throw new IllegalStateException("Trigger already registered: " + t);
+                }
+                t.seq = base + i;
+            }
+            TriggerEntry[] next = Arrays.copyOf(triggers, base + batch.size());
+            for (int i = 0; i < batch.size(); i++) next[base + i] = batch.get(i);
+            triggerIndex = triggerIndex.withAll(batch);
+            triggers = next;
+        }
+        if (hasSubscribers(HubEventType.TRIGGER_ADDED)) {
+            for (TriggerEntry t : batch) notifyAllObservers(new HubEvent(HubEventType.TRIGGER_ADDED, Map.of("trigger", t)));
+        }
+    }
+
+    public List<TriggerEntry> listTriggers() { return List.of(triggers); }
+
+    /* Execute a command via proxy with safety & trigger evaluation */
+    public void executeCommand(int deviceId, CommandCode code, double value) {
+        long seq = applyCommand(deviceId, code, value);
+        if (seq != 0) awaitDurable(seq);
+        afterCommand(deviceId, code);
+    }
+
+    /*
+     Apply many commands, then emit one STATE_CHANGE_BATCH event and evaluate triggers once
+     against the final state. A failing command does not stop the batch; it is reported in
+     the result with its index. The event's "commands" is a copy holding only the applied
+     commands, so observers (possibly on dispatcher threads) never see the caller reuse its list.
+    */
+    public BatchResult executeBatch(List<HubCommand> commands) {
+        BatchResult result = new BatchResult(commands.size());
+        long lastSeq = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            HubCommand c = commands.get(i);
+            try {
+                lastSeq = Math.max(lastSeq, applyCommand(c.deviceId, c.code, c.value));
+                result.applied++;
+            } catch (RuntimeException ex) {
+                result.fail(i, c, ex);
+            }
+        }
+        if (lastSeq != 0) awaitDurable(lastSeq); // one wait covers the whole batch
+        if (result.applied > 0) {
+            if (hasSubscribers(HubEventType.STATE_CHANGE_BATCH)) {
+                notifyAllObservers(new HubEvent(HubEventType.STATE_CHANGE_BATCH, Map.of(
+                        "applied", result.applied,
+                        "failed", result.failures.size(),
+                        "commands", result.appliedCommands(commands))));
+            }
+            // the whole batch is the first wave: every affected trigger is evaluated once
+            CascadeContext ctx = cascade.get();
+            for (int i = 0; i < commands.size(); i++) {
+                HubCommand c = commands.get(i);
+                if (!result.failed(i)) ctx.enqueue(c.deviceId, c.code.attribute);
+            }
+            if (!ctx.active) runCascade(ctx);
+        }
+        return result;
+    }
+
+    // Returns the command's log sequence number, or 0 when no log is attached. The lookup is
+    // under the device's lock, so a device replaced meanwhile is never changed or counted.
+    private long applyCommand(int deviceId, CommandCode code, double value) {
+        Object lock = devices.lockFor(deviceId);
+        if (lock == null) return applyLogged(deviceId, lookup(deviceId), code, value);
+        synchronized (lock) { return applyLogged(deviceId, lookup(deviceId), code, value); }
+    }
+
+    // Appending under the device's lock keeps log order equal to apply order per device
+    private long applyLogged(int deviceId, DeviceProxy p, CommandCode code, double value) {
+        applyIndexed(p, code, value, false);
+        CommandLog log = commandLog;
+        return log == null ? 0 : log.append(deviceId, code, value);
+    }
+
+    // Outside any device lock: with GROUP_COMMIT this waits for the shared fsync
+    private void awaitDurable(long seq) {
+        CommandLog log = commandLog;
+        if (log != null) log.awaitDurable(seq);
+    }
+
+    // Runs the command and moves the device within its type index if the attribute changed.
+    // Called under the device's lock, so the before/after reads see only this command.
+    private void applyIndexed(DeviceProxy p, CommandCode code, double value, boolean replay) {
+        DeviceTypeIndex index = typeIndex.get(p.getType());
+        if (index == null) {
+            run(p, code, value, replay);
+            return;
+        }
+        switch (code.attribute) {
+            case POWER: {
+                boolean before = p.isOn();
+                run(p, code, value, replay);
+                if (p.isOn() != before) index.powerChanged(!before);
+                break;
+            }
+            case LOCK: {
+                boolean before = p.isLocked();
+                run(p, code, value, replay);
+                if (p.isLocked() != before) index.lockChanged(!before);
+                break;
+            }
+            default:
+                run(p, code, value, replay);
+                index.temperatures.update(p.getId(), p.getTemperature());
+        }
+    }
+
+    private static void run(DeviceProxy p, CommandCode code, double value, boolean replay) {
+        if (replay) p.apply(code, value);
+        else p.execute(code, value);
+    }
+
+    // Argument-less commands (turnOn, lock, ...)
+    public void executeCommand(int deviceId, CommandCode code) { executeCommand(deviceId, code, 0); }
+
+    // String adapters: resolve the name (allocation-free for known commands) and delegate
+    public void executeCommand(int deviceId, String command, String... args) throws Exception {
+        CommandCode code = CommandCode.resolve(command);
+        executeCommand(deviceId, code, code.takesValue() ? DeviceProxy.parseValue(code, args) : 0);
+    }
+
+    public void executeCommand(int deviceId, String command) throws Exception {
+        executeCommand(deviceId, CommandCode.resolve(command), 0);
+    }
+
+    public void executeCommand(int deviceId, String command, double value) throws Exception {
+        executeCommand(deviceId, CommandCode.resolve(command), value);
+    }
+
+    private DeviceProxy lookup(int deviceId) {
+        DeviceProxy p = devices.get(deviceId);
+        if (p == null) throw new NoSuchElementException("Device not found: " + deviceId);
+        return p;
+    }
+
+    private void afterCommand(int deviceId, CommandCode code) {
+        // After executing, notify observers of state change (skipped entirely when nobody listens)
+        if (hasSubscribers(HubEventType.STATE_CHANGE)) {
+            StateChangePayload payload = stateChange.get();
+            if (payload.inUse) payload = new StateChangePayload();
+            payload.deviceId = deviceId;
+            payload.code = code;
+            payload.inUse = true;
+            try { notifyAllObservers(payload.event); }
+            finally { payload.inUse = false; }
+        }
+
+        // Queue the change; the outermost command on this thread runs the cascade
+        CascadeContext ctx = cascade.get();
+        ctx.enqueue(deviceId, code.attribute);
+        if (!ctx.active) runCascade(ctx);
+    }
+
+    /* Trigger cascades */
+    // Waves after the first one; deeper chains are cut off and counted as truncated
+    public void setMaxCascadeDepth(int depth) {
+        if (depth < 1) throw new IllegalArgumentException("max cascade depth must be positive: " + depth);
+        maxCascadeDepth = depth;
+    }
+
+    public CascadeStats getCascadeStats() { return cascadeStats; }
+
+    // Metrics of the most recent cascade run on the calling thread
+    public CascadeMetrics lastCascade() { return cascade.get().metrics(); }
+
+    /*
+     Wave-based, iterative trigger evaluation. Wave 0 holds the changes that started the cascade;
+     each wave evaluates every trigger watching any of its changes exactly once, in registration
+     order, and the changes made by fired actions form the next wave. Actions re-enter
+     executeCommand, which only queues while a cascade is active, so the stack stays flat.
+    */
+    private void runCascade(CascadeContext ctx) {
+        ctx.begin();
+        int depthLimit = maxCascadeDepth;
+        try {
+            while (ctx.hasPending()) {
+                if (ctx.waves > depthLimit) {
+                    ctx.truncated = true;
+                    LOG.warn("Trigger cascade stopped after {} waves", depthLimit);
+                    break;
+                }
+                TriggerEntry[] all = triggers;
+                int n = ctx.collectCandidates(triggerIndex, all.length);
+                ctx.waves++;
+                for (int i = 0; i < n; i++) {
+                    ctx.evaluated++;
+                    if (fireIfMatched(all[ctx.candidates[i]])) ctx.fired++;
+                }
+            }
+        } finally {
+            ctx.end();
+            cascadeStats.record(ctx);
+        }
+    }
+
+    private boolean fireIfMatched(TriggerEntry t) {
+        try {
+            if (t.evaluate(this)) {
+                // trigger action(s), compiled when the trigger was built:
+                for (ActionPlan action : t.plans()) runAction(action);
+                if (hasSubscribers(HubEventType.TRIGGER_FIRED)) {
+                    notifyAllObservers(new HubEvent(HubEventType.TRIGGER_FIRED, Map.of("trigger", t)));
+                }
+                return true;
+            }
+        } catch (Exception ex) {
+            LOG.error("Trigger evaluation error: {}", ex.getMessage());
+        }
+        return false;
+    }
+
+    // Actions were compiled when their schedule/trigger was built: dispatch directly, no parsing
+    private void runAction(ActionPlan action) {
+        try {
+            executeCommand(action.deviceId, action.code, action.value);
+        } catch (Exception e) {
+            LOG.error("Action execution failed: {}", e.getMessage());
+        }
+    }
+
+    /* Scheduler execution at a given HH:MM (simulate) */
+    public void runSchedulesAt(String timeHHMM) {
+        runSchedulesAt(ScheduleEntry.parseMinuteOfDay(timeHHMM));
+    }
+
+    // Runs what is due at this minute (0..1439) today, in the scheduler's zone; returns how many ran
+    public int runSchedulesAt(int minuteOfDay) {
+        if (minuteOfDay < 0 || minuteOfDay >= ScheduleBucket.MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("Minute of day out of range: " + minuteOfDay);
+        }
+        int ran = runDueSchedules(minuteOfDay, LocalDate.now(scheduler.zone()));
+        if (ran == 0 && LOG.isEnabled(LogLevel.INFO)) {
+            LOG.info("No scheduled tasks at {}", ScheduleEntry.formatMinuteOfDay(minuteOfDay));
+        }
+        return ran;
+    }
+
+    // Visits only this minute's bucket; entries restricted to other days are skipped
+    // plus the frequent entries firing at this minute, merged in registration order
+    private int runDueSchedules(int minuteOfDay, LocalDate date) {
+        ScheduleBucket bucket = scheduleBuckets[minuteOfDay];
+        int due = bucket.size();           // entries added while running wait for the next tick
+        ScheduleEntry[] entries = bucket.entries();
+        int frequentDue = frequentSchedules.size();
+        ScheduleEntry[] frequent = frequentSchedules.entries();
+        int ran = 0;
+        for (int i = 0, j = 0; i < due || j < frequentDue; ) {
+            ScheduleEntry s;
+            if (j == frequentDue || (i < due && entries[i].seq < frequent[j].seq)) {
+                s = entries[i++];
+            } else {
+                s = frequent[j++];
+                if (!s.recurrence.firesAt(minuteOfDay)) continue;
+            }
+            if (!s.recurrence.firesOn(date)) continue;
+            runSchedule(s);
+            ran++;
+        }
+        if (ran != 0) schedulesExecuted(ScheduleEntry.formatMinuteOfDay(minuteOfDay), ran);
+        return ran;
+    }
+
+    // Entries the HubScheduler found due at one instant ("HH:MM" local time)
+    void runScheduled(List<ScheduleEntry> due, String time) {
+        for (ScheduleEntry s : due) runSchedule(s);
+        schedulesExecuted(time, due.size());
+    }
+
+    private void runSchedule(ScheduleEntry s) {
+        if (LOG.isEnabled(LogLevel.INFO)) LOG.info("Running schedule: device={} time={} action={}", s.deviceId, s.time, s.action);
+        runAction(s.plan);
+    }
+
+    private void schedulesExecuted(String time, int count) {
+        if (hasSubscribers(HubEventType.SCHEDULES_EXECUTED)) {
+            notifyAllObservers(new HubEvent(HubEventType.SCHEDULES_EXECUTED, Map.of("time", time, "count", count)));
+        }
+    }
+
+    private void notifyAllObservers(HubEvent event) {
+        HubObserver[] targets = subscribersOf(event);
+        if (targets.length > 0) dispatcher.dispatch(event, targets);
+    }
+}
+
+// -------------------- Batch commands --------------------
+// One resolved command for SmartHub.executeBatch
+class HubCommand {
+    public final int deviceId;
+    public final CommandCode code;
+    public final double value;
+
+    public HubCommand(int deviceId, CommandCode code, double value) {
+        this.deviceId = deviceId;
+        this.code = Objects.requireNonNull(code, "code");
+        this.value = value;
+    }
+
+    public static HubCommand of(int deviceId, CommandCode code) { return new HubCommand(deviceId, code, 0); }
+    public static HubCommand of(int deviceId, CommandCode code, double value) { return new HubCommand(deviceId, code, value); }
+
+    @Override
+    public String toString() {
+        return code.takesValue()
+                ? String.format("%s(%d, %s)", code.label, deviceId, value)
+                : String.format("%s(%d)", code.label, deviceId);
+    }
+}
+
+class BatchResult {
+    static class Failure {
+        public final int index;
+        public final HubCommand command;
+        public final Exception error;
+
+        Failure(int index, HubCommand command, Exception error) {
+            this.index = index;
+            this.command = command;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d %s: %s", index, command, error.getMessage());
+        }
+    }
+
+    public final int submitted;
+    int applied;
+    final List<Failure> failures = new ArrayList<>();
+    private BitSet failedIndices; // created on the first failure
+
+    BatchResult(int submitted) { this.submitted = submitted; }
+
+    void fail(int index, HubCommand command, Exception error) {
+        failures.add(new Failure(index, command, error));
+        if (failedIndices == null) failedIndices = new BitSet(submitted);
+        failedIndices.set(index);
+    }
+
+    public int getApplied() { return applied; }
+    public List<Failure> getFailures() { return Collections.unmodifiableList(failures); }
+    public boolean isSuccess() { return failures.isEmpty(); }
+
+    boolean failed(int index) { return failedIndices != null && failedIndices.get(index); }
+
+    // The submitted commands that were applied, in order, as an immutable copy
+    List<HubCommand> appliedCommands(List<HubCommand> submitted) {
+        if (failedIndices == null) return List.copyOf(submitted);
+        List<HubCommand> out = new ArrayList<>(applied);
+        for (int i = 0; i < submitted.size(); i++) {
+            if (!failedIndices.get(i)) out.add(submitted.get(i));
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{submitted:%d, applied:%d, failed:%d}", submitted, applied, failures.size());
+    }
+}
+
+// -------------------- Schedule and Trigger data structures --------------------
+/*
+ A compiled action such as "turnOff(1)" or "setTemp(2, 68)": name(deviceId[, value]).
+ Compiled once when the owning schedule or trigger is built, so malformed actions are
+ rejected there and firing is a direct executeCommand with no string work.
+*/
+class ActionPlan {
+    public final String source;
+    public final int deviceId;
+    public final CommandCode code;
+    public final double value;
+
+    private ActionPlan(String source, int deviceId, CommandCode code, double value) {
+        this.source = source;
+        this.deviceId = deviceId;
+        this.code = code;
+        this.value = value;
+    }
+
+    public static ActionPlan compile(String action) {
+        String src = action.trim();
+        int open = src.indexOf('(');
+        if (open < 0 || !src.endsWith(")")) throw new IllegalArgumentException("Invalid action format: " + action);
+        CommandCode code = CommandCode.lookup(src.substring(0, open).trim());
+        if (code == null) throw new IllegalArgumentException("Unknown command in action: " + action);
+        String argPart = src.substring(open + 1, src.length() - 1).trim();
+        if (argPart.isEmpty()) throw new IllegalArgumentException("Action missing device id: " + action);
+        int comma = argPart.indexOf(',');
+        String idPart = (comma < 0 ? argPart : argPart.substring(0, comma)).trim();
+        String valuePart = comma < 0 ? null : argPart.substring(comma + 1).trim();
+        int deviceId;
+        try {
+            deviceId = Integer.parseInt(idPart);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid device id in action: " + action);
+        }
+        double value = 0;
+        if (code.takesValue()) {
+            if (valuePart == null || valuePart.isEmpty()) {
+                throw new IllegalArgumentException(code.label + " requires a temperature argument: " + action);
+            }
+            try {
+                value = Double.parseDouble(valuePart);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value in action: " + action);
+            }
+        } else if (valuePart != null) {
+            throw new IllegalArgumentException(code.label + " takes only a device id: " + action);
+        }
+        return new ActionPlan(src, deviceId, code, value);
+    }
+
+    @Override
+    public String toString() { return source; }
+}
+
+class ScheduleEntry {
+    public final int deviceId;
+    public final String time; // "HH:MM", or a recurrence such as "weekdays 07:30" (see Recurrence)
+    public final String action; // e.g., "turnOn(1)"
+    public final Recurrence recurrence;
+    final ActionPlan plan;
+    int seq = -1; // registration index within its hub, assigned by SmartHub.addSchedule
+
+    // Throws IllegalArgumentException if the time or action does not parse
+    public ScheduleEntry(int deviceId, String time, String action) {
+        this.deviceId = deviceId;
+        this.time = time;
+        this.action = action;
+        this.recurrence = Recurrence.parse(time);
+        this.plan = ActionPlan.compile(action);
+    }
+
+    // "H:MM" or "HH:MM", 00:00..23:59
+    public static int parseMinuteOfDay(String hhmm) {
+        String t = hhmm.trim();
+        int colon = t.indexOf(':');
+        if (colon < 1 || colon > 2 || t.length() != colon + 3) {
+            throw new IllegalArgumentException("Invalid time (expected HH:MM): " + hhmm);
+        }
+        int hour = 0, minute = 0;
+        for (int i = 0; i < t.length(); i++) {
+            if (i == colon) continue;
+            char c = t.charAt(i);
+            if (c < '0' || c > '9') throw new IllegalArgumentException("Invalid time (expected HH:MM): " + hhmm);
+            if (i < colon) hour = hour * 10 + (c - '0');
+            else minute = minute * 10 + (c - '0');
+        }
+        if (hour > 23 || minute > 59) throw new IllegalArgumentException("Time out of range: " + hhmm);
+        return hour * 60 + minute;
+    }
+
+    public static String formatMinuteOfDay(int minuteOfDay) {
+        return String.format("%02d:%02d", minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{device:%d, time:%s, action:%s}", deviceId, time, action);
+    }
+}
+
+/*
+ When a schedule fires. Every form is reduced to the same fields as a cron expression: the
+ set of minutes of the day it fires at, plus month, day-of-month and day-of-week masks.
+   "07:30" or "daily 07:30"           every day at 07:30
+   "weekdays 07:30", "weekends 09:00" Monday-Friday / Saturday-Sunday
+   "mon,wed,fri 18:00", "mon-thu 18:00"
+   "every 15m", "every 2h", "every 5"  minutes of the day divisible by the interval (from 00:00)
+   "cron 0 7 * * 1-5"                  minute hour day-of-month month day-of-week; supports *, a-b,
+                                       lists and /step; day-of-week 0 or 7 is Sunday. As in cron, when
+                                       both day fields are restricted either one matching is enough.
+ nextFireAfter walks forward day by day (at most a few years), so a queue of pending entries
+ can be ordered by their next instant without ever rescanning all schedules.
+*/
+class Recurrence {
+    public static final long NEVER = Long.MAX_VALUE;
+    private static final int MAX_SEARCH_DAYS = 366 * 8; // covers Feb 29 combined with a weekday
+    private static final String[] DAY_NAMES = {"mon", "tue", "wed", "thu", "fri", "sat", "sun"};
+
+    public final String source;
+    private final BitSet minutes;    // minute of day, 0..1439
+    private final int months;        // bit m-1 for month m
+    private final long daysOfMonth;  // bit d-1 for day d
+    private final int daysOfWeek;    // bit DayOfWeek.getValue()-1, Monday first
+    private final boolean anyDayOfMonth, anyDayOfWeek; // the cron field started with *
+
+    private Recurrence(String source, BitSet minutes, int months, long daysOfMonth, boolean anyDayOfMonth,
+                       int daysOfWeek, boolean anyDayOfWeek) {
+        this.source = source;
+        this.minutes = minutes;
+        this.months = months;
+        this.daysOfMonth = daysOfMonth;
+        this.anyDayOfMonth = anyDayOfMonth;
+        this.daysOfWeek = daysOfWeek;
+        this.anyDayOfWeek = anyDayOfWeek;
+    }
+
+    public static Recurrence parse(String spec) {
+        String src = spec.trim().replaceAll("\\s+", " ");
+        String[] tok = src.split(" ");
+        String head = tok[0].toLowerCase(Locale.ROOT);
+        Recurrence r;
+        if (tok.length == 1) {
+            r = onDays(src, tok[0], 0x7f);
+        } else if (head.equals("every") && tok.length == 2) {
+            r = every(src, tok[1]);
+        } else if (head.equals("cron")) {
+            if (tok.length != 6) throw new IllegalArgumentException("cron needs 5 fields (min hour dom month dow): " + spec);
+            r = cron(src, tok);
+        } else if (tok.length == 2) {
+            r = onDays(src, tok[1], dayMask(head, spec));
+        } else {
+            throw new IllegalArgumentException("Unrecognized schedule: " + spec);
+        }
+        if (r.nextFireAfter(System.currentTimeMillis(), ZoneOffset.UTC) == NEVER) {
+            throw new IllegalArgumentException("Schedule never fires: " + spec);
+        }
+        return r;
+    }
+
+    private static Recurrence onDays(String src, String hhmm, int dayMask) {
+        BitSet m = new BitSet(ScheduleBucket.MINUTES_PER_DAY);
+        m.set(ScheduleEntry.parseMinuteOfDay(hhmm));
+        return new Recurrence(src, m, 0xfff, -1L, true, dayMask, dayMask == 0x7f);
+    }
+
+    private static Recurrence every(String src, String interval) {
+        String n = interval.toLowerCase(Locale.ROOT);
+        int unit = 1;
+        if (n.endsWith("h")) { unit = 60; n = n.substring(0, n.length() - 1); }
+        else if (n.endsWith("m")) n = n.substring(0, n.length() - 1);
+        int step;
+        try {
+            step = Integer.parseInt(n) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        }
+        if (step < 1 || step > ScheduleBucket.MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("Interval must be between 1 minute and 24 hours: " + interval);
+        }
+        BitSet m = new BitSet(ScheduleBucket.MINUTES_PER_DAY);
+        for (int i = 0; i < ScheduleBucket.MINUTES_PER_DAY; i += step) m.set(i);
+        return new Recurrence(src, m, 0xfff, -1L, true, 0x7f, true);
+    }
+
+    private static Recurrence cron(String src, String[] tok) {
+        long mins = cronField(tok[1], 0, 59, "minute", src);
+        long hours = cronField(tok[2], 0, 23, "hour", src);
+        long dom = cronField(tok[3], 1, 31, "day of month", src);
+        long mon = cronField(tok[4], 1, 12, "month", src);
+        long dow = cronField(tok[5], 0, 7, "day of week", src);
+        BitSet m = new BitSet(ScheduleBucket.MINUTES_PER_DAY);
+        for (int h = 0; h < 24; h++) {
+            if ((hours & (1L << h)) == 0) continue;
+            for (int i = 0; i < 60; i++) {
+                if ((mins & (1L << i)) != 0) m.set(h * 60 + i);
+            }
+        }
+        // cron counts Sunday as 0 (or 7); DayOfWeek counts Monday as 1
+        int days = (int) (dow >>> 1) & 0x3f;
+        if ((dow & 0x81) != 0) days |= 0x40;
+        // as in cron, a day field starting with * ("*", "*/2") does not widen the other one
+        return new Recurrence(src, m, (int) (mon >>> 1), dom >>> 1, tok[3].startsWith("*"), days, tok[5].startsWith("*"));
+    }
+
+    // One cron field as a bit mask over lo..hi (bit v for value v)
+    private static long cronField(String field, int lo, int hi, String name, String spec) {
+        long mask = 0;
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = cronNumber(part.substring(slash + 1), 1, hi, name, spec);
+                part = part.substring(0, slash);
+            }
+            int from, to;
+            if (part.equals("*")) {
+                from = lo;
+                to = hi;
+            } else {
+                int dash = part.indexOf('-');
+                from = cronNumber(dash < 0 ? part : part.substring(0, dash), lo, hi, name, spec);
+                to = dash < 0 ? (slash >= 0 ? hi : from) : cronNumber(part.substring(dash + 1), lo, hi, name, spec);
+                if (to < from) throw new IllegalArgumentException("Empty " + name + " range in: " + spec);
+            }
+            for (int v = from; v <= to; v += step) mask |= 1L << v;
+        }
+        return mask;
+    }
+
+    private static int cronNumber(String s, int lo, int hi, String name, String spec) {
+        try {
+            int v = Integer.parseInt(s);
+            if (v >= lo && v <= hi) return v;
+        } catch (NumberFormatException e) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Invalid " + name + " '" + s + "' in: " + spec);
+    }
+
+    // "weekdays", "weekends", "daily", "mon,wed,fri", "mon-fri"
+    private static int dayMask(String days, String spec) {
+        switch (days) {
+            case "daily": return 0x7f;
+            case "weekdays": return 0x1f;
+            case "weekends": return 0x60;
+            default:
+        }
+        int mask = 0;
+        for (String part : days.split(",")) {
+            int dash = part.indexOf('-');
+            int from = dayIndex(dash < 0 ? part : part.substring(0, dash), spec);
+            int to = dash < 0 ? from : dayIndex(part.substring(dash + 1), spec);
+            for (int d = from; ; d = (d + 1) % 7) {
+                mask |= 1 << d;
+                if (d == to) break;
+            }
+        }
+        return mask;
+    }
+
+    private static int dayIndex(String name, String spec) {
+        for (int i = 0; i < DAY_NAMES.length; i++) {
+            if (DAY_NAMES[i].equals(name)) return i;
+        }
+        throw new IllegalArgumentException("Unknown day '" + name + "' in: " + spec);
+    }
+
+    // Next minute of the day >= from this recurrence fires at, or -1
+    public int nextMinuteOfDay(int from) { return minutes.nextSetBit(from); }
+
+    public boolean firesAt(int minuteOfDay) { return minutes.get(minuteOfDay); }
+
+    public int minutesPerDay() { return minutes.cardinality(); }
+
+    public boolean firesOn(LocalDate date) {
+        if ((months & (1 << (date.getMonthValue() - 1))) == 0) return false;
+        boolean dom = (daysOfMonth & (1L << (date.getDayOfMonth() - 1))) != 0;
+        boolean dow = (daysOfWeek & (1 << (date.getDayOfWeek().getValue() - 1))) != 0;
+        // both day fields restricted: either may match; otherwise both must
+        if (anyDayOfMonth || anyDayOfWeek) return dom && dow;
+        return dom || dow;
+    }
+
+    // First fire instant strictly after epochMillis, in epoch millis, or NEVER
+    public long nextFireAfter(long epochMillis, ZoneId zone) {
+        LocalDateTime start = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), zone)
+                .truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        LocalDate date = start.toLocalDate();
+        int from = start.getHour() * 60 + start.getMinute();
+        for (int day = 0; day < MAX_SEARCH_DAYS; day++, date = date.plusDays(1), from = 0) {
+            if (!firesOn(date)) continue;
+            for (int m = minutes.nextSetBit(from); m >= 0; m = minutes.nextSetBit(m + 1)) {
+                // A time skipped by a DST gap fires just after the gap; a repeated hour fires once
+                long at = date.atTime(m / 60, m % 60).atZone(zone).toInstant().toEpochMilli();
+                if (at > epochMillis) return at;
+            }
+        }
+        return NEVER;
+    }
+
+    @Override
+    public String toString() { return source; }
+}
+
+/*
+ Schedules due at one minute of the day. Appends happen under the hub's schedules lock;
+ a tick reads size() then entries() without locking: an array is filled before it is
+ published and published before the size that covers it, so entries()[0..size) is complete.
+*/
+class ScheduleBucket {
+    static final int MINUTES_PER_DAY = 24 * 60;
+    static final int MAX_BUCKETED_MINUTES = 24; // more fires per day than this: SmartHub's frequent list
+
+    private volatile ScheduleEntry[] entries = new ScheduleEntry[0];
+    private volatile int size;
+
+    static ScheduleBucket[] newDay() {
+        ScheduleBucket[] day = new ScheduleBucket[MINUTES_PER_DAY];
+        for (int m = 0; m < day.length; m++) day[m] = new ScheduleBucket();
+        return day;
+    }
+
+    // Caller holds the owning hub's schedules lock
+    void add(ScheduleEntry s) {
+        int n = size;
+        if (n == entries.length) entries = Arrays.copyOf(entries, Math.max(4, n * 2));
+        entries[n] = s;
+        size = n + 1;
+    }
+
+    int size() { return size; }
+
+    ScheduleEntry[] entries() { return entries; }
+}
+
+/*
+ Trigger condition language, compiled once into a tree of predicate closures:
+   condition := term (OR term)*            OR may also be written ||
+   term      := factor (AND factor)*       AND may also be written &&
+   factor    := NOT factor | ( condition ) | atom      NOT may also be written !
+   atom      := device <id> <state>        one registered device (checked at compile time)
+              | any|all <type> <state>     every registered device of a type (all needs at least one)
+              | temperature <cmp> <number> legacy form of: any thermostat temperature <cmp> <number>
+   state     := temperature <cmp> <number> | on | off | locked | unlocked     ("is" is optional)
+   cmp       := > < >= <= == !=
+ Keywords are case-insensitive. The comparison operator and the attribute are resolved
+ during compile; evaluation is a registry lookup for device atoms plus field reads and compares. any/all atoms
+ read the hub's DeviceTypeIndex (counts and temperature min/max), not the device list. The condition
+ declares what it reads (devices for device atoms, attributes for any/all atoms), so the hub
+ re-evaluates it only when one of those changes. A device atom looks its device up on every
+ evaluation, so it follows a re-registered device; while the id is unregistered, or registered
+ as another type, the atom is false.
+*/
+class TriggerCondition {
+    public final String source;
+    public final Predicate<SmartHub> predicate;
+    public final TriggerDependencies dependencies;
+
+    private TriggerCondition(String source, Predicate<SmartHub> predicate, TriggerDependencies dependencies) {
+        this.source = source;
+        this.predicate = predicate;
+        this.dependencies = dependencies;
+    }
+
+    // Throws IllegalArgumentException with the offending token on syntax or reference errors
+    public static TriggerCondition compile(String source, SmartHub hub) {
+        Parser p = new Parser(tokenize(source), hub, source);
+        TriggerCondition c = p.condition();
+        if (p.pos < p.tokens.size()) throw p.error("Unexpected '" + p.tokens.get(p.pos) + "'");
+        return new TriggerCondition(source.trim(), c.predicate, c.dependencies);
+    }
+
+    public TriggerEntry toTrigger(List<String> actions) {
+        return new TriggerEntry(this, actions);
+    }
+
+    private static List<String> tokenize(String src) {
+        List<String> out = new ArrayList<>();
+        int i = 0, n = src.length();
+        while (i < n) {
+            char c = src.charAt(i);
+            if (Character.isWhitespace(c)) { i++; continue; }
+            int start = i;
+            if (c == '(' || c == ')') {
+                i++;
+            } else if ("<>=!&|".indexOf(c) >= 0) {
+                i++;
+                if (i < n && "=&|".indexOf(src.charAt(i)) >= 0) i++;
+            } else {
+                while (i < n && !Character.isWhitespace(src.charAt(i)) && "()<>=!&|".indexOf(src.charAt(i)) < 0) i++;
+            }
+            out.add(src.substring(start, i));
+        }
+        return out;
+    }
+
+    private static final class Parser {
+        final List<String> tokens;
+        final SmartHub hub;
+        final String source;
+        int pos;
+
+        Parser(List<String> tokens, SmartHub hub, String source) {
+            this.tokens = tokens;
+            this.hub = hub;
+            this.source = source;
+        }
+
+        TriggerCondition condition() {
+            TriggerCondition left = term();
+            while (accept("or", "||")) {
+                TriggerCondition right = term();
+                left = new TriggerCondition(null, left.predicate.or(right.predicate), left.dependencies.plus(right.dependencies));
+            }
+            return left;
+        }
+
+        TriggerCondition term() {
+            TriggerCondition left = factor();
+            while (accept("and", "&&")) {
+                TriggerCondition right = factor();
+                left = new TriggerCondition(null, left.predicate.and(right.predicate), left.dependencies.plus(right.dependencies));
+            }
+            return left;
+        }
+
+        TriggerCondition factor() {
+            if (accept("not", "!")) {
+                TriggerCondition inner = factor();
+                return new TriggerCondition(null, inner.predicate.negate(), inner.dependencies);
+            }
+            if (accept("(", "(")) {
+                TriggerCondition inner = condition();
+                expect(")");
+                return inner;
+            }
+            return atom();
+        }
+
+        TriggerCondition atom() {
+            String word = next("a condition");
+            switch (word.toLowerCase(Locale.ROOT)) {
+                case "device": return deviceAtom();
+                case "any": return typeAtom(false);
+                case "all": return typeAtom(true);
+                case "temperature":
+                    pos--;
+                    return typeAtom("thermostat", false);
+                default: throw error("Unknown condition '" + word + "'");
+            }
+        }
+
+        TriggerCondition deviceAtom() {
+            String idTok = next("a device id");
+            int id;
+            try {
+                id = Integer.parseInt(idTok);
+            } catch (NumberFormatException e) {
+                throw error("Invalid device id '" + idTok + "'");
+            }
+            DeviceProxy d = hub.getDevice(id).orElseThrow(() -> error("Unknown device " + id));
+            StateTest test = state();
+            String type = d.getType();
+            requireType(type, test.attribute, "device " + id);
+            return new TriggerCondition(null, h -> {
+                DeviceProxy current = h.deviceOrNull(id);
+                return current != null && current.getType().equals(type) && test.test(current);
+            }, TriggerDependencies.onDevices(id));
+        }
+
+        TriggerCondition typeAtom(boolean all) {
+            String type = next("a device type").toLowerCase(Locale.ROOT);
+            if (type.endsWith("s")) type = type.substring(0, type.length() - 1); // "all doors locked"
+            return typeAtom(type, all);
+        }
+
+        // Answered from the hub's DeviceTypeIndex: counts for on/off/locked, min/max for temperatures
+        TriggerCondition typeAtom(String type, boolean all) {
+            StateTest test = state();
+            requireType(type, test.attribute, type);
+            DeviceTypeIndex g = hub.typeIndex(type);
+            Predicate<SmartHub> p;
+            switch (test.state) {
+                case "on": p = all ? h -> g.size() > 0 && g.poweredOn() == g.size() : h -> g.poweredOn() > 0; break;
+                case "off": p = all ? h -> g.size() > 0 && g.poweredOn() == 0 : h -> g.poweredOn() < g.size(); break;
+                case "locked": p = all ? h -> g.size() > 0 && g.locked() == g.size() : h -> g.locked() > 0; break;
+                case "unlocked": p = all ? h -> g.size() > 0 && g.locked() == 0 : h -> g.locked() < g.size(); break;
+                default: p = temperatureAggregate(g.temperatures, test.op, test.value, all);
+            }
+            return new TriggerCondition(null, p, TriggerDependencies.onAttributes(test.attribute));
+        }
+
+        // min/max are NaN for an empty index, so every comparison below is false then
+        static Predicate<SmartHub> temperatureAggregate(TemperatureIndex t, String op, double v, boolean all) {
+            switch (op) {
+                case ">": return all ? h -> t.min() > v : h -> t.max() > v;
+                case ">=": return all ? h -> t.min() >= v : h -> t.max() >= v;
+                case "<": return all ? h -> t.max() < v : h -> t.min() < v;
+                case "<=": return all ? h -> t.max() <= v : h -> t.min() <= v;
+                case "==": return all ? h -> t.min() == v && t.max() == v : h -> t.contains(v);
+                default: // "!="
+                    return all ? h -> t.size() > 0 && !t.contains(v) : h -> t.size() > 0 && !(t.min() == v && t.max() == v);
+            }
+        }
+
+        StateTest state() {
+            accept("is", "is");
+            String word = next("a device state").toLowerCase(Locale.ROOT);
+            switch (word) {
+                case "on": return new StateTest(word, DeviceAttribute.POWER, Device::isOn);
+                case "off": return new StateTest(word, DeviceAttribute.POWER, d -> !d.isOn());
+                case "locked": return new StateTest(word, DeviceAttribute.LOCK, Device::isLocked);
+                case "unlocked": return new StateTest(word, DeviceAttribute.LOCK, d -> !d.isLocked());
+                case "temperature": {
+                    String op = next("a comparison");
+                    String numTok = next("a number");
+                    double v;
+                    try {
+                        v = Double.parseDouble(numTok);
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid number '" + numTok + "'");
+                    }
+                    Predicate<Device> cmp;
+                    switch (op) {
+                        case ">": cmp = d -> d.getTemperature() > v; break;
+                        case "<": cmp = d -> d.getTemperature() < v; break;
+                        case ">=": cmp = d -> d.getTemperature() >= v; break;
+                        case "<=": cmp = d -> d.getTemperature() <= v; break;
+                        case "==": cmp = d -> d.getTemperature() == v; break;
+                        case "!=": cmp = d -> d.getTemperature() != v; break;
+                        default: throw error("Unknown comparison '" + op + "'");
+                    }
+                    return new StateTest(op, v, cmp);
+                }
+                default: throw error("Unknown device state '" + word + "'");
+            }
+        }
+
+        // Each attribute belongs to one built-in device type
+        void requireType(String type, DeviceAttribute attribute, String what) {
+            String owner;
+            switch (attribute) {
+                case POWER: owner = "light"; break;
+                case TEMPERATURE: owner = "thermostat"; break;
+                default: owner = "door";
+            }
+            if (!owner.equals(type)) {
+                throw error(what + " has no " + attribute.name().toLowerCase(Locale.ROOT) + " state (only " + owner + "s do)");
+            }
+        }
+
+        boolean accept(String word, String symbol) {
+            if (pos < tokens.size()) {
+                String t = tokens.get(pos);
+                if (t.equalsIgnoreCase(word) || t.equals(symbol)) {
+                    pos++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void expect(String token) {
+            if (!accept(token, token)) throw error("Expected '" + token + "'");
+        }
+
+        String next(String what) {
+            if (pos >= tokens.size()) throw error("Expected " + what);
+            return tokens.get(pos++);
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " in condition: " + source);
+        }
+    }
+
+    // One parsed <state>: the per-device test, plus what aggregate (any/all) atoms need
+    private static final class StateTest {
+        final String state;   // on, off, locked, unlocked or temperature
+        final DeviceAttribute attribute;
+        final Predicate<Device> test;
+        final String op;      // temperature only
+        final double value;
+
+        StateTest(String state, DeviceAttribute attribute, Predicate<Device> test) {
+            this.state = state;
+            this.attribute = attribute;
+            this.test = test;
+            this.op = null;
+            this.value = Double.NaN;
+        }
+
+        StateTest(String op, double value, Predicate<Device> test) {
+            this.state = "temperature";
+            this.attribute = DeviceAttribute.TEMPERATURE;
+            this.test = test;
+            this.op = op;
+            this.value = value;
+        }
+
+        boolean test(Device d) { return test.test(d); }
+    }
+
+    @Override
+    public String toString() { return source; }
+}
+
+class TriggerEntry {
+    // For simplicity, support triggers of thermostat temperature condition or general predicate
+    private final String conditionDesc;
+    private final Predicate<SmartHub> predicate;
+    private final List<String> actions;
+    private final ActionPlan[] plans;
+    private final TriggerDependencies dependencies;
+    final TriggerCondition source; // null when the predicate was written in code
+    int seq = -1; // registration index within its hub, assigned by SmartHub.addTrigger
+
+    // No declared dependencies: re-evaluated after every change
+    public TriggerEntry(String conditionDesc, Predicate<SmartHub> predicate, List<String> actions) {
+        this(conditionDesc, predicate, actions, TriggerDependencies.ANY);
+    }
+
+    // Re-evaluated only when a watched device or attribute changes
+    public TriggerEntry(String conditionDesc, Predicate<SmartHub> predicate, List<String> actions,
+                        TriggerDependencies dependencies) {
+        this(conditionDesc, predicate, actions, dependencies, null);
+    }
+
+    TriggerEntry(TriggerCondition condition, List<String> actions) {
+        this(condition.source, condition.predicate, actions, condition.dependencies, condition);
+    }
+
+    private TriggerEntry(String conditionDesc, Predicate<SmartHub> predicate, List<String> actions,
+                         TriggerDependencies dependencies, TriggerCondition source) {
+        this.source = source;
+        this.conditionDesc = conditionDesc;
+        this.predicate = predicate;
+        this.actions = List.copyOf(actions);
+        this.plans = new ActionPlan[actions.size()];
+        for (int i = 0; i < plans.length; i++) plans[i] = ActionPlan.compile(actions.get(i)); // rejects bad actions
+        this.dependencies = Objects.requireNonNull(dependencies, "dependencies");
+    }
+
+    public TriggerDependencies getDependencies() { return dependencies; }
+
+    public boolean evaluate(SmartHub hub) {
+        return predicate.test(hub);
+    }
+
+    public List<String> getActions() { return actions; }
+
+    ActionPlan[] plans() { return plans; }
+
+    @Override
+    public String toString() {
+        return String.format("{condition:%s, actions:%s, watches:%s}", conditionDesc, actions, dependencies);
+    }
+}
+
+/*
+ One device type's slice of a hub: its members plus aggregates that SmartHub keeps current
+ as devices register and commands run, so "any/all <type> ..." conditions never walk the
+ registry. Counts are exact once concurrent commands on the type have returned.
+*/
+class DeviceTypeIndex {
+    public final String type;
+    public final TemperatureIndex temperatures = new TemperatureIndex();
+    private final IntObjectMap<DeviceProxy> members = new IntObjectMap<>(); // guarded by this
+    private volatile int size;
+    private final AtomicInteger poweredOn = new AtomicInteger();
+    private final AtomicInteger locked = new AtomicInteger();
+
+    DeviceTypeIndex(String type) { this.type = type; }
+
+    // A member with the same id is replaced and uncounted, as in addAll
+    synchronized void add(DeviceProxy p) {
+        DeviceProxy old = members.put(p.getId(), p);
+        if (old != null) uncount(old);
+        size = members.size();
+        if (p.isOn()) poweredOn.incrementAndGet();
+        if (p.isLocked()) locked.incrementAndGet();
+        double t = p.getTemperature();
+        if (!Double.isNaN(t)) temperatures.add(p.getId(), t);
+    }
+
+    // One lock acquisition for a batch; an empty temperature index is built in O(n log n) at once
+    synchronized void addAll(List<DeviceProxy> batch) {
+        members.ensureCapacity(members.size() + batch.size());
+        int[] ids = new int[batch.size()];
+        double[] temps = new double[batch.size()];
+        int n = 0;
+        for (DeviceProxy p : batch) {
+            DeviceProxy old = members.put(p.getId(), p);
+            if (old != null) uncount(old);
+            if (p.isOn()) poweredOn.incrementAndGet();
+            if (p.isLocked()) locked.incrementAndGet();
+            double t = p.getTemperature();
+            if (!Double.isNaN(t)) {
+                ids[n] = p.getId();
+                temps[n++] = t;
+            }
+        }
+        size = members.size();
+        temperatures.addAll(ids, temps, n);
+    }
+
+    synchronized void remove(DeviceProxy p) {
+        if (members.get(p.getId()) != p) return;
+        members.remove(p.getId());
+        size = members.size();
+        uncount(p);
+        temperatures.remove(p.getId());
+    }
+
+    private void uncount(DeviceProxy p) {
+        if (p.isOn()) poweredOn.decrementAndGet();
+        if (p.isLocked()) locked.decrementAndGet();
+    }
+
+    void powerChanged(boolean nowOn) { if (nowOn) poweredOn.incrementAndGet(); else poweredOn.decrementAndGet(); }
+
+    void lockChanged(boolean nowLocked) { if (nowLocked) locked.incrementAndGet(); else locked.decrementAndGet(); }
+
+    public int size() { return size; }
+    public int poweredOn() { return poweredOn.get(); }
+    public int locked() { return locked.get(); }
+    public synchronized List<DeviceProxy> members() { return new ArrayList<>(members.values()); }
+}
+
+/*
+ Devices ordered by (temperature, id) in a treap whose nodes are allocated once per device
+ and re-linked on every change, so setTemp stays allocation-free. Updates take the index
+ monitor and are O(log n) expected; the minimum and maximum are republished after each
+ update, so most any/all comparisons are answered from two volatile reads.
+*/
+class TemperatureIndex {
+    private static final class Node {
+        final int id;
+        final int priority;
+        double temp;
+        Node left, right;
+
+        Node(int id, double temp) {
+            this.id = id;
+            this.temp = temp;
+            int h = id * 0x85ebca6b; // murmur3 finalizer: priorities independent of id order
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            this.priority = h ^ (h >>> 16);
+        }
+    }
+
+    private final IntObjectMap<Node> nodes = new IntObjectMap<>();
+    private Node root;
+    private volatile double min = Double.NaN, max = Double.NaN; // NaN when empty: every comparison is false
+    private volatile int size;
+
+    synchronized void add(int id, double temp) {
+        Node n = nodes.get(id);
+        if (n != null) {
+            update(id, temp);
+            return;
+        }
+        n = new Node(id, temp);
+        nodes.put(id, n);
+        root = insert(root, n);
+        publish();
+    }
+
+    /*
+     Adds n devices. Into an empty index the nodes are radix-sorted by key and linked into the
+     treap in one left-to-right pass (a Cartesian tree on priority, kept with a stack of the
+     right spine), O(n) in all; otherwise they are inserted one by one. A repeated id keeps
+     its last temperature.
+    */
+    synchronized void addAll(int[] ids, double[] temps, int n) {
+        if (root != null) {
+            for (int i = 0; i < n; i++) add(ids[i], temps[i]);
+            return;
+        }
+        nodes.ensureCapacity(n);
+        Node[] created = new Node[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            Node node = nodes.get(ids[i]);
+            if (node != null) {
+                node.temp = temps[i];
+                continue;
+            }
+            node = new Node(ids[i], temps[i]);
+            nodes.put(ids[i], node);
+            created[count++] = node;
+        }
+        int[] order = sortedOrder(created, count);
+        Node[] spine = new Node[64];
+        int depth = 0;
+        for (int i = 0; i < count; i++) {
+            Node node = created[order[i]], last = null;
+            while (depth > 0 && spine[depth - 1].priority < node.priority) last = spine[--depth];
+            node.left = last;
+            if (depth > 0) spine[depth - 1].right = node;
+            if (depth == spine.length) spine = Arrays.copyOf(spine, depth * 2);
+            spine[depth++] = node;
+        }
+        root = depth == 0 ? null : spine[0];
+        publish();
+    }
+
+    // Positions of the first count nodes in (temp, id) order: LSD radix sort, 16 bits a pass,
+    // id digits first so the stable temperature passes leave equal temperatures in id order
+    private static int[] sortedOrder(Node[] nodes, int count) {
+        long[] temps = new long[count];
+        int[] ids = new int[count];
+        int[] order = new int[count], scratch = new int[count];
+        for (int i = 0; i < count; i++) {
+            long bits = Double.doubleToLongBits(nodes[i].temp);
+            temps[i] = bits ^ ((bits >> 63) | Long.MIN_VALUE); // unsigned order == Double.compare order
+            ids[i] = nodes[i].id ^ Integer.MIN_VALUE;
+            order[i] = i;
+        }
+        int[] counts = new int[(1 << 16) + 1];
+        for (int pass = 0; pass < 6; pass++) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < count; i++) counts[digit(temps, ids, order[i], pass) + 1]++;
+            if (count == 0 || counts[digit(temps, ids, order[0], pass) + 1] == count) continue; // one digit value
+            for (int d = 0; d < 1 << 16; d++) counts[d + 1] += counts[d];
+            for (int i = 0; i < count; i++) scratch[counts[digit(temps, ids, order[i], pass)]++] = order[i];
+            int[] t = order;
+            order = scratch;
+            scratch = t;
+        }
+        return order;
+    }
+
+    private static int digit(long[] temps, int[] ids, int i, int pass) {
+        return pass < 2 ? (ids[i] >>> (pass << 4)) & 0xffff : (int) (temps[i] >>> ((pass - 2) << 4)) & 0xffff;
+    }
+
+    synchronized void remove(int id) {
+        Node n = nodes.remove(id);
+        if (n == null) return;
+        root = delete(root, n);
+        publish();
+    }
+
+    // No-op for devices the index does not hold
+    synchronized void update(int id, double temp) {
+        Node n = nodes.get(id);
+        if (n == null || Double.compare(n.temp, temp) == 0) return;
+        root = delete(root, n);
+        n.temp = temp;
+        n.left = n.right = null;
+        root = insert(root, n);
+        publish();
+    }
+
+    public int size() { return size; }
+    public double min() { return min; }
+    public double max() { return max; }
+
+    public synchronized boolean contains(double temp) {
+        for (Node t = root; t != null; ) {
+            if (t.temp == temp) return true;
+            t = temp < t.temp ? t.left : t.right;
+        }
+        return false;
+    }
+
+    private void publish() {
+        if (root == null) {
+            min = max = Double.NaN;
+        } else {
+            Node lo = root, hi = root;
+            while (lo.left != null) lo = lo.left;
+            while (hi.right != null) hi = hi.right;
+            min = lo.temp;
+            max = hi.temp;
+        }
+        size = nodes.size();
+    }
+
+    private static boolean less(Node a, Node b) {
+        int c = Double.compare(a.temp, b.temp);
+        return c < 0 || (c == 0 && a.id < b.id);
+    }
+
+    private static Node insert(Node t, Node n) {
+        if (t == null) return n;
+        if (less(n, t)) {
+            t.left = insert(t.left, n);
+            if (t.left.priority > t.priority) {
+                Node l = t.left;
+                t.left = l.right;
+                l.right = t;
+                return l;
+            }
+        } else {
+            t.right = insert(t.right, n);
+            if (t.right.priority > t.priority) {
+                Node r = t.right;
+                t.right = r.left;
+                r.left = t;
+                return r;
+            }
+        }
+        return t;
+    }
+
+    private static Node delete(Node t, Node n) {
+        if (t == n) return merge(t.left, t.right);
+        if (less(n, t)) t.left = delete(t.left, n);
+        else t.right = delete(t.right, n);
+        return t;
+    }
+
+    // Every key in a is below every key in b
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        return b;
+    }
+}
+
+/*
+ What a trigger's predicate reads: specific devices (any attribute) and/or attributes (on any
+ device). A change to device d via a command touching attribute a re-evaluates the triggers
+ watching d or a. ANY declares nothing, so the trigger is re-evaluated after every change.
+*/
+class TriggerDependencies {
+    public static final TriggerDependencies ANY = new TriggerDependencies(new int[0], EnumSet.noneOf(DeviceAttribute.class));
+
+    private final int[] deviceIds;
+    private final EnumSet<DeviceAttribute> attributes;
+
+    private TriggerDependencies(int[] deviceIds, EnumSet<DeviceAttribute> attributes) {
+        this.deviceIds = deviceIds;
+        this.attributes = attributes;
+    }
+
+    public static TriggerDependencies onDevices(int... deviceIds) {
+        return new TriggerDependencies(deviceIds.clone(), EnumSet.noneOf(DeviceAttribute.class));
+    }
+
+    public static TriggerDependencies onAttributes(DeviceAttribute first, DeviceAttribute... rest) {
+        return new TriggerDependencies(new int[0], EnumSet.of(first, rest));
+    }
+
+    public TriggerDependencies plus(TriggerDependencies other) {
+        int[] ids = Arrays.copyOf(deviceIds, deviceIds.length + other.deviceIds.length);
+        System.arraycopy(other.deviceIds, 0, ids, deviceIds.length, other.deviceIds.length);
+        EnumSet<DeviceAttribute> attrs = EnumSet.copyOf(attributes);
+        attrs.addAll(other.attributes);
+        return new TriggerDependencies(ids, attrs);
+    }
+
+    public boolean isUnconstrained() { return deviceIds.length == 0 && attributes.isEmpty(); }
+
+    int[] deviceIds() { return deviceIds; }
+
+    Set<DeviceAttribute> attributes() { return attributes; }
+
+    @Override
+    public String toString() {
+        if (isUnconstrained()) return "any";
+        if (attributes.isEmpty()) return "devices" + Arrays.toString(deviceIds);
+        if (deviceIds.length == 0) return "attributes" + attributes;
+        return "devices" + Arrays.toString(deviceIds) + " attributes" + attributes;
+    }
+}
+
+/*
+ Copy-on-write index from device id / attribute to the triggers watching it. Every list is in
+ registration (seq) order. SmartHub swaps in a new index per addTrigger (one per addTriggers
+ batch), so readers never lock.
+*/
+class TriggerIndex {
+    private static final TriggerEntry[] NONE = new TriggerEntry[0];
+
+    private final IntObjectMap<TriggerEntry[]> byDevice;
+    private final TriggerEntry[][] byAttribute;
+    final TriggerEntry[] unconstrained;
+
+    TriggerIndex() {
+        byDevice = new IntObjectMap<>();
+        byAttribute = new TriggerEntry[DeviceAttribute.values().length][];
+        Arrays.fill(byAttribute, NONE);
+        unconstrained = NONE;
+    }
+
+    private TriggerIndex(IntObjectMap<TriggerEntry[]> byDevice, TriggerEntry[][] byAttribute, TriggerEntry[] unconstrained) {
+        this.byDevice = byDevice;
+        this.byAttribute = byAttribute;
+        this.unconstrained = unconstrained;
+    }
+
+    TriggerEntry[] forDevice(int deviceId) {
+        TriggerEntry[] list = byDevice.get(deviceId);
+        return list == null ? NONE : list;
+    }
+
+    TriggerEntry[] forAttribute(DeviceAttribute attribute) { return byAttribute[attribute.ordinal()]; }
+
+    TriggerIndex with(TriggerEntry t) {
+        TriggerDependencies deps = t.getDependencies();
+        if (deps.isUnconstrained()) return new TriggerIndex(byDevice, byAttribute, append(unconstrained, t));
+        IntObjectMap<TriggerEntry[]> devices = byDevice;
+        if (deps.deviceIds().length > 0) {
+            devices = byDevice.copy();
+            for (int id : deps.deviceIds()) {
+                TriggerEntry[] list = devices.get(id);
+                if (list == null || list[list.length - 1] != t) devices.put(id, append(list, t)); // ids may repeat
+            }
+        }
+        TriggerEntry[][] attrs = byAttribute.clone();
+        for (DeviceAttribute a : deps.attributes()) attrs[a.ordinal()] = append(attrs[a.ordinal()], t);
+        return new TriggerIndex(devices, attrs, unconstrained);
+    }
+
+    /*
+     The index with every trigger of batch added (in order). New entries are grouped per key
+     first, so the device map, the attribute table and each touched list are copied once.
+    */
+    TriggerIndex withAll(List<TriggerEntry> batch) {
+        IntObjectMap<List<TriggerEntry>> addedByDevice = new IntObjectMap<>();
+        int[] deviceIds = new int[16];
+        int deviceCount = 0;
+        List<List<TriggerEntry>> addedByAttribute = new ArrayList<>();
+        for (int a = 0; a < byAttribute.length; a++) addedByAttribute.add(new ArrayList<>());
+        List<TriggerEntry> addedUnconstrained = new ArrayList<>();
+        for (TriggerEntry t : batch) {
+            TriggerDependencies deps = t.getDependencies();
+            if (deps.isUnconstrained()) {
+                addedUnconstrained.add(t);
+                continue;
+            }
+            for (int id : deps.deviceIds()) {
+                List<TriggerEntry> list = addedByDevice.get(id);
+                if (list == null) {
+                    addedByDevice.put(id, list = new ArrayList<>());
+                    if (deviceCount == deviceIds.length) deviceIds = Arrays.copyOf(deviceIds, deviceCount * 2);
+                    deviceIds[deviceCount++] = id;
+                }
+                if (list.isEmpty() || list.get(list.size() - 1) != t) list.add(t); // ids may repeat
+            }
+            for (DeviceAttribute a : deps.attributes()) addedByAttribute.get(a.ordinal()).add(t);
+        }
+        IntObjectMap<TriggerEntry[]> devices = byDevice;
+        if (deviceCount > 0) {
+            devices = byDevice.copy();
+            devices.ensureCapacity(devices.size() + deviceCount);
+            for (int i = 0; i < deviceCount; i++) {
+                devices.put(deviceIds[i], concat(devices.get(deviceIds[i]), addedByDevice.get(deviceIds[i])));
+            }
+        }
+        TriggerEntry[][] attrs = byAttribute.clone();
+        for (int a = 0; a < attrs.length; a++) attrs[a] = concat(attrs[a], addedByAttribute.get(a));
+        return new TriggerIndex(devices, attrs, concat(unconstrained, addedUnconstrained));
+    }
+
+    private static TriggerEntry[] concat(TriggerEntry[] list, List<TriggerEntry> more) {
+        if (more.isEmpty()) return list;
+        int n = list == null ? 0 : list.length;
+        TriggerEntry[] next = list == null ? new TriggerEntry[more.size()] : Arrays.copyOf(list, n + more.size());
+        for (int i = 0; i < more.size(); i++) next[n + i] = more.get(i);
+        return next;
+    }
+
+    private static TriggerEntry[] append(TriggerEntry[] list, TriggerEntry t) {
+        if (list == null) return new TriggerEntry[]{t};
+        TriggerEntry[] next = Arrays.copyOf(list, list.length + 1);
+        next[list.length] = t;
+        return next;
+    }
+}
+
+// -------------------- Trigger cascades --------------------
+/*
+ Per-thread working state of a trigger cascade, reused across cascades so a steady stream of
+ commands allocates nothing. Changes are (device, attribute) pairs; stamps[seq] == wave marks a
+ trigger already scheduled in the current wave.
+*/
+class CascadeContext {
+    boolean active;
+    int[] pendingDevices = new int[16];
+    DeviceAttribute[] pendingAttributes = new DeviceAttribute[16];
+    int pendingCount;
+    int[] candidates = new int[16];
+    private int[] stamps = new int[0];
+    private int stamp;
+
+    // metrics of the running (or last finished) cascade
+    int waves, evaluated, fired, changes;
+    boolean truncated;
+
+    void enqueue(int deviceId, DeviceAttribute attribute) {
+        if (pendingCount == pendingDevices.length) {
+            pendingDevices = Arrays.copyOf(pendingDevices, pendingCount * 2);
+            pendingAttributes = Arrays.copyOf(pendingAttributes, pendingCount * 2);
+        }
+        pendingDevices[pendingCount] = deviceId;
+        pendingAttributes[pendingCount] = attribute;
+        pendingCount++;
+        changes++;
+    }
+
+    boolean hasPending() { return pendingCount > 0; }
+
+    void begin() {
+        active = true;
+        waves = evaluated = fired = 0;
+        changes = pendingCount;
+        truncated = false;
+    }
+
+    void end() {
+        active = false;
+        pendingCount = 0;
+    }
+
+    // Drains the pending changes into candidates (trigger seqs, sorted) and returns their count
+    int collectCandidates(TriggerIndex index, int triggerCount) {
+        if (stamps.length < triggerCount) stamps = Arrays.copyOf(stamps, Math.max(triggerCount, stamps.length * 2));
+        if (++stamp == 0) { Arrays.fill(stamps, 0); stamp = 1; } // wrapped: forget every old mark
+        int n = 0;
+        int count = pendingCount;
+        pendingCount = 0; // fired actions enqueue into the next wave from here on
+        for (int i = 0; i < count; i++) {
+            n = mark(index.forDevice(pendingDevices[i]), n, triggerCount);
+            n = mark(index.forAttribute(pendingAttributes[i]), n, triggerCount);
+        }
+        if (count > 0) n = mark(index.unconstrained, n, triggerCount);
+        Arrays.sort(candidates, 0, n);
+        return n;
+    }
+
+    private int mark(TriggerEntry[] list, int n, int triggerCount) {
+        for (TriggerEntry t : list) {
+            int seq = t.seq;
+            if (seq >= triggerCount || stamps[seq] == stamp) continue;
+            stamps[seq] = stamp;
+            if (n == candidates.length) candidates = Arrays.copyOf(candidates, n * 2);
+            candidates[n++] = seq;
+        }
+        return n;
+    }
+
+    CascadeMetrics metrics() { return new CascadeMetrics(waves, evaluated, fired, changes, truncated); }
+}
+
+// Snapshot of one cascade
+class CascadeMetrics {
+    public final int waves;
+    public final int triggersEvaluated;
+    public final int triggersFired;
+    public final int changes; // state changes that fed the cascade, including those made by actions
+    public final boolean truncated;
+
+    CascadeMetrics(int waves, int triggersEvaluated, int triggersFired, int changes, boolean truncated) {
+        this.waves = waves;
+        this.triggersEvaluated = triggersEvaluated;
+        this.triggersFired = triggersFired;
+        this.changes = changes;
+        this.truncated = truncated;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{waves:%d, evaluated:%d, fired:%d, changes:%d%s}",
+                waves, triggersEvaluated, triggersFired, changes, truncated ? ", truncated" : "");
+    }
+}
+
+// Running totals over all cascades of a hub (any thread)
+class CascadeStats {
+    private final LongAdder cascades = new LongAdder();
+    private final LongAdder waves = new LongAdder();
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder fired = new LongAdder();
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final AtomicInteger deepest = new AtomicInteger();
+
+    // Called once per cascade (i.e. per command); zero counts are skipped
+    void record(CascadeContext ctx) {
+        cascades.increment();
+        waves.add(ctx.waves);
+        if (ctx.evaluated != 0) evaluated.add(ctx.evaluated);
+        if (ctx.fired != 0) fired.add(ctx.fired);
+        changes.add(ctx.changes);
+        if (ctx.truncated) truncated.increment();
+        if (ctx.waves > deepest.get()) deepest.accumulateAndGet(ctx.waves, Math::max);
+    }
+
+    public long cascades() { return cascades.sum(); }
+    public long triggersEvaluated() { return evaluated.sum(); }
+    public long triggersFired() { return fired.sum(); }
+    public long truncated() { return truncated.sum(); }
+    public int deepestCascade() { return deepest.get(); }
+
+    @Override
+    public String toString() {
+        return String.format("{cascades:%d, waves:%d, evaluated:%d, fired:%d, changes:%d, truncated:%d, deepest:%d}",
+                cascades.sum(), waves.sum(), evaluated.sum(), fired.sum(), changes.sum(), truncated.sum(), deepest.get());
+    }
+}
+
+// -------------------- Write-ahead command log --------------------
+/*
+ Append-only log of every device state change: applied commands plus device registrations
+ and removals, as fixed 20-byte little-endian records after a 16-byte header:
+   deviceId int | op byte | 3 reserved | value double | CRC32C of the first 16 bytes
+ op is a CommandCode ordinal, DEVICE_ADDED + DeviceKind ordinal (value = initial temperature)
+ or DEVICE_REMOVED. Every record sets state rather than toggling it, so replaying a record
+ that is already reflected in the state is harmless.
+
+ Appends fill an in-memory buffer. A flusher thread swaps it for a second buffer, writes it
+ with one FileChannel write and makes it durable with one force, so every record appended
+ in the meantime shares that fsync (group commit). Durability decides what a caller waits for:
+   ASYNC         nothing; the flusher syncs every flush interval, so a crash can lose that window
+   GROUP_COMMIT  the fsync that covers its record, shared with concurrent callers
+   SYNC          its own write and fsync, taken under the log lock (the per-command baseline)
+ A torn or corrupt tail (failed CRC) ends replay and is truncated when the log is reopened.
+ After a snapshot has captured the hub, truncateThrough(mark) drops the records it covers.
+*/
+class CommandLog implements AutoCloseable {
+    public enum Durability { ASYNC, GROUP_COMMIT, SYNC }
+
+    // What replay hands back, in log order
+    interface Replayer {
+        void command(int deviceId, CommandCode code, double value);
+        void deviceAdded(int deviceId, DeviceKind kind, double temperature);
+        void deviceRemoved(int deviceId);
+    }
+
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 20;
+    private static final int MAGIC = 0x4c574853; // "SHWL" little-endian
+    private static final int VERSION = 1;
+    private static final int DEVICE_ADDED = 0x40;
+    private static final int DEVICE_REMOVED = 0x7f;
+
+    private final Path path;
+    private FileChannel channel;                            // replaced by truncateThrough, under lock
+    private final Durability durability;
+    private final long flushIntervalNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition(); // flusher: records to write
+    private final Condition synced = lock.newCondition();  // appenders: durableSeq moved or space freed
+    private final byte[] record = new byte[RECORD_BYTES];
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer active, flushing;                    // guarded by lock (flushing: flusher only)
+    private long appendedSeq;                               // guarded by lock
+    private long fileBaseSeq;                               // records up to this seq were truncated away
+    private volatile long durableSeq;
+    private boolean writing;                                // the flusher is writing outside the lock
+    private boolean closed;
+    private IOException failure;
+    private final Thread flusher;
+
+    private CommandLog(Path path, FileChannel channel, long records, Durability durability, int bufferRecords,
+                       long flushIntervalMillis) {
+        this.path = path;
+        this.channel = channel;
+        this.appendedSeq = records;   // sequence numbers count records in the file
+        this.durableSeq = records;
+        this.durability = durability;
+        this.flushIntervalNanos = flushIntervalMillis * 1_000_000L;
+        this.active = ByteBuffer.allocateDirect(bufferRecords * RECORD_BYTES);
+        this.flushing = ByteBuffer.allocateDirect(bufferRecords * RECORD_BYTES);
+        if (durability == Durability.SYNC) {
+            flusher = null;
+        } else {
+            flusher = new Thread(this::flushLoop, "command-log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    public static CommandLog open(Path file, Durability durability) throws IOException {
+        return open(file, durability, 4096, 10);
+    }
+
+    // Appends after the last valid record; a torn tail left by a crash is cut off first
+    public static CommandLog open(Path file, Durability durability, int bufferRecords, long flushIntervalMillis)
+            throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end;
+            if (ch.size() == 0) {
+                writeHeader(ch);
+                end = HEADER_BYTES;
+            } else {
+                end = scan(ch, file, null);
+                if (end < ch.size()) ch.truncate(end);
+            }
+            ch.position(end);
+            return new CommandLog(file, ch, (end - HEADER_BYTES) / RECORD_BYTES, durability, bufferRecords,
+                    flushIntervalMillis);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static void writeHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES).putInt(0).flip();
+        while (header.hasRemaining()) ch.write(header, header.position());
+        ch.force(true);
+    }
+
+    // Feeds every valid record to the replayer; returns how many there were (0 if no file)
+    public static long replay(Path file, Replayer replayer) throws IOException {
+        if (!Files.exists(file)) return 0;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return (scan(ch, file, replayer) - HEADER_BYTES) / RECORD_BYTES;
+        }
+    }
+
+    // Streams the records through one buffer; returns the offset just past the last valid one
+    private static long scan(FileChannel ch, Path file, Replayer replayer) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(RECORD_BYTES * 4096).order(ByteOrder.LITTLE_ENDIAN);
+        buf.limit(HEADER_BYTES);
+        while (buf.hasRemaining() && ch.read(buf, buf.position()) > 0) { }
+        if (buf.position() < HEADER_BYTES || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+                || buf.getInt(8) != RECORD_BYTES) {
+            throw new IOException("Not a command log (or unsupported version): " + file);
+        }
+        CRC32C check = new CRC32C();
+        byte[] rec = new byte[RECORD_BYTES];
+        long pos = HEADER_BYTES;
+        buf.clear();
+        while (true) {
+            int n = ch.read(buf, pos + buf.position());
+            buf.flip();
+            while (buf.remaining() >= RECORD_BYTES) {
+                buf.get(rec);
+                check.reset();
+                check.update(rec, 0, 16);
+                if ((int) check.getValue() != getInt(rec, 16)) return pos; // torn or corrupt
+                if (replayer != null) dispatch(rec, replayer);
+                pos += RECORD_BYTES;
+            }
+            if (n < 0) return pos;
+            buf.compact();
+        }
+    }
+
+    private static void dispatch(byte[] rec, Replayer replayer) {
+        int id = getInt(rec, 0);
+        int op = rec[4] & 0xff;
+        double value = Double.longBitsToDouble(getLong(rec, 8));
+        if (op < CommandCode.count()) {
+            replayer.command(id, CommandCode.byOrdinal(op), value);
+        } else if (op >= DEVICE_ADDED && op < DEVICE_ADDED + DeviceKind.values().length) {
+            replayer.deviceAdded(id, DeviceKind.byOrdinal(op - DEVICE_ADDED), value);
+        } else if (op == DEVICE_REMOVED) {
+            replayer.deviceRemoved(id);
+        } // other ops come from a newer writer: skip them
+    }
+
+    // Each returns the record's sequence number for awaitDurable
+    public long append(int deviceId, CommandCode code, double value) { return append(deviceId, code.ordinal(), value); }
+    public long deviceAdded(int deviceId, DeviceKind kind, double temperature) {
+        return append(deviceId, DEVICE_ADDED + kind.ordinal(), temperature);
+    }
+    public long deviceRemoved(int deviceId) { return append(deviceId, DEVICE_REMOVED, 0); }
+
+    private long append(int deviceId, int op, double value) {
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("Command log is closed");
+            if (failure != null) throw new UncheckedIOException("Command log write failed", failure);
+            putInt(record, 0, deviceId);
+            record[4] = (byte) op;
+            record[5] = record[6] = record[7] = 0;
+            putLong(record, 8, Double.doubleToRawLongBits(value));
+            crc.reset();
+            crc.update(record, 0, 16);
+            putInt(record, 16, (int) crc.getValue());
+            while (active.remaining() < RECORD_BYTES) {   // back-pressure: wait for the flusher's swap
+                pending.signal();
+                synced.awaitUninterruptibly();
+            }
+            active.put(record);
+            long seq = ++appendedSeq;
+            if (durability == Durability.SYNC) {
+                try {
+                    writeAndForce(channel, active);
+                } catch (IOException e) {
+                    failure = e;
+                    throw new UncheckedIOException("Command log write failed", e);
+                }
+                durableSeq = seq;
+            } else if (durability == Durability.GROUP_COMMIT || active.remaining() < RECORD_BYTES) {
+                pending.signal();
+            }
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns once seq is on disk under GROUP_COMMIT; ASYNC and SYNC never wait here
+    public void awaitDurable(long seq) {
+        if (durability != Durability.GROUP_COMMIT || durableSeq >= seq) return;
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (failure != null) throw new UncheckedIOException("Command log write failed", failure);
+                synced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Durability durability() { return durability; }
+
+    // Sequence number of the last appended record. Its command has already been applied to
+    // the hub, so a snapshot taken after this call reflects it and everything before it.
+    public long mark() {
+        lock.lock();
+        try {
+            return appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     Drops every record up to seq once a snapshot covers them. The remaining tail is copied into
+     a fresh file that atomically replaces the log; appends wait until the swap is done.
+    */
+    public void truncateThrough(long seq) throws IOException {
+        lock.lock();
+        try {
+            while (writing) synced.awaitUninterruptibly();
+            if (closed) throw new IllegalStateException("Command log is closed");
+            if (seq <= fileBaseSeq) return;
+            if (seq > appendedSeq) throw new IllegalArgumentException("Not appended yet: " + seq);
+            if (active.position() > 0) writeAndForce(channel, active); // the file now holds every record
+            durableSeq = appendedSeq;
+            synced.signalAll();
+            long from = HEADER_BYTES + (seq - fileBaseSeq) * RECORD_BYTES;
+            Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeHeader(out);
+                long end = channel.size();
+                for (long at = from; at < end; ) at += channel.transferTo(at, end - at, out);
+                out.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            fileBaseSeq = seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        lock.lock();
+        try {
+            while (true) {
+                if (durability == Durability.ASYNC && !closed && active.remaining() >= RECORD_BYTES) {
+                    try {
+                        pending.awaitNanos(flushIntervalNanos); // batch a whole interval
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                while (active.position() == 0 && !closed) pending.awaitUninterruptibly();
+                if (active.position() == 0) return; // closed and drained
+                ByteBuffer full = active;
+                active = flushing;
+                flushing = full;
+                long target = appendedSeq;
+                FileChannel ch = channel;
+                writing = true;
+                synced.signalAll(); // appenders blocked on a full buffer can continue
+                lock.unlock();
+                IOException error = null;
+                try {
+                    writeAndForce(ch, full);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                writing = false;
+                if (error != null) failure = error;
+                else durableSeq = target;
+                synced.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void writeAndForce(FileChannel ch, ByteBuffer buf) throws IOException {
+        try {
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(false);
+        } finally {
+            buf.clear();
+        }
+    }
+
+    // Flushes what was appended, then closes the file
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+    }
+
+    private static void putInt(byte[] b, int at, int v) {
+        b[at] = (byte) v;
+        b[at + 1] = (byte) (v >>> 8);
+        b[at + 2] = (byte) (v >>> 16);
+        b[at + 3] = (byte) (v >>> 24);
+    }
+
+    private static void putLong(byte[] b, int at, long v) {
+        putInt(b, at, (int) v);
+        putInt(b, at + 4, (int) (v >>> 32));
+    }
+
+    private static int getInt(byte[] b, int at) {
+        return (b[at] & 0xff) | (b[at + 1] & 0xff) << 8 | (b[at + 2] & 0xff) << 16 | (b[at + 3] & 0xff) << 24;
+    }
+
+    private static long getLong(byte[] b, int at) {
+        return (getInt(b, at) & 0xffffffffL) | (long) getInt(b, at + 4) << 32;
+    }
+}
+
+// -------------------- Snapshots --------------------
+/*
+ The whole hub in one versioned binary file, little-endian throughout:
+   header    magic "SHSN" | version | devices | schedules | triggers | reserved | written-at millis
+   devices   16 bytes each: id int | kind byte | flags byte (ON, LOCKED) | allowed mask short | temperature double
+   schedules deviceId int | when str | action str
+   triggers  condition str | action count int | action str...
+   footer    CRC32C of everything before it
+ where str is an int byte length followed by UTF-8. Schedules keep their spec text and
+ triggers their condition source, so loading re-parses them against the loaded devices.
+ Triggers whose predicate was written in code have no source and are not saved.
+
+ Both directions stream through one direct buffer. A snapshot is written to a temporary file
+ and moved over the old one, so a crash leaves the previous snapshot intact; load checks the
+ CRC before registering anything.
+*/
+class HubSnapshot {
+    // Creates an empty device of the given kind; load() then sets its state
+    interface DeviceMaker {
+        DeviceProxy make(DeviceKind kind, int id, double temperature);
+    }
+
+    // Plain heap devices, as DeviceFactory builds them
+    static final DeviceMaker HEAP = (kind, id, temperature) -> {
+        switch (kind) {
+            case LIGHT: return new DeviceProxy(new Light(id));
+            case THERMOSTAT: return new DeviceProxy(new Thermostat(id, temperature));
+            default: return new DeviceProxy(new DoorLock(id));
+        }
+    };
+
+    // What was written or loaded
+    static final class Summary {
+        public final int devices, schedules, triggers, skippedTriggers;
+        public final long bytes;
+
+        Summary(int devices, int schedules, int triggers, int skippedTriggers, long bytes) {
+            this.devices = devices;
+            this.schedules = schedules;
+            this.triggers = triggers;
+            this.skippedTriggers = skippedTriggers;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d devices, %d schedules, %d triggers%s, %d bytes", devices, schedules, triggers,
+                    skippedTriggers == 0 ? "" : " (" + skippedTriggers + " without source skipped)", bytes);
+        }
+    }
+
+    private static final int MAGIC = 0x4e534853; // "SHSN" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int ON = 1, LOCKED = 2;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private HubSnapshot() {}
+
+    public static Summary write(SmartHub hub, Path file) throws IOException {
+        List<DeviceProxy> devices = new ArrayList<>(hub.listDevices()); // fixes the count under concurrent changes
+        List<ScheduleEntry> schedules = hub.listSchedules();
+        List<TriggerEntry> all = hub.listTriggers(), triggers = new ArrayList<>();
+        for (TriggerEntry t : all) {
+            if (t.source != null) triggers.add(t);
+        }
+        int skipped = all.size() - triggers.size();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long bytes;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(ch);
+            out.ensure(HEADER_BYTES);
+            out.buf.putInt(MAGIC).putInt(VERSION).putInt(devices.size()).putInt(schedules.size())
+                    .putInt(triggers.size()).putInt(0).putLong(System.currentTimeMillis());
+            for (DeviceProxy d : devices) {
+                DeviceKind kind = DeviceKind.of(d.getType());
+                int flags = (d.isOn() ? ON : 0) | (d.isLocked() ? LOCKED : 0);
+                out.ensure(16);
+                out.buf.putInt(d.getId()).put((byte) kind.ordinal()).put((byte) flags)
+                        .putShort((short) d.allowedMask()).putDouble(d.getTemperature());
+            }
+            for (ScheduleEntry s : schedules) {
+                out.ensure(4);
+                out.buf.putInt(s.deviceId);
+                out.putString(s.time);
+                out.putString(s.action);
+            }
+            for (TriggerEntry t : triggers) {
+                out.putString(t.source.source);
+                out.ensure(4);
+                out.buf.putInt(t.getActions().size());
+                for (String a : t.getActions()) out.putString(a);
+            }
+            bytes = out.finish();
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return new Summary(devices.size(), schedules.size(), triggers.size(), skipped, bytes);
+    }
+
+    /*
+     Registers the snapshot's devices, schedules and triggers with hub (normally a new, empty
+     one). Nothing is registered if the file is truncated, corrupt or of another version.
+    */
+    public static Summary load(Path file, SmartHub hub, DeviceMaker maker) throws IOException {
+        DeviceProxy[] devices;
+        ScheduleEntry[] schedules;
+        String[] conditions;
+        List<List<String>> actions;
+        long bytes;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            Reader in = new Reader(ch, file);
+            in.require(HEADER_BYTES);
+            if (in.buf.getInt() != MAGIC) throw new IOException("Not a hub snapshot: " + file);
+            int version = in.buf.getInt();
+            if (version != VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            devices = new DeviceProxy[in.count()];
+            schedules = new ScheduleEntry[in.count()];
+            conditions = new String[in.count()];
+            in.buf.getInt();
+            in.buf.getLong();
+            for (int i = 0; i < devices.length; i++) {
+                in.require(16);
+                int id = in.buf.getInt();
+                int kind = in.buf.get();
+                int flags = in.buf.get();
+                int mask = in.buf.getShort();
+                double temperature = in.buf.getDouble();
+                if (kind < 0 || kind >= DeviceKind.values().length) throw in.corrupt("device kind " + kind);
+                devices[i] = restore(maker, DeviceKind.byOrdinal(kind), id, flags, mask, temperature);
+            }
+            for (int i = 0; i < schedules.length; i++) {
+                in.require(4);
+                int deviceId = in.buf.getInt();
+                schedules[i] = new ScheduleEntry(deviceId, in.string(), in.string());
+            }
+            actions = new ArrayList<>(conditions.length);
+            for (int i = 0; i < conditions.length; i++) {
+                conditions[i] = in.string();
+                String[] list = new String[in.count()];
+                for (int a = 0; a < list.length; a++) list[a] = in.string();
+                actions.add(Arrays.asList(list));
+            }
+            bytes = in.finish();
+        }
+        hub.registerDevices(Arrays.asList(devices));
+        for (ScheduleEntry s : schedules) hub.addSchedule(s);
+        List<TriggerEntry> triggers = new ArrayList<>(conditions.length);
+        for (int i = 0; i < conditions.length; i++) {
+            triggers.add(TriggerCondition.compile(conditions[i], hub).toTrigger(actions.get(i)));
+        }
+        hub.addTriggers(triggers);
+        return new Summary(devices.length, schedules.length, conditions.length, 0, bytes);
+    }
+
+    // Sets state directly: restoring is not a command, so no permission check or console log
+    private static DeviceProxy restore(DeviceMaker maker, DeviceKind kind, int id, int flags, int mask,
+                                       double temperature) {
+        DeviceProxy d = maker.make(kind, id, temperature);
+        switch (kind) {
+            case LIGHT: d.apply((flags & ON) != 0 ? CommandCode.TURN_ON : CommandCode.TURN_OFF, 0); break;
+            case THERMOSTAT: d.apply(CommandCode.SET_TEMP, temperature); break;
+            default: d.apply((flags & LOCKED) != 0 ? CommandCode.LOCK : CommandCode.UNLOCK, 0);
+        }
+        d.setAllowedMask(mask);
+        return d;
+    }
+
+    // Buffered output that folds each chunk into the CRC as it is written
+    private static final class Writer {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final FileChannel ch;
+        private final CRC32C crc = new CRC32C();
+        private long written;
+
+        Writer(FileChannel ch) { this.ch = ch; }
+
+        void ensure(int n) throws IOException {
+            if (buf.remaining() < n) drain();
+        }
+
+        void putString(String s) throws IOException {
+            byte[] utf8 = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            ensure(4);
+            buf.putInt(utf8.length);
+            for (int at = 0; at < utf8.length; ) {
+                if (!buf.hasRemaining()) drain();
+                int n = Math.min(buf.remaining(), utf8.length - at);
+                buf.put(utf8, at, n);
+                at += n;
+            }
+        }
+
+        // Appends the CRC footer and writes what is left; returns the file length
+        long finish() throws IOException {
+            drain();
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) written += ch.write(buf);
+            return written;
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            crc.update(buf.duplicate());
+            while (buf.hasRemaining()) written += ch.write(buf);
+            buf.clear();
+        }
+    }
+
+    // Buffered input that folds consumed bytes into the CRC each time it refills
+    private static final class Reader {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final FileChannel ch;
+        private final Path file;
+        private final CRC32C crc = new CRC32C();
+        private int checked; // buf[0, checked) is already in the CRC
+        private long consumed;
+
+        Reader(FileChannel ch, Path file) {
+            this.ch = ch;
+            this.file = file;
+            buf.flip();
+        }
+
+        // Makes at least n unread bytes available
+        void require(int n) throws IOException {
+            if (buf.remaining() >= n) return;
+            absorb();
+            buf.compact();
+            checked = 0;
+            while (buf.position() < n) {
+                if (ch.read(buf) < 0) {
+                    buf.flip();
+                    throw corrupt("unexpected end of file");
+                }
+            }
+            while (buf.hasRemaining() && ch.read(buf) > 0) { }
+            buf.flip();
+        }
+
+        int count() throws IOException {
+            require(4);
+            int n = buf.getInt();
+            if (n < 0) throw corrupt("negative count " + n);
+            return n;
+        }
+
+        String string() throws IOException {
+            int length = count();
+            if (length <= buf.capacity()) {
+                require(length);
+                String s = java.nio.charset.StandardCharsets.UTF_8.decode(buf.slice().limit(length)).toString();
+                buf.position(buf.position() + length);
+                return s;
+            }
+            throw corrupt("string of " + length + " bytes");
+        }
+
+        // Checks the footer against everything read so far; returns the file length
+        long finish() throws IOException {
+            absorb();
+            require(4);
+            int expected = buf.getInt();
+            if (expected != (int) crc.getValue()) throw corrupt("checksum mismatch");
+            if (buf.hasRemaining() || ch.position() != ch.size()) throw corrupt("trailing bytes");
+            return consumed + 4;
+        }
+
+        IOException corrupt(String what) {
+            return new IOException("Corrupt hub snapshot (" + what + "): " + file);
+        }
+
+        private void absorb() {
+            int end = buf.position();
+            crc.update(buf.duplicate().position(checked).limit(end));
+            consumed += end - checked;
+            checked = end;
+        }
+    }
+}
+
+/*
+ Keeps the snapshot current and the command log short. A checkpoint marks the log, writes the
+ snapshot (which therefore holds every marked record) and truncates the log through the mark;
+ records appended meanwhile stay in the log and replay idempotently over the snapshot. The
+ background thread checkpoints every interval when commands were logged or schedules or
+ triggers were added since the last one (without a log, every interval).
+*/
+class SnapshotCompactor implements AutoCloseable {
+    private static final Logger LOG = Log.get("Snapshot");
+
+    private final SmartHub hub;
+    private final Path snapshot;
+    private final CommandLog log; // may be null: snapshots only
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long lastMark = -1;
+    private int lastDefinitions = -1;
+
+    // intervalMillis <= 0: no background thread, only explicit checkpoints
+    SnapshotCompactor(SmartHub hub, Path snapshot, CommandLog log, long intervalMillis) {
+        this.hub = hub;
+        this.snapshot = snapshot;
+        this.log = log;
+        if (intervalMillis <= 0) {
+            thread = null;
+            return;
+        }
+        thread = new Thread(() -> {
+            while (running) {
+                LockSupport.parkNanos(intervalMillis * 1_000_000L);
+                if (!running) break;
+                try {
+                    if (changed()) checkpoint();
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Checkpoint failed: {}", e.getMessage());
+                }
+            }
+        }, "snapshot-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized HubSnapshot.Summary checkpoint() throws IOException {
+        long mark = log == null ? 0 : log.mark();
+        int definitions = hub.listSchedules().size() + hub.listTriggers().size();
+        HubSnapshot.Summary summary = HubSnapshot.write(hub, snapshot);
+        if (log != null) log.truncateThrough(mark);
+        lastMark = mark;
+        lastDefinitions = definitions;
+        return summary;
+    }
+
+    // Without a log, device changes are invisible here, so every interval counts as changed
+    private synchronized boolean changed() {
+        return log == null || log.mark() != lastMark
+                || hub.listSchedules().size() + hub.listTriggers().size() != lastDefinitions;
+    }
+
+    // Stops the background thread and takes a final checkpoint
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkpoint();
+    }
+}
+
+// -------------------- Real-time scheduler --------------------
+/*
+ Runs a hub's schedules at wall-clock time on one daemon thread, so nobody has to type
+ runSchedulesAt. Every entry is held in a priority queue keyed by its next fire instant;
+ the thread parks until the head is due (an absolute deadline, so sleep overshoot never
+ accumulates into drift) and is unparked when a new entry is added. Nothing is polled and
+ nothing is rescanned: a fired entry computes its own next instant and goes back in the queue.
+ After a pause (GC, suspend, a slow action) missed fires are replayed in order if they are
+ within maxCatchUpMinutes (at least one minute, so a fire that is merely a few milliseconds
+ late always runs); older ones are counted as skipped. Actions execute on the
+ scheduler thread through the normal executeCommand path, so the REPL and ingest threads are
+ never blocked behind a tick; use a StripedDeviceRegistry when other threads issue commands
+ at the same time.
+*/
+class HubScheduler {
+    private static final Logger LOG = Log.get("Scheduler");
+    private static final long MINUTE_MS = 60_000L;
+
+    private final SmartHub hub;
+    private final SchedulerStats stats = new SchedulerStats();
+    private volatile ZoneId zone = ZoneId.systemDefault();
+    private volatile int maxCatchUpMinutes = 60;
+    private volatile Thread thread; // the live scheduler thread; null when stopped
+
+    // An entry waiting in the queue; only the scheduler thread touches these
+    private static final class Pending implements Comparable<Pending> {
+        final ScheduleEntry entry;
+        final long seq; // registration order breaks ties between entries due together
+        long at;
+
+        Pending(ScheduleEntry entry, long seq, long at) {
+            this.entry = entry;
+            this.seq = seq;
+            this.at = at;
+        }
+
+        public int compareTo(Pending o) {
+            int c = Long.compare(at, o.at);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    HubScheduler(SmartHub hub) { this.hub = hub; }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        Queue<ScheduleEntry> feed = new ConcurrentLinkedQueue<>();
+        Thread t = new Thread(() -> loop(feed), "hub-scheduler");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    // Waits for an in-flight tick to finish its current batch
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t == null) return;
+        thread = null;
+        LockSupport.unpark(t);
+        try {
+            t.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() { return thread != null; }
+
+    // Called by the hub when an entry is added while the scheduler runs
+    void wake() {
+        Thread t = thread;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    public ZoneId zone() { return zone; }
+
+    // Takes effect the next time the scheduler starts
+    public void setZone(ZoneId zone) { this.zone = Objects.requireNonNull(zone, "zone"); }
+
+    // How far back missed fires are replayed after a pause; 0 skips straight to the next one,
+    // though a fire less than a minute late still counts as on time
+    public void setMaxCatchUpMinutes(int minutes) {
+        if (minutes < 0) throw new IllegalArgumentException("maxCatchUpMinutes must be >= 0");
+        this.maxCatchUpMinutes = minutes;
+    }
+
+    public SchedulerStats stats() { return stats; }
+
+    private void loop(Queue<ScheduleEntry> feed) {
+        Thread self = Thread.currentThread();
+        ZoneId z = zone;
+        PriorityQueue<Pending> queue = new PriorityQueue<>();
+        long seq = 0;
+        long now = System.currentTimeMillis();
+        for (ScheduleEntry s : hub.openScheduleFeed(feed)) seq = enqueue(queue, s, seq, now, z);
+        List<ScheduleEntry> due = new ArrayList<>();
+        try {
+            while (thread == self) {
+                now = System.currentTimeMillis();
+                for (ScheduleEntry s; (s = feed.poll()) != null; ) seq = enqueue(queue, s, seq, now, z);
+                Pending head = queue.peek();
+                if (head == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (head.at > now) {
+                    LockSupport.parkUntil(this, head.at);
+                    continue; // re-check: woken early by an addition or by stop()
+                }
+                long at = head.at;
+                long cutoff = now - Math.max(maxCatchUpMinutes, 1) * MINUTE_MS;
+                due.clear();
+                while (!queue.isEmpty() && queue.peek().at == at) {
+                    Pending p = queue.poll();
+                    due.add(p.entry);
+                    long next = p.entry.recurrence.nextFireAfter(at, z);
+                    while (next < cutoff) {
+                        stats.skipped(1);
+                        next = p.entry.recurrence.nextFireAfter(next, z);
+                    }
+                    if (next != Recurrence.NEVER) {
+                        p.at = next;
+                        queue.add(p);
+                    }
+                }
+                if (at < cutoff) {
+                    // a pause overshot the catch-up window before this batch came up
+                    stats.skipped(due.size());
+                    continue;
+                }
+                long lag = System.currentTimeMillis() - at;
+                try {
+                    hub.runScheduled(due, LocalDateTime.ofInstant(Instant.ofEpochMilli(at), z).toLocalTime()
+                            .truncatedTo(ChronoUnit.MINUTES).toString());
+                } catch (RuntimeException e) {
+                    LOG.error("tick failed: {}", e.getMessage());
+                }
+                stats.record(lag, lag >= MINUTE_MS, due.size());
+            }
+        } finally {
+            hub.closeScheduleFeed(feed);
+        }
+    }
+
+    private static long enqueue(PriorityQueue<Pending> queue, ScheduleEntry s, long seq, long now, ZoneId zone) {
+        long at = s.recurrence.nextFireAfter(now, zone);
+        if (at != Recurrence.NEVER) queue.add(new Pending(s, seq, at));
+        return seq + 1;
+    }
+}
+
+// Scheduling lag is when a batch of due entries actually started minus the instant it was due
+class SchedulerStats {
+    private final LongAdder ticks = new LongAdder();
+    private final LongAdder catchUpTicks = new LongAdder();
+    private final LongAdder skippedFires = new LongAdder();
+    private final LongAdder schedulesRun = new LongAdder();
+    private final LongAdder totalLagMillis = new LongAdder();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+    private volatile long lastLagMillis;
+
+    void record(long lagMillis, boolean catchUp, int ran) {
+        ticks.increment();
+        if (catchUp) catchUpTicks.increment();
+        if (ran != 0) schedulesRun.add(ran);
+        totalLagMillis.add(lagMillis);
+        lastLagMillis = lagMillis;
+        if (lagMillis > maxLagMillis.get()) maxLagMillis.accumulateAndGet(lagMillis, Math::max);
+    }
+
+    void skipped(long fires) { skippedFires.add(fires); }
+
+    public long ticks() { return ticks.sum(); }
+    public long catchUpTicks() { return catchUpTicks.sum(); }
+    public long skippedFires() { return skippedFires.sum(); }
+    public long schedulesRun() { return schedulesRun.sum(); }
+    public long lastLagMillis() { return lastLagMillis; }
+    public long maxLagMillis() { return maxLagMillis.get(); }
+
+    public double meanLagMillis() {
+        long n = ticks.sum();
+        return n == 0 ? 0 : (double) totalLagMillis.sum() / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{ticks:%d, catchUp:%d, skippedFires:%d, schedulesRun:%d, lagMs:{last:%d, mean:%.1f, max:%d}}",
+                ticks(), catchUpTicks(), skippedFires(), schedulesRun(), lastLagMillis(), meanLagMillis(), maxLagMillis());
+    }
+}
+
+// -------------------- REPL command table --------------------
+/*
+ One REPL input line split into whitespace-separated tokens in a single pass. Tokens are kept
+ as offsets into the line; text is only copied when a command asks for it. An instance is
+ reused for every line.
+*/
+final class ReplLine {
+    private String line = "";
+    private int[] starts = new int[16], ends = new int[16];
+    private int count;
+
+    ReplLine parse(String text) {
+        line = text;
+        count = 0;
+        int i = 0, n = text.length();
+        while (true) {
+            while (i < n && Character.isWhitespace(text.charAt(i))) i++;
+            if (i == n) return this;
+            int start = i;
+            while (i < n && !Character.isWhitespace(text.charAt(i))) i++;
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count++] = i;
+        }
+    }
+
+    int count() { return count; }
+    String text() { return line; }
+    int start(int i) { return starts[i]; }
+    int length(int i) { return ends[i] - starts[i]; }
+    String token(int i) { return line.substring(starts[i], ends[i]); }
+
+    // Everything from token i to the end of the line, inner spacing kept
+    String rest(int i) { return line.substring(starts[i], ends[count - 1]); }
+
+    // Decimal int without copying the token; NumberFormatException names the token
+    int intAt(int i) {
+        int at = starts[i], end = ends[i];
+        boolean negative = line.charAt(at) == '-';
+        if (negative || line.charAt(at) == '+') at++;
+        if (at == end) throw new NumberFormatException("Not an integer: " + token(i));
+        long value = 0;
+        for (; at < end; at++) {
+            char c = line.charAt(at);
+            if (c < '0' || c > '9') throw new NumberFormatException("Not an integer: " + token(i));
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE + 1L) throw new NumberFormatException("Out of range: " + token(i));
+        }
+        if (negative) value = -value;
+        if (value > Integer.MAX_VALUE) throw new NumberFormatException("Out of range: " + token(i));
+        return (int) value;
+    }
+
+    double numberAt(int i) { return Double.parseDouble(token(i)); }
+}
+
+/*
+ A REPL command: its name, argument schema, help text and handler. The schema is a list of
+ name:type arguments, e.g. "id:int temp:number"; types are int, number, word and text (the
+ rest of the line, so only last), and a trailing ? makes an argument optional. Arguments are
+ checked and converted before the handler runs, and usage() is derived from the schema.
+*/
+final class ReplCommand {
+    enum ArgType { INT, NUMBER, WORD, TEXT }
+
+    interface Handler {
+        void run(ReplArgs args) throws Exception;
+    }
+
+    final String name;
+    final String help;
+    final Handler handler;
+    final String[] argNames;
+    final ArgType[] argTypes;
+    final int required;
+
+    ReplCommand(String name, String schema, String help, Handler handler) {
+        this.name = name;
+        this.help = help;
+        this.handler = handler;
+        String[] specs = schema.isEmpty() ? new String[0] : schema.split(" ");
+        argNames = new String[specs.length];
+        argTypes = new ArgType[specs.length];
+        int required = 0;
+        for (int i = 0; i < specs.length; i++) {
+            String spec = specs[i];
+            boolean optional = spec.endsWith("?");
+            if (optional) spec = spec.substring(0, spec.length() - 1);
+            else if (required < i) throw new IllegalArgumentException("Required argument after an optional one: " + schema);
+            else required++;
+            int colon = spec.indexOf(':');
+            argNames[i] = spec.substring(0, colon);
+            argTypes[i] = ArgType.valueOf(spec.substring(colon + 1).toUpperCase(Locale.ROOT));
+            if (argTypes[i] == ArgType.TEXT && i != specs.length - 1) {
+                throw new IllegalArgumentException("text must be the last argument: " + schema);
+            }
+        }
+        this.required = required;
+    }
+
+    String usage() {
+        StringBuilder sb = new StringBuilder(name);
+        for (int i = 0; i < argNames.length; i++) {
+            sb.append(i < required ? " <" : " [").append(argNames[i]).append(i < required ? ">" : "]");
+        }
+        return sb.toString();
+    }
+}
+
+// A command's arguments after checking against its schema; index 0 is the first argument
+final class ReplArgs {
+    private ReplLine line;
+    private ReplCommand command;
+    private int present;
+    private final int[] ints = new int[8];
+    private final double[] numbers = new double[8];
+
+    // Throws IllegalArgumentException with the usage line when the arguments do not fit
+    ReplArgs bind(ReplCommand command, ReplLine line) {
+        this.command = command;
+        this.line = line;
+        int given = line.count() - 1;
+        int max = command.argTypes.length;
+        boolean text = max > 0 && command.argTypes[max - 1] == ReplCommand.ArgType.TEXT;
+        if (given < command.required || (given > max && !text)) throw usage();
+        present = Math.min(given, max);
+        for (int i = 0; i < present; i++) {
+            try {
+                switch (command.argTypes[i]) {
+                    case INT: ints[i] = line.intAt(i + 1); break;
+                    case NUMBER: numbers[i] = line.numberAt(i + 1); break;
+                    default: break;
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(command.argNames[i] + ": " + e.getMessage() + " (usage: " + command.usage() + ")");
+            }
+        }
+        return this;
+    }
+
+    boolean has(int i) { return i < present; }
+    int intArg(int i) { return ints[i]; }
+    double number(int i) { return numbers[i]; }
+    String word(int i) { return line.token(i + 1); }
+    String text(int i) { return line.rest(i + 1); }
+
+    private IllegalArgumentException usage() {
+        return new IllegalArgumentException("Usage: " + command.usage());
+    }
+}
+
+/*
+ Command name -> ReplCommand in an open-addressing table hashed case-insensitively, probed
+ directly from the first token's characters: no lower-cased copy, and every command costs
+ one hash and usually one comparison regardless of how many are registered.
+*/
+final class ReplCommandTable {
+    private final List<ReplCommand> ordered = new ArrayList<>();
+    private ReplCommand[] slots = new ReplCommand[16];
+
+    void register(ReplCommand command) {
+        if (lookup(command.name, 0, command.name.length()) != null) {
+            throw new IllegalArgumentException("Duplicate command: " + command.name);
+        }
+        ordered.add(command);
+        if (ordered.size() * 2 > slots.length) {
+            slots = new ReplCommand[slots.length * 2];
+            for (ReplCommand c : ordered) insert(c);
+        } else {
+            insert(command);
+        }
+    }
+
+    // The command named by s[start, end) ignoring case, or null
+    ReplCommand lookup(String s, int start, int end) {
+        int mask = slots.length - 1;
+        for (int i = hash(s, start, end) & mask; slots[i] != null; i = (i + 1) & mask) {
+            ReplCommand c = slots[i];
+            if (c.name.length() == end - start && c.name.regionMatches(true, 0, s, start, end - start)) return c;
+        }
+        return null;
+    }
+
+    List<ReplCommand> commands() { return Collections.unmodifiableList(ordered); }
+
+    private void insert(ReplCommand command) {
+        int mask = slots.length - 1;
+        int i = hash(command.name, 0, command.name.length()) & mask;
+        while (slots[i] != null) i = (i + 1) & mask;
+        slots[i] = command;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + Character.toLowerCase(s.charAt(i));
+        return h ^ (h >>> 16);
+    }
+}
+
+// -------------------- Simple console UI & main --------------------
+public class SmartHomeSystem {
+    private static final Scanner scanner = new Scanner(System.in);
+    // Striped so the background scheduler thread and the console can both issue commands
+    private final SmartHub hub = new SmartHub(new StripedDeviceRegistry());
+    // With --state-file, devices are StoredDevices in a mapped file that survives restarts
+    private final MappedDeviceStateStore stateStore;
+    // With --log, state changes are appended to a command log and replayed on the next start
+    private final Path logFile;
+    private final CommandLog.Durability durability;
+    private CommandLog commandLog;
+    // With --snapshot, the whole hub is loaded from a snapshot and checkpointed back to it
+    private Path snapshotFile;
+    private long snapshotIntervalMillis;
+    private SnapshotCompactor compactor;
+    private long errors; // lines that failed, reported by batch mode
+    private final ReplCommandTable commands = new ReplCommandTable();
+    private final ReplLine tokens = new ReplLine();
+    private final ReplArgs args = new ReplArgs();
+    private boolean exitRequested;
+    private static final Logger EVENTS = Log.get("Observer");
+    private final HubObserver eventLogger =
+            event -> EVENTS.info("Event: {} {}", event.type, event.payload.isEmpty() ? "" : event.payload);
+    private boolean eventLoggerAttached;
+
+    public SmartHomeSystem() { this(null, null, null); }
+
+    public SmartHomeSystem(MappedDeviceStateStore stateStore) { this(stateStore, null, null); }
+
+    public SmartHomeSystem(MappedDeviceStateStore stateStore, Path logFile, CommandLog.Durability durability) {
+        this.stateStore = stateStore;
+        this.logFile = logFile;
+        this.durability = durability == null ? CommandLog.Durability.GROUP_COMMIT : durability;
+        registerCommands();
+        syncEventLogger();
+    }
+
+    // Attached only while "Observer" logs at INFO, so with it off the hub builds no events for it
+    private void syncEventLogger() {
+        boolean wanted = EVENTS.isEnabled(LogLevel.INFO);
+        if (wanted == eventLoggerAttached) return;
+        if (wanted) hub.addObserver(eventLogger);
+        else hub.removeObserver(eventLogger);
+        eventLoggerAttached = wanted;
+    }
+
+    private void seedDefaults() {
+        // create devices with factory and register proxies
+        Map<String,String> d1 = Map.of("id","1","type","light");
+        Map<String,String> d2 = Map.of("id","2","type","thermostat","temperature","70");
+        Map<String,String> d3 = Map.of("id","3","type","door");
+
+        hub.registerDevice(newDevice(d1));
+        hub.registerDevice(newDevice(d2));
+        hub.registerDevice(newDevice(d3));
+    }
+
+    // Re-registers every device found in the state file; false if it holds none
+    private boolean restoreDevices() {
+        if (stateStore == null || stateStore.size() == 0) return false;
+        long t0 = System.nanoTime();
+        stateStore.forEachSlot(slot -> hub.registerDevice(new StoredDevice(stateStore, slot)));
+        ui(String.format("[UI] Restored %d devices from the state file in %.1f ms",
+                stateStore.size(), (System.nanoTime() - t0) / 1e6));
+        return true;
+    }
+
+    // Snapshots replace the state file as the source of devices, so the two are not combined
+    public void setSnapshot(Path file, long intervalMillis) {
+        if (stateStore != null) throw new IllegalStateException("--snapshot cannot be combined with --state-file");
+        this.snapshotFile = file;
+        this.snapshotIntervalMillis = intervalMillis;
+    }
+
+    // False if there is no snapshot to load
+    private boolean loadSnapshot() throws IOException {
+        if (snapshotFile == null || !Files.exists(snapshotFile)) return false;
+        long t0 = System.nanoTime();
+        HubSnapshot.Summary loaded = HubSnapshot.load(snapshotFile, hub, HubSnapshot.HEAP);
+        ui(String.format("[UI] Loaded snapshot (%s) in %.1f ms", loaded, (System.nanoTime() - t0) / 1e6));
+        return true;
+    }
+
+    // Brings the hub up to the end of the log, then logs every later change to it
+    private void openCommandLog() throws IOException {
+        if (logFile == null) return;
+        long t0 = System.nanoTime();
+        long records = CommandLog.replay(logFile, new CommandLog.Replayer() {
+            @Override
+            public void command(int deviceId, CommandCode code, double value) {
+                try {
+                    hub.replayCommand(deviceId, code, value);
+                } catch (NoSuchElementException ex) {
+                    // the device is gone (e.g. removed from the state file): nothing to restore
+                }
+            }
+
+            @Override
+            public void deviceAdded(int deviceId, DeviceKind kind, double temperature) {
+                if (resetStoredDevice(deviceId, kind, temperature)) return;
+                Map<String,String> props = new HashMap<>();
+                props.put("id", String.valueOf(deviceId));
+                props.put("type", kind.type);
+                if (!Double.isNaN(temperature)) props.put("temperature", String.valueOf(temperature));
+                Optional<DeviceProxy> replaced = hub.getDevice(deviceId);
+                hub.registerDevice(newDevice(props));
+                replaced.ifPresent(SmartHomeSystem::discard);
+            }
+
+            @Override
+            public void deviceRemoved(int deviceId) {
+                discard(hub.unregisterDevice(deviceId));
+            }
+        });
+        commandLog = CommandLog.open(logFile, durability);
+        hub.setCommandLog(commandLog);
+        ui(String.format("[UI] Replayed %d log records in %.1f ms; logging with %s durability",
+                records, (System.nanoTime() - t0) / 1e6, durability));
+    }
+
+    private DeviceProxy newDevice(Map<String,String> props) {
+        if (stateStore != null) return DeviceFactory.createStoredDevice(props, stateStore);
+        return new DeviceProxy(DeviceFactory.createDevice(props));
+    }
+
+    /*
+     When the state file already restored this device, replay resets its record to the logged
+     initial state instead of allocating a new slot and releasing the old one, so restarts with
+     --state-file and --log keep the mapped records in place. Later records re-apply the changes.
+    */
+    private boolean resetStoredDevice(int id, DeviceKind kind, double temperature) {
+        DeviceProxy existing = hub.getDevice(id).orElse(null);
+        if (!(existing instanceof StoredDevice) || ((StoredDevice) existing).kind() != kind) return false;
+        switch (kind) {
+            case LIGHT: hub.replayCommand(id, CommandCode.TURN_OFF, 0); break;
+            case THERMOSTAT: hub.replayCommand(id, CommandCode.SET_TEMP, Double.isNaN(temperature) ? 70.0 : temperature); break;
+            default: hub.replayCommand(id, CommandCode.LOCK, 0);
+        }
+        return true;
+    }
+
+    // A StoredDevice's record stays in the state file until its slot is released
+    private static void discard(DeviceProxy removed) {
+        if (removed instanceof StoredDevice) ((StoredDevice) removed).release();
+    }
+
+    private void printHelp() {
+        ui("Commands (examples):");
+        for (ReplCommand c : commands.commands()) {
+            ui("  " + c.usage());
+            if (!c.help.isEmpty()) ui("      " + c.help);
+        }
+    }
+
+    // Loads or seeds the devices, replays the log and starts checkpointing
+    private void start() throws IOException {
+        if (!loadSnapshot() && !restoreDevices()) seedDefaults();
+        openCommandLog();
+        if (snapshotFile != null) compactor = new SnapshotCompactor(hub, snapshotFile, commandLog, snapshotIntervalMillis);
+    }
+
+    private void shutdown() throws IOException {
+        if (compactor != null) compactor.close(); // final checkpoint
+        if (commandLog != null) commandLog.close();
+        if (stateStore != null) stateStore.close();
+    }
+
+    private void repl() throws IOException {
+        start();
+        ui("Smart Home System started. Type 'help' for commands.");
+        while (true) {
+            Log.appender().flush(); // everything so far is on screen before the prompt
+            System.out.print("> ");
+            String line = scanner.hasNextLine() ? scanner.nextLine().trim() : "exit"; // end of input exits
+            if (line.isEmpty()) continue;
+            if (!handleLine(line)) break;
+        }
+    }
+
+    /*
+     Non-interactive mode: runs every line of the script (or stdin) as if typed, with no prompts.
+     stdout is buffered, so output appears in blocks; blank lines and lines starting with # are
+     skipped. UI and log lines share one appender (with --log-async, one writer thread) and stderr
+     flushes pending stdout first, so with 2>&1 every line still follows command order. The
+     appender is flushed before the streams are restored. A summary goes to the real stderr at the end.
+    */
+    private void runBatch(BufferedReader in) throws IOException {
+        start();
+        PrintStream consoleOut = System.out, consoleErr = System.err;
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        FileOutputStream stderr = new FileOutputStream(FileDescriptor.err);
+        PrintStream err = new PrintStream(new OutputStream() { // errors are rare: keep them in order, unbuffered
+            @Override
+            public void write(int b) throws IOException {
+                out.flush();
+                stderr.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.flush();
+                stderr.write(b, off, len);
+            }
+        }, true);
+        System.setOut(out);
+        System.setErr(err);
+        long lines = 0;
+        long t0 = System.nanoTime();
+        try {
+            boolean exited = false;
+            for (String line; !exited && (line = in.readLine()) != null; ) {
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') continue;
+                lines++;
+                exited = !handleLine(line);
+            }
+            if (!exited) shutdown();
+        } finally {
+            Log.appender().flush();
+            out.flush();
+            err.flush();
+            System.setOut(consoleOut);
+            System.setErr(consoleErr);
+        }
+        double secs = (System.nanoTime() - t0) / 1e9;
+        consoleErr.printf("[Batch] %d lines (%d failed) in %.3f s: %.0f lines/s%n", lines, errors, secs, lines / secs);
+    }
+
+    // Runs one command line; false once the line was exit
+    private boolean handleLine(String text) {
+        try {
+            ReplLine line = tokens.parse(text);
+            if (line.count() == 0) return true;
+            ReplCommand command = commands.lookup(text, line.start(0), line.start(0) + line.length(0));
+            if (command == null) {
+                fail("Unknown command. Type 'help' for list.");
+                return true;
+            }
+            command.handler.run(args.bind(command, line));
+            return !exitRequested;
+        } catch (Exception ex) {
+            fail("[Error] " + ex.getMessage());
+            return true;
+        }
+    }
+
+    private void command(String name, String schema, String help, ReplCommand.Handler handler) {
+        commands.register(new ReplCommand(name, schema, help, handler));
+    }
+
+    // The console's commands, in help order
+    private void registerCommands() {
+        command("listDevices", "", "", a -> printDevices());
+        command("statusReport", "", "", a -> printDevices());
+        command("turnOn", "id:int", "", a -> hub.executeCommand(a.intArg(0), CommandCode.TURN_ON));
+        command("turnOff", "id:int", "", a -> hub.executeCommand(a.intArg(0), CommandCode.TURN_OFF));
+        command("lock", "id:int", "", a -> hub.executeCommand(a.intArg(0), CommandCode.LOCK));
+        command("unlock", "id:int", "", a -> hub.executeCommand(a.intArg(0), CommandCode.UNLOCK));
+        command("setTemp", "id:int temp:number", "", a -> hub.executeCommand(a.intArg(0), CommandCode.SET_TEMP, a.number(1)));
+        command("setSchedule", "deviceId:int schedule:text",
+                "schedule: <when> <action>, e.g. setSchedule 1 weekdays 07:30 turnOn(1)\n"
+                + "      when: HH:MM | weekdays HH:MM | mon,wed HH:MM | every 15m | cron 0 7 * * 1-5", a -> {
+            // <when> may contain spaces ("every 15m"); the action is the word before the last '('
+            String rest = a.text(1);
+            int open = rest.lastIndexOf('(');
+            int start = open;
+            while (start > 0 && Character.isLetter(rest.charAt(start - 1))) start--;
+            if (open < 0 || start == 0) throw new IllegalArgumentException("Usage: setSchedule <deviceId> <when> <action>");
+            String time = rest.substring(0, start).trim();
+            String action = rest.substring(start);
+            hub.addSchedule(new ScheduleEntry(a.intArg(0), time, action));
+            ui("[UI] Schedule added: " + action + " at " + time);
+        });
+        command("runSchedulesAt", "time:word", "time: HH:MM", a -> hub.runSchedulesAt(a.word(0)));
+        command("startScheduler", "", "runs schedules at wall-clock time until stopScheduler", a -> {
+            hub.scheduler().start();
+            ui("[UI] Scheduler running on wall-clock time");
+        });
+        command("stopScheduler", "", "", a -> {
+            hub.scheduler().stop();
+            ui("[UI] Scheduler stopped");
+        });
+        command("schedulerStats", "", "", a -> ui("[UI] Scheduler "
+                + (hub.scheduler().isRunning() ? "running " : "stopped ") + hub.scheduler().stats()));
+        command("addTrigger", "rule:text",
+                "rule: <condition> action <action> [action <action> ...]\n"
+                + "      e.g. addTrigger temperature > 75 action turnOff(1)\n"
+                + "           addTrigger device 2 temperature >= 80 and not (all doors locked) action lock(3)\n"
+                + "      condition: device <id> <state> | any|all <type> <state>, joined by and/or/not and ( )\n"
+                + "      state: temperature <op> <n> | on | off | locked | unlocked", a -> {
+            String[] parts = a.text(0).split("(?i)\\s+action\\s+");
+            if (parts.length < 2) throw new IllegalArgumentException("Invalid addTrigger format: expected '<condition> action <action>'");
+            TriggerEntry t = TriggerCondition.compile(parts[0], hub).toTrigger(Arrays.asList(parts).subList(1, parts.length));
+            hub.addTrigger(t);
+            ui("[UI] Trigger added: " + t);
+        });
+        command("addDevice", "id:int type:word temperature:number?", "", a -> {
+            Map<String,String> props = new HashMap<>();
+            props.put("id", String.valueOf(a.intArg(0)));
+            props.put("type", a.word(1));
+            if (a.has(2)) props.put("temperature", String.valueOf(a.number(2)));
+            DeviceProxy dp = newDevice(props);
+            Optional<DeviceProxy> replaced = hub.getDevice(a.intArg(0));
+            hub.registerDevice(dp);
+            replaced.ifPresent(SmartHomeSystem::discard);
+            ui("[UI] Device added: " + dp.statusReport());
+        });
+        command("removeDevice", "id:int", "", a -> {
+            DeviceProxy removed = hub.unregisterDevice(a.intArg(0));
+            discard(removed);
+            ui(removed == null ? "[UI] No such device." : "[UI] Removed device " + a.intArg(0));
+        });
+        command("showSchedules", "", "", a -> hub.listSchedules().forEach(x -> ui(String.valueOf(x))));
+        command("showTriggers", "", "", a -> hub.listTriggers().forEach(x -> ui(String.valueOf(x))));
+        command("showCascadeStats", "", "", a -> {
+            ui("[UI] Last cascade: " + hub.lastCascade());
+            ui("[UI] Totals: " + hub.getCascadeStats());
+        });
+        command("snapshot", "", "checkpoints to the --snapshot file and compacts the log", a -> {
+            if (compactor == null) throw new IllegalStateException("No snapshot file (start with --snapshot <path>)");
+            ui("[UI] Snapshot written: " + compactor.checkpoint());
+        });
+        command("logLevel", "component:word? level:word?",
+                "no arguments: list components; one: set the default level; two: set one component's level\n"
+                + "      level: trace | debug | info | warn | error | off, e.g. logLevel Proxy off", a -> {
+            if (!a.has(0)) {
+                ui("[UI] Log levels: " + Log.levels());
+                return;
+            }
+            if (a.has(1)) Log.setLevel(a.word(0), Log.parseLevel(a.word(1)));
+            else Log.setDefaultLevel(Log.parseLevel(a.word(0)));
+            syncEventLogger();
+            ui("[UI] Log levels: " + Log.levels());
+        });
+        command("help", "", "", a -> printHelp());
+        command("exit", "", "", a -> {
+            shutdown();
+            ui("Bye.");
+            exitRequested = true;
+        });
+    }
+
+    private void printDevices() {
+        hub.listDevices().stream().sorted(Comparator.comparingInt(Device::getId))
+                .forEach(d -> ui(d.statusReport()));
+    }
+
+    private void fail(String message) {
+        errors++;
+        Log.console(LogLevel.ERROR, message);
+    }
+
+    // Console output goes through the log appender, in order with the log lines
+    private static void ui(String line) { Log.console(LogLevel.INFO, line); }
+
+    private static final String USAGE = "Usage: java SmartHomeSystem [--state-file <path> | --snapshot <path>"
+            + " [--snapshot-every <seconds>]] [--log <path> [--durability async|group|sync]] [--batch <script>|-]"
+            + " [--log-level <level>[,<component>=<level>...]] [--log-async]";
+
+    public static void main(String[] args) throws IOException {
+        MappedDeviceStateStore store = null;
+        Path log = null, snapshot = null;
+        long snapshotEvery = 0;
+        String batch = null; // script path, or - for stdin
+        CommandLog.Durability durability = null;
+        boolean logAsync = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--state-file") && i + 1 < args.length) {
+                store = MappedDeviceStateStore.open(Path.of(args[++i]));
+            } else if (args[i].equals("--log") && i + 1 < args.length) {
+                log = Path.of(args[++i]);
+            } else if (args[i].equals("--durability") && i + 1 < args.length) {
+                durability = parseDurability(args[++i]);
+            } else if (args[i].equals("--snapshot") && i + 1 < args.length) {
+                snapshot = Path.of(args[++i]);
+            } else if (args[i].equals("--snapshot-every") && i + 1 < args.length) {
+                snapshotEvery = Long.parseLong(args[++i]) * 1000;
+            } else if (args[i].equals("--batch") && i + 1 < args.length) {
+                batch = args[++i];
+            } else if (args[i].equals("--log-level") && i + 1 < args.length) {
+                Log.configure(args[++i]); // before any device or hub logs its first line
+            } else if (args[i].equals("--log-async")) {
+                logAsync = true;
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                System.err.println(USAGE);
+                return;
+            }
+        }
+        if (store != null && snapshot != null) {
+            System.err.println("--state-file and --snapshot are alternatives");
+            System.err.println(USAGE);
+            return;
+        }
+        // Console and log lines are written by a background thread; closed (drained) on the way out
+        AsyncLogAppender async = logAsync ? new AsyncLogAppender(new ConsoleLogAppender(), 1 << 16, 4096) : null;
+        LogAppender previous = async != null ? Log.setAppender(async) : null;
+        try {
+            SmartHomeSystem system = new SmartHomeSystem(store, log, durability);
+            if (snapshot != null) system.setSnapshot(snapshot, snapshotEvery);
+            if (batch == null) {
+                system.repl();
+            } else if (batch.equals("-")) {
+                system.runBatch(new BufferedReader(new InputStreamReader(System.in), 1 << 16));
+            } else {
+                try (BufferedReader in = Files.newBufferedReader(Path.of(batch))) {
+                    system.runBatch(in);
+                }
+            }
+        } finally {
+            if (async != null) {
+                Log.setAppender(previous);
+                async.close();
+            }
+        }
+    }
+
+    private static CommandLog.Durability parseDurability(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "async": return CommandLog.Durability.ASYNC;
+            case "group": return CommandLog.Durability.GROUP_COMMIT;
+            case "sync": return CommandLog.Durability.SYNC;
+            default: throw new IllegalArgumentException("Unknown durability: " + name + " (async, group or sync)");
+        }
     }
 }